@@ -0,0 +1,70 @@
+package org.example.weatherApp.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.query.Dataset;
+import org.example.weatherApp.RDFDataLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RDFDataLoader.loadData of a whole synthetic file into an empty store, one load per
+ * invocation. "tdb2" goes through the batched pipeline, "tdb2-bulk" through the TDB2
+ * bulk loader the application uses for a first load.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark {
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({"mem", "tdb2", "tdb2-bulk"})
+    public String storage;
+
+    private Path file;
+    private Path directory;
+    private Dataset dataset;
+    private RDFDataLoader loader;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        file = SyntheticData.file(scale);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+        directory = storage.equals("mem") ? null : Files.createTempDirectory("weather-tdb2-");
+        dataset = LoadedStore.open(directory);
+        loader = new RDFDataLoader(dataset);
+        loader.setBulkLoaderEnabled(storage.equals("tdb2-bulk"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        LoadedStore.close(dataset, directory);
+    }
+
+    @Benchmark
+    public Dataset loadData() {
+        loader.loadData(file.toString());
+        return dataset;
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.weatherApp.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.example.weatherApp.JsonRowWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Serialization of a date listing: a Gson JsonArray built then turned into a String, as the
+ * cached endpoints do, against the rows streamed through JsonRowWriter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+    @Param({"240", "2400", "24000"})
+    public int rows;
+
+    private String[] dates;
+
+    @Setup
+    public void dates() {
+        dates = SyntheticData.dates(rows * SyntheticData.HOURS_BETWEEN_OBSERVATIONS / 24 / SyntheticData.DAYS_PER_SCALE + 1)
+                             .subList(0, rows).toArray(String[]::new);
+    }
+
+    @Benchmark
+    public String jsonArray() {
+        JsonArray array = new JsonArray();
+        for (String date : dates) {
+            JsonObject row = new JsonObject();
+            row.addProperty("date", date);
+            array.add(row);
+        }
+        return array.toString();
+    }
+
+    @Benchmark
+    public void streamed() throws IOException {
+        stream(false);
+    }
+
+    @Benchmark
+    public void streamedNdjson() throws IOException {
+        stream(true);
+    }
+
+    private void stream(boolean ndjson) throws IOException {
+        JsonRowWriter writer = new JsonRowWriter(Writer.nullWriter(), ndjson);
+        for (String date : dates) {
+            writer.row().name("date").value(date);
+        }
+        writer.finish();
+    }
+}
@@ -0,0 +1,86 @@
+package org.example.weatherApp.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.sys.TDBInternal;
+import org.example.weatherApp.ColumnarStore;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A store filled with the synthetic observations of a scale, in memory or in TDB2,
+ * shared by all the threads of a trial.
+ */
+@State(Scope.Benchmark)
+public class LoadedStore {
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    @Param({"mem", "tdb2"})
+    public String storage;
+
+    public Dataset dataset;
+    public SPARQLService sparql;
+    public SPARQLService columnar;
+    public String[] stations;
+    public String[] dates;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        Path file = SyntheticData.file(scale);
+        directory = storage.equals("mem") ? null : Files.createTempDirectory("weather-tdb2-");
+        dataset = open(directory);
+        new RDFDataLoader(dataset).loadData(file.toString());
+
+        ColumnarStore columns = new ColumnarStore();
+        columns.load(dataset);
+        sparql = new SPARQLService(dataset);
+        columnar = new SPARQLService(dataset, columns);
+        stations = SyntheticData.stations().toArray(String[]::new);
+        dates = SyntheticData.dates(scale).toArray(String[]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        close(dataset, directory);
+    }
+
+    /**
+     * An empty dataset: createTxnMem without a directory, a TDB2 store in the directory otherwise.
+     */
+    static Dataset open(Path directory) {
+        return directory == null ? DatasetFactory.createTxnMem() : TDB2Factory.connectDataset(directory.toString());
+    }
+
+    /**
+     * Release the dataset and delete its TDB2 directory, if any.
+     */
+    static void close(Dataset dataset, Path directory) {
+        if (directory == null) {
+            dataset.close();
+            return;
+        }
+        TDBInternal.expel(dataset.asDatasetGraph());
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.example.weatherApp.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.util.FmtUtils;
+import org.example.weatherApp.ObservationNormalizer;
+import org.example.weatherApp.PreparedQuery;
+import org.example.weatherApp.StationIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The observation lookup without the JSON around it: query text built with String.format
+ * and parsed on every call (the old SPARQLService) against a PreparedQuery executed with
+ * bound parameters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PreparedQueryBenchmark {
+    private static final String QUERY = """
+            PREFIX ex: <http://example.org/weather#>
+            PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>
+
+            SELECT ?temperature ?pression_ocean ?wind_direction ?wind_speed ?dew_point ?humidity
+                   ?horizontal_visibility ?couldiness ?min_temperature ?max_temperature
+            WHERE {
+                ?observation ex:station %s ;
+                             ex:date %s .
+                OPTIONAL { ?observation ex:temperature ?temperature }
+                OPTIONAL { ?observation ex:pression_ocean ?pression_ocean }
+                OPTIONAL { ?observation ex:wind_direction ?wind_direction }
+                OPTIONAL { ?observation ex:wind_speed ?wind_speed }
+                OPTIONAL { ?observation ex:dew_point ?dew_point }
+                OPTIONAL { ?observation ex:humidity ?humidity }
+                OPTIONAL { ?observation ex:horizontal_visibility ?horizontal_visibility }
+                OPTIONAL { ?observation ex:couldiness ?couldiness }
+                OPTIONAL { ?observation ex:min_temperature ?min_temperature }
+                OPTIONAL { ?observation ex:max_temperature ?max_temperature }
+            }
+            """;
+    private final PreparedQuery prepared = new PreparedQuery(String.format(QUERY, "?stationId", "?date"));
+    private LoadedStore store;
+    private int next;
+
+    /**
+     * One read transaction per iteration, the lookups themselves are measured without it
+     */
+    @Setup(Level.Iteration)
+    public void begin(LoadedStore store) {
+        this.store = store;
+        store.dataset.begin(ReadWrite.READ);
+    }
+
+    @TearDown(Level.Iteration)
+    public void end() {
+        store.dataset.end();
+    }
+
+    @Benchmark
+    public int formatted() {
+        int i = next++;
+        String sparql = String.format(QUERY, "<" + StationIndex.stationNode(station(i)).getURI() + ">",
+                                      FmtUtils.stringForNode(ObservationNormalizer.dateTime(date(i))));
+        try (QueryExecution qexec = QueryExecutionFactory.create(sparql, store.dataset)) {
+            ResultSet results = qexec.execSelect();
+            int rows = 0;
+            while (results.hasNext()) {
+                results.next();
+                rows++;
+            }
+            return rows;
+        }
+    }
+
+    @Benchmark
+    public int prepared() {
+        int i = next++;
+        QueryIterator results = prepared.execute(store.dataset.asDatasetGraph(),
+                Map.of("stationId", StationIndex.stationNode(station(i)),
+                       "date", ObservationNormalizer.dateTime(date(i))));
+        try {
+            int rows = 0;
+            while (results.hasNext()) {
+                results.next();
+                rows++;
+            }
+            return rows;
+        } finally {
+            results.close();
+        }
+    }
+
+    private String station(int i) {
+        return store.stations[Math.floorMod(i, store.stations.length)];
+    }
+
+    private String date(int i) {
+        return store.dates[Math.floorMod(i * 7919, store.dates.length)];
+    }
+}
@@ -0,0 +1,54 @@
+package org.example.weatherApp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The three read endpoints of the API, as SPARQLService answers them. Each call looks up
+ * the next station (and date) of the synthetic data, so no run hits a single warm key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+    private int next;
+
+    @Benchmark
+    public String queryStation(LoadedStore store) {
+        return store.sparql.queryStation();
+    }
+
+    @Benchmark
+    public String queryDateOfStation(LoadedStore store) {
+        return store.sparql.queryDateOfStation(store.stations[Math.floorMod(next++, store.stations.length)]);
+    }
+
+    @Benchmark
+    public String queryWeatherDataByStationAndDate(LoadedStore store) {
+        int i = next++;
+        return store.sparql.queryWeatherDataByStationAndDate(store.stations[Math.floorMod(i, store.stations.length)],
+                                                             store.dates[Math.floorMod(i * 7919, store.dates.length)]);
+    }
+
+    /**
+     * Same lookup served by the columnar store
+     */
+    @Benchmark
+    public String queryWeatherDataByStationAndDateColumnar(LoadedStore store) {
+        int i = next++;
+        return store.columnar.queryWeatherDataByStationAndDate(store.stations[Math.floorMod(i, store.stations.length)],
+                                                               store.dates[Math.floorMod(i * 7919, store.dates.length)]);
+    }
+}
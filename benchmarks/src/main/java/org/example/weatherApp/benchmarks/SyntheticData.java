@@ -0,0 +1,131 @@
+package org.example.weatherApp.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.example.weatherApp.StationIndex;
+
+/**
+ * Turtle files shaped like result-triples-new.ttl (the Météo-France SYNOP export: 3-hourly
+ * observations of the stations of stations.csv, plain string values, "mq" when missing),
+ * scale times as long: scale 1 is one month, 10 is ten months, 100 a bit more than eight years.
+ * Values are random but seeded, so every run benchmarks the same data.
+ */
+public final class SyntheticData {
+    public static final LocalDateTime START = LocalDateTime.of(2024, 11, 1, 0, 0);
+    public static final int DAYS_PER_SCALE = 30;
+    public static final int HOURS_BETWEEN_OBSERVATIONS = 3;
+
+    private static final DateTimeFormatter COMPACT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final Path DIRECTORY = Path.of(System.getProperty("java.io.tmpdir"), "weather-benchmarks");
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Ids of the stations, from the station list bundled with the application
+     */
+    public static List<String> stations() {
+        List<String> ids = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                StationIndex.class.getResourceAsStream("/stations.csv"), StandardCharsets.UTF_8))) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ids.add(line.split(";")[0].trim());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ids;
+    }
+
+    /**
+     * Observation dates of every station at this scale, compact yyyyMMddHHmmss
+     */
+    public static List<String> dates(int scale) {
+        List<String> dates = new ArrayList<>();
+        LocalDateTime end = START.plusDays((long) DAYS_PER_SCALE * scale);
+        for (LocalDateTime date = START; date.isBefore(end); date = date.plusHours(HOURS_BETWEEN_OBSERVATIONS)) {
+            dates.add(date.format(COMPACT));
+        }
+        return dates;
+    }
+
+    /**
+     * The file of this scale, generated on first use and kept in the temporary directory.
+     */
+    public static Path file(int scale) {
+        Path file = DIRECTORY.resolve("observations-x" + scale + ".ttl");
+        if (Files.exists(file)) {
+            return file;
+        }
+        try {
+            Files.createDirectories(DIRECTORY);
+            Path partial = DIRECTORY.resolve(file.getFileName() + ".part");
+            write(partial, scale);
+            Files.move(partial, file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot generate " + file, e);
+        }
+        return file;
+    }
+
+    private static void write(Path file, int scale) throws IOException {
+        Random random = new Random(scale);
+        List<String> stations = stations();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("""
+                    @base <http://example.org/weather/> .
+                    @prefix xsd: <http://www.w3.org/2001/XMLSchema#> .
+                    @prefix ex: <http://example.org/weather#> .
+                    @prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> .
+
+                    """);
+            // date by date as in the export, every station at each date
+            for (String date : dates(scale)) {
+                boolean synoptic = date.endsWith("060000") || date.endsWith("180000");
+                for (String station : stations) {
+                    double temperature = 270 + random.nextDouble() * 30;
+                    out.write(String.format(Locale.ROOT, """
+                            <observation/%1$s/%2$s> ex:temperature "%3$.6f";
+                              ex:pression_ocean "%4$d";
+                              ex:wind_direction "%5$d";
+                              ex:wind_speed "%6$.6f";
+                              ex:dew_point "%7$.6f";
+                              ex:humidity "%8$d";
+                              ex:horizontal_visibility "%9$s";
+                              ex:couldiness "%10$s";
+                              ex:min_temperature "%11$s";
+                              ex:max_temperature "%12$s";
+                              ex:station "%1$s";
+                              ex:date "%2$s" .
+
+                            """,
+                            station, date, temperature,
+                            98000 + random.nextInt(6000),
+                            random.nextInt(36) * 10,
+                            random.nextDouble() * 15,
+                            temperature - random.nextDouble() * 5,
+                            40 + random.nextInt(61),
+                            random.nextInt(5) == 0 ? "mq" : Integer.toString(100 + random.nextInt(50000)),
+                            random.nextInt(3) == 0 ? "mq" : Integer.toString(random.nextInt(9) * 12 + 4),
+                            synoptic ? String.format(Locale.ROOT, "%.6f", temperature - random.nextDouble() * 8) : "mq",
+                            synoptic ? String.format(Locale.ROOT, "%.6f", temperature + random.nextDouble() * 8) : "mq"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.example.weatherApp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * Keeps the replicas of a shard in step with its primary: every batch the loader commits
+ * is sent, as N-Triples, to POST /replication/batches of each replica
+ * ({@link ReplicationResource}), which loads it through its own pipeline. Each replica
+ * has its own queue and sender thread, so a slow or stopped replica never holds up a
+ * commit. Batches go out in commit order and one is retried until the replica accepts
+ * it before the next is sent.
+ * A batch is tried {@link #MAX_ATTEMPTS} times by default: one the replica keeps
+ * refusing must not stop its replication. It is then dropped and the replica caught up
+ * from the store.
+ * The queues are in memory. When a sender starts, and whenever its replica fell more
+ * than {@link #MAX_QUEUED} batches behind or a batch was dropped, it first asks the
+ * replica for the latest date and the count of the observations of each station, and
+ * sends it from the store, one station after the other (oldest first), the observations
+ * newer than that date. When the replica has fewer observations up to that date than the
+ * primary, a lost batch held late observations (older than the latest one): the whole
+ * station is sent then, the replica skips what it already has. A replica that was
+ * stopped, or a primary restarted with batches not yet delivered, catch up this way.
+ * A catch-up batch that is dropped ends the round, and the catch-up starts over.
+ * Every call carries the {@link #TOKEN_HEADER} the replicas were started with.
+ * Bulk loads are not batches and are not shipped: the bulk loader is off on a primary with replicas.
+ */
+public class BatchShipper implements IngestListener {
+    public static final String N_TRIPLES = "application/n-triples";
+    /** Header of the secret shared by a primary and its replicas (-Dweather.replication.token) */
+    public static final String TOKEN_HEADER = "X-Replication-Token";
+
+    /** Batches waiting for a replica before it is caught up from the store instead */
+    private static final int MAX_QUEUED = 1024;
+    /** Observations per batch when catching up from the store */
+    private static final int CATCH_UP_BATCH = 5000;
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+    /** Tries of one batch before it is dropped, about two minutes with the back-off */
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final Dataset dataset;
+    private final ThreadLocal<List<ObservationGrouper.Block>> pending = new ThreadLocal<>();
+    private final List<Replica> replicas = new ArrayList<>();
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final Duration timeout;
+    private final String token;
+    private final int attempts;
+
+    /**
+     * @param dataset store of the primary, read to catch the replicas up
+     * @param replicas base URIs of the replicas, e.g. http://localhost:8091
+     * @param timeout for a replica to load one batch
+     * @param token secret the replicas check ({@link ReplicationResource})
+     */
+    public BatchShipper(Dataset dataset, List<URI> replicas, Duration timeout, String token) {
+        this(dataset, replicas, timeout, token, MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param attempts tries of one batch before it is dropped
+     */
+    public BatchShipper(Dataset dataset, List<URI> replicas, Duration timeout, String token, int attempts) {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A primary with replicas needs a replication token (-Dweather.replication.token)");
+        }
+        this.dataset = dataset;
+        this.timeout = timeout;
+        this.token = token;
+        this.attempts = attempts;
+        for (URI uri : replicas) {
+            this.replicas.add(new Replica(uri));
+        }
+    }
+
+    public void start() {
+        for (Replica replica : replicas) {
+            replica.sender.start();
+        }
+    }
+
+    /**
+     * Batches waiting to be sent, over all replicas
+     */
+    public int queued() {
+        int queued = 0;
+        for (Replica replica : replicas) {
+            queued += replica.queue.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        // the loader reuses its batch list once committed
+        pending.set(List.copyOf(batch));
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        System.out.println("Observations bulk loaded on a primary are only sent to its replicas when they catch up");
+    }
+
+    @Override
+    public void afterCommit(Set<String> stations) {
+        List<ObservationGrouper.Block> batch = pending.get();
+        pending.remove();
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        byte[] body = nTriples(batch);
+        for (Replica replica : replicas) {
+            if (!replica.queue.offer(body)) {
+                replica.behind = true;
+            }
+        }
+    }
+
+    @Override
+    public void afterAbort() {
+        pending.remove();
+    }
+
+    private static byte[] nTriples(List<ObservationGrouper.Block> batch) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamRDF writer = StreamRDFWriter.getWriterStream(out, RDFFormat.NTRIPLES);
+        writer.start();
+        for (ObservationGrouper.Block block : batch) {
+            block.triples().forEach(writer::triple);
+        }
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    private final class Replica {
+        private final URI batches;
+        private final URI stations;
+        private final String name;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        private final Thread sender;
+        /** Batches were dropped (or this is the start): catch up from the store before sending the queue */
+        private volatile boolean behind = true;
+
+        private Replica(URI uri) {
+            this.batches = uri.resolve("/replication/batches");
+            this.stations = uri.resolve("/replication/stations");
+            this.name = uri.getAuthority();
+            this.sender = new Thread(this::run, "replication-" + name);
+            this.sender.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    if (behind) {
+                        behind = false;
+                        // everything queued is committed, the store read after this holds it
+                        queue.clear();
+                        if (!catchUp()) {
+                            behind = true;
+                            continue;
+                        }
+                    }
+                    if (!deliver(queue.take())) {
+                        // what came after it is in the store too
+                        behind = true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopping
+            }
+        }
+
+        /**
+         * Send the observations of the store the replica is missing, station by station,
+         * oldest first: only the observations of one station and one batch being sent are
+         * in memory
+         * @return false when a batch was dropped, the replica is still behind
+         */
+        private boolean catchUp() throws InterruptedException {
+            Map<String, Loaded> loaded = retried(this::readStations, Integer.MAX_VALUE);
+            Set<String> stations;
+            dataset.begin(ReadWrite.READ);
+            try {
+                stations = new LoaderState(dataset.asDatasetGraph()).readWatermarks().keySet();
+            } finally {
+                dataset.end();
+            }
+            List<ObservationGrouper.Block> outgoing = new ArrayList<>();
+            long sent = 0;
+            for (String station : stations) {
+                Loaded replica = loaded.getOrDefault(station, new Loaded(null, 0));
+                List<ObservationGrouper.Block> all = new ArrayList<>();
+                dataset.begin(ReadWrite.READ);
+                try {
+                    ObservationGrouper.scan(dataset.asDatasetGraph().getDefaultGraph(), station, block -> {
+                        if (block.date() != null) {
+                            all.add(block);
+                        }
+                    });
+                } finally {
+                    dataset.end();
+                }
+                all.sort(Comparator.comparing(ObservationGrouper.Block::date));
+                List<ObservationGrouper.Block> missing = all;
+                if (replica.last() != null) {
+                    int newer = 0;
+                    while (newer < all.size() && all.get(all.size() - 1 - newer).date().compareTo(replica.last()) > 0) {
+                        newer++;
+                    }
+                    // up to its latest date the replica has every observation: only the newer ones are missing
+                    if (all.size() - newer == replica.observations()) {
+                        missing = all.subList(all.size() - newer, all.size());
+                    }
+                }
+                for (ObservationGrouper.Block block : missing) {
+                    outgoing.add(block);
+                    if (outgoing.size() == CATCH_UP_BATCH) {
+                        if (!deliver(nTriples(outgoing))) {
+                            return false;
+                        }
+                        outgoing.clear();
+                    }
+                }
+                sent += missing.size();
+            }
+            if (!outgoing.isEmpty() && !deliver(nTriples(outgoing))) {
+                return false;
+            }
+            if (sent > 0) {
+                System.out.println("Replica " + name + " missed " + sent + " observations, sent from the store");
+                Metrics.DEFAULT.counter("weather_replication_catch_up_observations_total",
+                                        "Observations sent from the store to a replica that was behind", "replica", name)
+                               .add(sent);
+            }
+            return true;
+        }
+
+        /**
+         * @return false when the replica did not take the batch after every try: it is dropped
+         */
+        private boolean deliver(byte[] batch) throws InterruptedException {
+            Boolean delivered = retried(() -> {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(batches)
+                                                                       .timeout(timeout)
+                                                                       .header("Content-Type", N_TRIPLES)
+                                                                       .header(TOKEN_HEADER, token)
+                                                                       .POST(HttpRequest.BodyPublishers.ofByteArray(batch))
+                                                                       .build(),
+                                                            HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() / 100 != 2) {
+                    throw new IOException(response.statusCode() + " " + response.body());
+                }
+                Metrics.DEFAULT.counter("weather_replication_batches_total", "Batches loaded by a replica", "replica", name).inc();
+                return true;
+            }, attempts);
+            if (delivered == null) {
+                Metrics.DEFAULT.counter("weather_replication_dropped_batches_total",
+                                        "Batches a replica did not take after every try", "replica", name).inc();
+                System.out.println("Replica " + name + " did not take a batch of " + batch.length + " bytes after "
+                                   + attempts + " tries, dropping it");
+                return false;
+            }
+            return true;
+        }
+
+        private Map<String, Loaded> readStations() throws IOException, InterruptedException {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(stations).timeout(timeout)
+                                                                   .header(TOKEN_HEADER, token).build(),
+                                                        HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException(response.statusCode() + " " + response.body());
+            }
+            Map<String, Loaded> loaded = new HashMap<>();
+            for (Map.Entry<String, JsonElement> station : JsonParser.parseString(response.body()).getAsJsonObject().entrySet()) {
+                JsonObject summary = station.getValue().getAsJsonObject();
+                loaded.put(station.getKey(), new Loaded(summary.get("last").getAsString(), summary.get("observations").getAsLong()));
+            }
+            return loaded;
+        }
+
+        /**
+         * Call until the replica answers, waiting longer after each failure
+         * @return null when every attempt failed
+         */
+        private <T> T retried(Call<T> call, int attempts) throws InterruptedException {
+            Duration backoff = Duration.ofMillis(500);
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return call.run();
+                } catch (IOException e) {
+                    Metrics.DEFAULT.counter("weather_replication_failures_total", "Calls to a replica that failed",
+                                            "replica", name).inc();
+                    System.out.println("Replica " + name + " failed (attempt " + attempt + "): " + e);
+                }
+                if (attempt >= attempts) {
+                    return null;
+                }
+                Thread.sleep(backoff.toMillis());
+                backoff = backoff.multipliedBy(2).compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff.multipliedBy(2);
+            }
+        }
+    }
+
+    /**
+     * What a replica holds of a station: the date of its latest observation and how many it has
+     */
+    private record Loaded(String last, long observations) {
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T run() throws IOException, InterruptedException;
+    }
+}
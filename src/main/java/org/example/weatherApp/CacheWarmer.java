@@ -0,0 +1,130 @@
+package org.example.weatherApp;
+
+import java.io.Writer;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Runs the queries the dashboard starts with before anybody asks them, so the first
+ * requests after a restart do not all pay for cold TDB2 pages and an empty response
+ * cache: the station list, the latest observations, then for each station its date list
+ * and its latest observation. The first run starts with the process, before the port is
+ * open; the next ones run every interval to fill again what commits dropped from the
+ * cache. Everything runs on one daemon thread of minimum priority, one query at a time.
+ * {@link ReadinessResource} answers "ready" once the first run is over.
+ */
+public class CacheWarmer {
+    private final WeatherAPI api;
+    private final SPARQLService sparqlService;
+    private final CountDownLatch firstRun = new CountDownLatch(1);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private volatile int stations;
+    private volatile long lastRunMillis;
+
+    /**
+     * @param api queried as the clients do, so its response cache keeps the answers
+     */
+    public CacheWarmer(WeatherAPI api, SPARQLService sparqlService) {
+        this.api = api;
+        this.sparqlService = sparqlService;
+    }
+
+    /**
+     * Run now, then every interval (never again when it is zero)
+     */
+    public void start(Duration interval) {
+        executor.execute(this::run);
+        if (!interval.isZero()) {
+            executor.scheduleWithFixedDelay(this::run, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public boolean isReady() {
+        return firstRun.getCount() == 0;
+    }
+
+    /**
+     * @return whether the first run is over
+     */
+    public boolean awaitReady(Duration timeout) throws InterruptedException {
+        return firstRun.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stations warmed by the last run
+     */
+    public int stations() {
+        return stations;
+    }
+
+    /**
+     * Duration of the last run
+     */
+    public long lastRunMillis() {
+        return lastRunMillis;
+    }
+
+    /**
+     * One run: a query that fails is logged and the others still run, so that the node
+     * does not stay unready because of one station
+     */
+    void run() {
+        long start = System.nanoTime();
+        int warmed = 0;
+        try {
+            warm("station list", () -> api.getStation(null));
+            // the stations and their last date, from the response now in the cache
+            Object body = api.getLatestObservations(null, null).getEntity();
+            JsonElement latest = body instanceof String json ? JsonParser.parseString(json) : null;
+            if (latest != null && latest.isJsonArray()) {
+                for (JsonElement station : latest.getAsJsonArray()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    JsonObject row = station.getAsJsonObject();
+                    String stationId = row.get("stationId").getAsString();
+                    warm("dates of " + stationId,
+                         () -> sparqlService.writeDatesOfStation(stationId, null, null, null, 0, Writer.nullWriter(), false));
+                    if (row.has("date")) {
+                        String date = row.get("date").getAsString();
+                        warm("latest observation of " + stationId, () -> api.getWeatherByStationAndDate(stationId, date, null, null));
+                    }
+                    warmed++;
+                }
+            }
+            stations = warmed;
+            lastRunMillis = (System.nanoTime() - start) / 1_000_000;
+            if (!isReady()) {
+                System.out.println("Warm-up done: " + warmed + " stations in " + lastRunMillis + " ms");
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Warm-up failed: " + e);
+        } finally {
+            firstRun.countDown();
+        }
+    }
+
+    private static void warm(String what, Runnable query) {
+        try {
+            query.run();
+        } catch (RuntimeException e) {
+            System.out.println("Warm-up of the " + what + " failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.UriInfo;
+
+/**
+ * Front of a sharded deployment ({@link WeatherCluster}): the /api/weather of
+ * {@link WeatherAPI}, answered by shard processes that each hold the stations of
+ * {@link ShardMap#shardOf}.
+ * <ul>
+ *     <li>Requests about one station are forwarded to its shard and the response streamed
+ *     back as it comes, ETag and next page link included.</li>
+ *     <li>Requests over many stations (station list, latest observations, spatial queries,
+ *     batch lookups) go to every shard in parallel and the answers are merged in the
+ *     order a single process would give.</li>
+ *     <li>Uploads go to the primary of every shard, which keeps the observations of its own
+ *     stations.</li>
+ * </ul>
+ * Reads are spread over the primary and the replicas of a shard, and fail over to the next
+ * one when a process does not answer. Replicas follow their primary asynchronously
+ * ({@link BatchShipper}): a read may miss the observations of the last few batches.
+ */
+@Path("/api/weather")
+public class ClusterRouter {
+    /**
+     * Processes of one shard: the primary, which takes the uploads, and its replicas
+     */
+    public record Shard(URI primary, List<URI> replicas) {
+    }
+
+    private static final String BATCH = "/api/weather/observations:batch";
+
+    private static final ExecutorService FAN_OUT = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final List<Shard> shards;
+    private final Duration timeout;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final AtomicInteger reads = new AtomicInteger();
+
+    /**
+     * @param shards in shard order: station s is on shards.get(ShardMap.shardOf(s, shards.size()))
+     * @param timeout for a shard to answer
+     */
+    public ClusterRouter(List<Shard> shards, Duration timeout) {
+        this.shards = List.copyOf(shards);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Shards from their "primary|replica|replica,primary|replica..." form, shards separated
+     * by commas and the processes of a shard by |, the primary first
+     */
+    public static List<Shard> parseShards(String shards) {
+        List<Shard> parsed = new ArrayList<>();
+        for (String shard : shards.split(",")) {
+            String[] nodes = shard.trim().split("\\|");
+            List<URI> replicas = new ArrayList<>();
+            for (int i = 1; i < nodes.length; i++) {
+                replicas.add(URI.create(nodes[i].trim()));
+            }
+            parsed.add(new Shard(URI.create(nodes[0].trim()), replicas));
+        }
+        return parsed;
+    }
+
+    /** Answer of one shard */
+    private record Answer(int status, String body) {
+    }
+
+    /** No process of a shard answered */
+    private static class UnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    @GET
+    @Path("/stations")
+    @Produces({MediaType.APPLICATION_JSON, JsonRowWriter.NDJSON, CompactCbor.CBOR})
+    public Response getStation(@Context Request request) {
+        return routed(() -> {
+            Response merged = merged(all(i -> get(i, "/api/weather/stations")),
+                                     Comparator.comparing(station -> station.get("station").getAsString()), Integer.MAX_VALUE);
+            if (!WeatherAPI.isNdjson(request) || !(merged.getEntity() instanceof String body)
+                || !body.startsWith("[")) {
+                return negotiated(request, merged);
+            }
+            StringBuilder lines = new StringBuilder();
+            for (JsonElement station : JsonParser.parseString(body).getAsJsonArray()) {
+                lines.append(station).append('\n');
+            }
+            return Response.ok(lines.toString(), JsonRowWriter.NDJSON).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+        });
+    }
+
+    @GET
+    @Path("/stations/nearest")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getNearestStations(@QueryParam("k") @DefaultValue("5") int k, @Context UriInfo uriInfo,
+                                       @Context Request request) {
+        // the k nearest of every shard hold the k nearest overall
+        return routed(() -> negotiated(request, merged(all(i -> get(i, pathAndQuery(uriInfo))),
+                Comparator.comparingDouble(station -> station.get("distanceKm").getAsDouble()), k)));
+    }
+
+    @GET
+    @Path("/stations/bbox")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationsInBox(@Context UriInfo uriInfo, @Context Request request) {
+        return routed(() -> negotiated(request, merged(all(i -> get(i, pathAndQuery(uriInfo))),
+                Comparator.comparing(station -> station.get("stationId").getAsString()), Integer.MAX_VALUE)));
+    }
+
+    /**
+     * The pairs of the batch are sent to the shards of their station and the answers put back in request order
+     */
+    @POST
+    @Path("/observations:batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getObservationBatch(String body, @Context Request request) {
+        return routed(() -> {
+            List<List<Integer>> positions = new ArrayList<>();
+            List<JsonArray> requests = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                positions.add(new ArrayList<>());
+                requests.add(new JsonArray());
+            }
+            try {
+                JsonArray pairs = JsonParser.parseString(body).getAsJsonArray();
+                if (pairs.size() > SPARQLService.MAX_BATCH_SIZE) {
+                    return relay(post(0, BATCH, MediaType.APPLICATION_JSON, body.getBytes(StandardCharsets.UTF_8)));
+                }
+                for (int i = 0; i < pairs.size(); i++) {
+                    int shard = ShardMap.shardOf(pairs.get(i).getAsJsonObject().get("stationId").getAsString(), shards.size());
+                    positions.get(shard).add(i);
+                    requests.get(shard).add(pairs.get(i));
+                }
+            } catch (JsonParseException | IllegalStateException | NullPointerException | UnsupportedOperationException e) {
+                // not a batch: the shard answers the same error a single process would
+                return relay(post(0, BATCH, MediaType.APPLICATION_JSON, body.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            List<Answer> answers = all(i -> requests.get(i).isEmpty() ? new Answer(200, "[]")
+                    : post(i, BATCH, MediaType.APPLICATION_JSON, requests.get(i).toString().getBytes(StandardCharsets.UTF_8)));
+            JsonElement[] rows = new JsonElement[positions.stream().mapToInt(List::size).sum()];
+            for (int shard = 0; shard < shards.size(); shard++) {
+                JsonElement answer = JsonParser.parseString(answers.get(shard).body());
+                if (!answer.isJsonArray()) {
+                    return relay(answers.get(shard));
+                }
+                for (int i = 0; i < answer.getAsJsonArray().size(); i++) {
+                    rows[positions.get(shard).get(i)] = answer.getAsJsonArray().get(i);
+                }
+            }
+            JsonArray merged = new JsonArray();
+            for (JsonElement row : rows) {
+                merged.add(row);
+            }
+            return WeatherAPI.negotiated(request, merged.toString()).build();
+        });
+    }
+
+    /**
+     * The upload goes to the primary of every shard, each loads the observations of its own
+     * stations. Answered with the reports added up, or the first shard that did not load it.
+     */
+    @POST
+    @Path("/observations")
+    @Consumes({WeatherAPI.TURTLE, WeatherAPI.N_TRIPLES, WeatherAPI.CSV})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response postObservations(InputStream body, @HeaderParam(HttpHeaders.CONTENT_TYPE) MediaType contentType) {
+        byte[] upload;
+        try {
+            upload = body.readNBytes((int) WeatherAPI.MAX_UPLOAD_BYTES + 1);
+        } catch (IOException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(WeatherAPI.error("Cannot read the upload")).build();
+        }
+        if (upload.length > WeatherAPI.MAX_UPLOAD_BYTES) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                           .entity(WeatherAPI.error("Body larger than " + WeatherAPI.MAX_UPLOAD_BYTES + " bytes")).build();
+        }
+        return routed(() -> {
+            List<Answer> answers = all(i -> post(i, "/api/weather/observations", contentType.toString(), upload));
+            JsonObject total = new JsonObject();
+            for (String field : List.of("observations", "skipped", "late", "invalid", "triples", "batches", "millis", "maxCommitMillis")) {
+                total.addProperty(field, 0L);
+            }
+            boolean queued = false;
+            for (Answer answer : answers) {
+                if (answer.status() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+                    // shards that took it skip what they already loaded when it is sent again
+                    return Response.status(answer.status()).header("Retry-After", 5).entity(answer.body()).build();
+                }
+                if (answer.status() == Response.Status.ACCEPTED.getStatusCode()) {
+                    queued = true;
+                    continue;
+                }
+                if (answer.status() != Response.Status.OK.getStatusCode()) {
+                    return relay(answer);
+                }
+                JsonObject report = JsonParser.parseString(answer.body()).getAsJsonObject();
+                for (Map.Entry<String, JsonElement> field : total.entrySet()) {
+                    long value = report.get(field.getKey()).getAsLong();
+                    boolean longest = field.getKey().equals("millis") || field.getKey().equals("maxCommitMillis");
+                    total.addProperty(field.getKey(), longest ? Math.max(field.getValue().getAsLong(), value)
+                                                              : field.getValue().getAsLong() + value);
+                }
+            }
+            if (queued) {
+                JsonObject json = new JsonObject();
+                json.addProperty("status", "queued");
+                return Response.accepted(json.toString()).build();
+            }
+            return Response.ok(total.toString()).build();
+        });
+    }
+
+    @GET
+    @Path("/observations/latest")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getLatestObservations(@Context UriInfo uriInfo, @Context Request request) {
+        return routed(() -> negotiated(request, merged(all(i -> get(i, pathAndQuery(uriInfo))),
+                Comparator.comparing(station -> station.get("stationId").getAsString()), Integer.MAX_VALUE)));
+    }
+
+    /**
+     * The k extremes of every shard hold the k extremes overall
+     */
+    @GET
+    @Path("/extremes")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getExtremes(@QueryParam("field") String field,
+                                @QueryParam("order") @DefaultValue("highest") String order,
+                                @QueryParam("k") @DefaultValue("10") int k,
+                                @Context UriInfo uriInfo, @Context Request request) {
+        Comparator<JsonObject> byValue = Comparator.comparingDouble(reading -> reading.get(field).getAsDouble());
+        Comparator<JsonObject> ordered = ("lowest".equals(order) ? byValue : byValue.reversed())
+                .thenComparing(reading -> reading.get("date").getAsString())
+                .thenComparing(reading -> reading.get("stationId").getAsString());
+        return routed(() -> negotiated(request, merged(all(i -> get(i, pathAndQuery(uriInfo))), ordered, k)));
+    }
+
+    @GET
+    @Path("/gaps")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getGaps(@QueryParam("k") @DefaultValue("10") int k, @Context UriInfo uriInfo, @Context Request request) {
+        Comparator<JsonObject> longestFirst = Comparator.comparingInt((JsonObject gap) -> gap.get("observations").getAsInt()).reversed()
+                .thenComparing(gap -> gap.get("stationId").getAsString())
+                .thenComparing(gap -> gap.get("from").getAsString());
+        return routed(() -> negotiated(request, merged(all(i -> get(i, pathAndQuery(uriInfo))), longestFirst, k)));
+    }
+
+    /**
+     * Counters of the response caches of the shards, added up
+     */
+    @GET
+    @Path("/cache/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getCacheStats() {
+        return routed(() -> {
+            JsonObject total = new JsonObject();
+            for (Answer answer : all(i -> get(i, "/api/weather/cache/stats"))) {
+                for (Map.Entry<String, JsonElement> field : JsonParser.parseString(answer.body()).getAsJsonObject().entrySet()) {
+                    long value = field.getValue().getAsLong();
+                    total.addProperty(field.getKey(), total.has(field.getKey()) ? total.get(field.getKey()).getAsLong() + value : value);
+                }
+            }
+            return Response.ok(total.toString()).build();
+        });
+    }
+
+    @GET
+    @Path("/{stationId}")
+    @Produces({MediaType.APPLICATION_JSON, JsonRowWriter.NDJSON})
+    public Response getWeather(@PathParam("stationId") String stationId, @Context UriInfo uriInfo, @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    @GET
+    @Path("/{stationId}/{date}")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getWeatherByStationAndDate(@PathParam("stationId") String stationId, @Context UriInfo uriInfo,
+                                               @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    @GET
+    @Path("/{stationId}/series")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getSeries(@PathParam("stationId") String stationId, @Context UriInfo uriInfo, @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    @GET
+    @Path("/{stationId}/aggregate")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getAggregate(@PathParam("stationId") String stationId, @Context UriInfo uriInfo, @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    @GET
+    @Path("/{stationId}/extremes")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationExtremes(@PathParam("stationId") String stationId, @Context UriInfo uriInfo,
+                                       @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    @GET
+    @Path("/{stationId}/gaps")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationGaps(@PathParam("stationId") String stationId, @Context UriInfo uriInfo, @Context HttpHeaders headers) {
+        return forward(stationId, uriInfo, headers);
+    }
+
+    /**
+     * The request as it came, to the shard of the station, the response streamed back
+     * (in the media type the client asked the shard for)
+     */
+    private Response forward(String stationId, UriInfo uriInfo, HttpHeaders headers) {
+        return routed(() -> {
+            int shard = ShardMap.shardOf(stationId, shards.size());
+            String pathAndQuery = pathAndQuery(uriInfo);
+            HttpResponse<InputStream> response = send(shard, false, node -> {
+                HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(origin(node) + pathAndQuery)).timeout(timeout);
+                for (String header : List.of(HttpHeaders.ACCEPT, HttpHeaders.IF_NONE_MATCH)) {
+                    String value = headers == null ? null : headers.getHeaderString(header);
+                    if (value != null) {
+                        request.header(header, value);
+                    }
+                }
+                return request.build();
+            }, HttpResponse.BodyHandlers.ofInputStream());
+
+            Response.ResponseBuilder builder = Response.status(response.statusCode());
+            for (String header : List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.ETAG, HttpHeaders.CACHE_CONTROL, HttpHeaders.VARY)) {
+                response.headers().firstValue(header).ifPresent(value -> builder.header(header, value));
+            }
+            // the next page is asked to the router, not to the shard
+            String node = origin(response.uri());
+            response.headers().allValues(HttpHeaders.LINK)
+                    .forEach(link -> builder.header(HttpHeaders.LINK, link.replace(node, origin(uriInfo.getBaseUri()))));
+            InputStream body = response.body();
+            if (response.statusCode() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // nothing was left to read
+                }
+                return builder.build();
+            }
+            StreamingOutput output = out -> {
+                try (InputStream in = body) {
+                    in.transferTo(out);
+                }
+            };
+            return builder.entity(output).build();
+        });
+    }
+
+    /**
+     * Rows of the shards in one array, ordered and cut to limit. A shard without rows
+     * answers an error object ("No station has been found"): it is an error only when
+     * no shard has rows.
+     */
+    private static Response merged(List<Answer> answers, Comparator<JsonObject> order, int limit) {
+        List<JsonObject> rows = new ArrayList<>();
+        Answer error = null;
+        boolean found = false;
+        for (Answer answer : answers) {
+            JsonElement json = JsonParser.parseString(answer.body());
+            if (json.isJsonArray()) {
+                found = true;
+                json.getAsJsonArray().forEach(row -> rows.add(row.getAsJsonObject()));
+            } else if (error == null) {
+                error = answer;
+            }
+        }
+        if (!found) {
+            return relay(error);
+        }
+        rows.sort(order);
+        JsonArray merged = new JsonArray();
+        rows.stream().limit(limit).forEach(merged::add);
+        return Response.ok(merged.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * The merged rows in the media type the client prefers, errors stay JSON
+     */
+    private static Response negotiated(Request request, Response merged) {
+        if (merged.getStatus() != Response.Status.OK.getStatusCode() || !(merged.getEntity() instanceof String body)) {
+            return merged;
+        }
+        return WeatherAPI.negotiated(request, body).build();
+    }
+
+    private static Response relay(Answer answer) {
+        return Response.status(answer.status()).entity(answer.body()).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Call every shard at once and wait for all of them
+     */
+    private List<Answer> all(IntFunction<Answer> call) {
+        List<Future<Answer>> calls = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            calls.add(FAN_OUT.submit(() -> call.apply(shard)));
+        }
+        List<Answer> answers = new ArrayList<>(calls.size());
+        try {
+            for (Future<Answer> answer : calls) {
+                answers.add(answer.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException("Interrupted");
+        } finally {
+            calls.forEach(pending -> pending.cancel(true));
+        }
+        return answers;
+    }
+
+    private Answer get(int shard, String pathAndQuery) {
+        HttpResponse<String> response = send(shard, false, node -> HttpRequest.newBuilder(URI.create(origin(node) + pathAndQuery))
+                                                                              .header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON)
+                                                                              .timeout(timeout).build(),
+                                             HttpResponse.BodyHandlers.ofString());
+        return new Answer(response.statusCode(), response.body());
+    }
+
+    private Answer post(int shard, String path, String contentType, byte[] body) {
+        HttpResponse<String> response = send(shard, true, node -> HttpRequest.newBuilder(URI.create(origin(node) + path))
+                                                                             .header(HttpHeaders.CONTENT_TYPE, contentType)
+                                                                             .header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON)
+                                                                             .timeout(timeout)
+                                                                             .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                                             HttpResponse.BodyHandlers.ofString());
+        return new Answer(response.statusCode(), response.body());
+    }
+
+    /**
+     * Send to the primary of the shard for a write; for a read, to its processes in turn,
+     * starting with a different one each time, until one answers
+     */
+    private <T> HttpResponse<T> send(int shard, boolean write, Function<URI, HttpRequest> request,
+                                     HttpResponse.BodyHandler<T> handler) {
+        Shard nodes = shards.get(shard);
+        List<URI> order = new ArrayList<>();
+        order.add(nodes.primary());
+        if (!write) {
+            order.addAll(nodes.replicas());
+            Collections.rotate(order, -Math.floorMod(reads.getAndIncrement(), order.size()));
+        }
+        IOException failure = null;
+        for (URI node : order) {
+            try {
+                return client.send(request.apply(node), handler);
+            } catch (IOException e) {
+                failure = e;
+                System.out.println("Shard " + shard + " at " + node + " did not answer: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnavailableException("Interrupted");
+            }
+        }
+        throw new UnavailableException("Shard " + shard + " is unavailable: " + failure);
+    }
+
+    private Response routed(Supplier<Response> route) {
+        try {
+            return route.get();
+        } catch (UnavailableException e) {
+            return Response.status(Response.Status.BAD_GATEWAY).entity(WeatherAPI.error(e.getMessage()))
+                           .type(MediaType.APPLICATION_JSON_TYPE).build();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(WeatherAPI.error(e.getMessage()))
+                           .type(MediaType.APPLICATION_JSON_TYPE).build();
+        }
+    }
+
+    private static String pathAndQuery(UriInfo uriInfo) {
+        URI uri = uriInfo.getRequestUri();
+        return uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+    }
+
+    /**
+     * scheme://host:port of the URI
+     */
+    private static String origin(URI uri) {
+        return uri.getScheme() + "://" + uri.getRawAuthority();
+    }
+}
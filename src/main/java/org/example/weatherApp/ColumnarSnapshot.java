@@ -0,0 +1,252 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file of the {@link ColumnarStore} columns, memory-mapped when read so the
+ * measurement columns are used in place: nothing is parsed, and processes of the same
+ * host mapping the same file share its pages in the OS cache.
+ * Layout, little endian, every section aligned on 8 bytes:
+ * <pre>
+ * header      int magic, int version, int field count, int station count, one byte per field (1: int column)
+ * dictionary  per station: id and name, each a short length and UTF-8 bytes (length -1 for no name)
+ * table       per station, in dictionary order: long offset of its section, long row count
+ * section     long first date (epoch second), int delta to the previous date per row,
+ *             then per field the values (int32 or float64) and the missing value bitmap (longs)
+ * </pre>
+ * Only the dates are decoded when the file is mapped, into the long[] the binary searches need.
+ */
+final class ColumnarSnapshot {
+    private static final int MAGIC = 0x57584331; // "WXC1"
+    private static final int VERSION = 2;
+    private static final int FIELDS = WeatherVocabulary.FIELDS.size();
+
+    private ColumnarSnapshot() {
+    }
+
+    /**
+     * Write the columns to the file, replacing it atomically
+     */
+    static void write(Map<String, ColumnarStore.Columns> stations, Path file) throws IOException {
+        List<String> ids = new ArrayList<>(stations.keySet());
+        ids.sort(null);
+
+        int dictionarySize = 0;
+        for (String id : ids) {
+            String name = stations.get(id).name();
+            dictionarySize += 4 + id.getBytes(StandardCharsets.UTF_8).length
+                              + (name == null ? 0 : name.getBytes(StandardCharsets.UTF_8).length);
+        }
+        ByteBuffer dictionary = ByteBuffer.allocate(dictionarySize).order(ByteOrder.LITTLE_ENDIAN);
+        for (String id : ids) {
+            putString(dictionary, id);
+            putString(dictionary, stations.get(id).name());
+        }
+        long headerSize = align(16 + FIELDS);
+        long tableOffset = headerSize + align(dictionary.position());
+        long size = tableOffset + 16L * ids.size();
+        long[] offsets = new long[ids.size()];
+        for (int s = 0; s < ids.size(); s++) {
+            offsets[s] = size;
+            size += sectionSize(stations.get(ids.get(s)).size());
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot of " + size + " bytes, larger than one mapping");
+        }
+
+        Path partial = file.resolveSibling(file.getFileName() + ".part");
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putInt(FIELDS).putInt(ids.size());
+            for (int field = 0; field < FIELDS; field++) {
+                out.put((byte) (ColumnarStore.isIntegerField(field) ? 1 : 0));
+            }
+            out.position((int) headerSize);
+            out.put(dictionary.flip());
+            out.position((int) tableOffset);
+            for (int s = 0; s < ids.size(); s++) {
+                out.putLong(offsets[s]).putLong(stations.get(ids.get(s)).size());
+            }
+            for (int s = 0; s < ids.size(); s++) {
+                out.position((int) offsets[s]);
+                writeSection(out, stations.get(ids.get(s)));
+            }
+            out.force();
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map the file and return the columns of each station, backed by the mapping
+     * @throws IOException if the file cannot be read or was written for other measurements
+     */
+    static Map<String, ColumnarStore.Columns> map(Path file) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than one mapping");
+            }
+            // the mapping stays valid once the channel is closed
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(file + " is not a columnar snapshot of this version");
+        }
+        if (in.getInt() != FIELDS) {
+            throw new IOException(file + " holds other measurements");
+        }
+        int stationCount = in.getInt();
+        for (int field = 0; field < FIELDS; field++) {
+            if ((in.get() == 1) != ColumnarStore.isIntegerField(field)) {
+                throw new IOException(file + " holds other measurements");
+            }
+        }
+        in.position((int) align(in.position()));
+
+        String[] ids = new String[stationCount];
+        String[] names = new String[stationCount];
+        for (int s = 0; s < stationCount; s++) {
+            ids[s] = getString(in);
+            names[s] = getString(in);
+        }
+        in.position((int) align(in.position()));
+
+        Map<String, ColumnarStore.Columns> stations = new HashMap<>();
+        int table = in.position();
+        for (int s = 0; s < stationCount; s++) {
+            int offset = (int) in.getLong(table + 16 * s);
+            int rows = (int) in.getLong(table + 16 * s + 8);
+            stations.put(ids[s], readSection(in, offset, rows, names[s]));
+        }
+        return stations;
+    }
+
+    private static long sectionSize(int rows) {
+        long size = 8 + align(4L * rows);
+        for (int field = 0; field < FIELDS; field++) {
+            size += align((ColumnarStore.isIntegerField(field) ? 4L : 8L) * rows) + 8L * words(rows);
+        }
+        return size;
+    }
+
+    private static void writeSection(ByteBuffer out, ColumnarStore.Columns columns) {
+        int rows = columns.size();
+        long previous = rows == 0 ? 0 : epochSecond(columns.date(0));
+        out.putLong(previous);
+        for (int i = 0; i < rows; i++) {
+            long second = epochSecond(columns.date(i));
+            out.putInt(Math.toIntExact(second - previous));
+            previous = second;
+        }
+        pad(out);
+        for (int field = 0; field < FIELDS; field++) {
+            for (int i = 0; i < rows; i++) {
+                if (ColumnarStore.isIntegerField(field)) {
+                    out.putInt(columns.isMissing(field, i) ? 0 : columns.intValue(field, i));
+                } else {
+                    out.putDouble(columns.isMissing(field, i) ? 0 : columns.doubleValue(field, i));
+                }
+            }
+            pad(out);
+            for (int word = 0; word < words(rows); word++) {
+                out.putLong(columns.missingWord(field, word));
+            }
+        }
+    }
+
+    private static ColumnarStore.Columns readSection(ByteBuffer in, int offset, int rows, String name) {
+        long[] dates = new long[rows];
+        long second = in.getLong(offset);
+        int position = offset + 8;
+        for (int i = 0; i < rows; i++) {
+            second += in.getInt(position + 4 * i);
+            dates[i] = compactNumber(second);
+        }
+        position += (int) align(4L * rows);
+
+        DoubleBuffer[] doubles = new DoubleBuffer[FIELDS];
+        IntBuffer[] ints = new IntBuffer[FIELDS];
+        LongBuffer[] missing = new LongBuffer[FIELDS];
+        for (int field = 0; field < FIELDS; field++) {
+            if (ColumnarStore.isIntegerField(field)) {
+                ints[field] = slice(in, position, 4 * rows).asIntBuffer();
+                position += (int) align(4L * rows);
+            } else {
+                doubles[field] = slice(in, position, 8 * rows).asDoubleBuffer();
+                position += 8 * rows;
+            }
+            missing[field] = slice(in, position, 8 * words(rows)).asLongBuffer();
+            position += 8 * words(rows);
+        }
+        return new ColumnarStore.Columns(name, dates, doubles, ints, missing);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        return buffer.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long epochSecond(long compact) {
+        return LocalDateTime.of((int) (compact / 10_000_000_000L), (int) (compact / 100_000_000 % 100),
+                                (int) (compact / 1_000_000 % 100), (int) (compact / 10_000 % 100),
+                                (int) (compact / 100 % 100), (int) (compact % 100))
+                            .toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static long compactNumber(long epochSecond) {
+        LocalDateTime date = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        return date.getYear() * 10_000_000_000L + date.getMonthValue() * 100_000_000L + date.getDayOfMonth() * 1_000_000L
+               + date.getHour() * 10_000L + date.getMinute() * 100L + date.getSecond();
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int words(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static void pad(ByteBuffer out) {
+        out.position((int) align(out.position()));
+    }
+}
@@ -0,0 +1,418 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * Read-optimised copy of the observations: per station, the dates sorted in a long[]
+ * (yyyyMMddHHmmss as a number) and one primitive column per measurement and derived
+ * value, double[] or int[] as in the store, with a bitmap of the missing ("mq") values.
+ * Point lookups and range scans are binary searches over these arrays.
+ * TDB2 stays the source of truth: the store is built from it at startup, then the
+ * loader hands it every batch it commits. A commit replaces the columns of its stations
+ * with new ones, so readers never lock. The arrays have room to grow: a batch newer than
+ * the last row of a station is written past the rows of the current columns, in arrays
+ * the new columns share with them (see {@link Columns} for what readers can rely on), so
+ * a commit costs its own rows and not the station's history. Only a batch going back in
+ * time is merged into new arrays. Snapshots hold the rows, not the spare room.
+ */
+public class ColumnarStore implements IngestListener {
+    private static final int FIELDS = WeatherVocabulary.FIELDS.size();
+    private static final boolean[] INTEGER_FIELD = new boolean[FIELDS];
+    static {
+        for (int i = 0; i < FIELDS; i++) {
+            INTEGER_FIELD[i] = WeatherVocabulary.INTEGER_MEASUREMENTS.contains(WeatherVocabulary.FIELDS.get(i));
+        }
+    }
+
+    private final Map<String, Columns> stations = new ConcurrentHashMap<>();
+    private final StationIndex stationIndex = new StationIndex();
+
+    /**
+     * Batch of the transaction being committed by the current thread, applied once it is committed
+     */
+    private final ThreadLocal<Map<String, Columns>> pending = new ThreadLocal<>();
+
+    /**
+     * Observations of one station, sorted by date. The rows below {@link #size} never change,
+     * but the arrays are not immutable: the columns appended to these share them and write
+     * their rows past this size while readers of these columns go on. That is safe because:
+     * <ul>
+     * <li>readers stop at the size of the columns they hold, every lookup and scan is bounded by it;</li>
+     * <li>a row below the size is never written again: a batch going back in time is merged
+     * into new arrays, and only the loader, one commit at a time, writes;</li>
+     * <li>the rows of a missing-value word are 64 consecutive rows, so an appended row may
+     * share its word with older ones. The writer puts the word back with only that row's bit
+     * changed. A long write may be torn in two 32-bit halves when it is not volatile
+     * (JLS 17.7), but each half a reader sees is then the old or the new one, and they agree
+     * on the bits of the older rows;</li>
+     * <li>new columns are published through the station map, a ConcurrentHashMap, once their
+     * rows are written: a reader that gets them from {@link #station} sees every row below their size.</li>
+     * </ul>
+     */
+    public static final class Columns {
+        private final String name;
+        private final int size;
+        private final long[] dates;
+        // heap arrays wrapped, or views of a mapped snapshot (see ColumnarSnapshot)
+        private final DoubleBuffer[] doubles;
+        private final IntBuffer[] ints;
+        private final LongBuffer[] missing;
+
+        private Columns(String name, int size, int capacity) {
+            this.name = name;
+            this.size = size;
+            this.dates = new long[capacity];
+            this.doubles = new DoubleBuffer[FIELDS];
+            this.ints = new IntBuffer[FIELDS];
+            this.missing = new LongBuffer[FIELDS];
+            for (int field = 0; field < FIELDS; field++) {
+                missing[field] = LongBuffer.wrap(new long[(capacity + 63) >>> 6]);
+                if (INTEGER_FIELD[field]) {
+                    ints[field] = IntBuffer.wrap(new int[capacity]);
+                } else {
+                    doubles[field] = DoubleBuffer.wrap(new double[capacity]);
+                }
+            }
+        }
+
+        /**
+         * Columns over the arrays of a snapshot, no room to grow
+         */
+        Columns(String name, long[] dates, DoubleBuffer[] doubles, IntBuffer[] ints, LongBuffer[] missing) {
+            this(name, dates.length, dates, doubles, ints, missing);
+        }
+
+        private Columns(String name, int size, long[] dates, DoubleBuffer[] doubles, IntBuffer[] ints, LongBuffer[] missing) {
+            this.name = name;
+            this.size = size;
+            this.dates = dates;
+            this.doubles = doubles;
+            this.ints = ints;
+            this.missing = missing;
+        }
+
+        /**
+         * Columns with rows more, written with {@link #set} after these: in the same arrays
+         * when they have room, else in arrays twice as large with these rows copied
+         */
+        private Columns grow(String name, int rows) {
+            int grown = size + rows;
+            if (grown <= dates.length) {
+                return new Columns(name, grown, dates, doubles, ints, missing);
+            }
+            Columns copy = new Columns(name, grown, Math.max(grown, 2 * dates.length));
+            System.arraycopy(dates, 0, copy.dates, 0, size);
+            for (int field = 0; field < FIELDS; field++) {
+                missing[field].get(0, copy.missing[field].array(), 0, (size + 63) >>> 6);
+                if (INTEGER_FIELD[field]) {
+                    ints[field].get(0, copy.ints[field].array(), 0, size);
+                } else {
+                    doubles[field].get(0, copy.doubles[field].array(), 0, size);
+                }
+            }
+            return copy;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the date of row i, yyyyMMddHHmmss as a number
+         */
+        public long date(int i) {
+            return dates[i];
+        }
+
+        /**
+         * @return the row of the date, -1 if there is no observation at that date
+         */
+        public int indexOf(long date) {
+            int i = Arrays.binarySearch(dates, 0, size, date);
+            return i >= 0 ? i : -1;
+        }
+
+        /**
+         * @return the first row at or after the date
+         */
+        public int lowerBound(long date) {
+            int i = Arrays.binarySearch(dates, 0, size, date);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        /**
+         * @return the first row after the date
+         */
+        public int upperBound(long date) {
+            int i = Arrays.binarySearch(dates, 0, size, date);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        /**
+         * @param field index in {@link WeatherVocabulary#FIELDS}
+         */
+        public boolean isMissing(int field, int i) {
+            return (missing[field].get(i >>> 6) & (1L << i)) != 0;
+        }
+
+        public boolean isInteger(int field) {
+            return INTEGER_FIELD[field];
+        }
+
+        public double doubleValue(int field, int i) {
+            return doubles[field].get(i);
+        }
+
+        public int intValue(int field, int i) {
+            return ints[field].get(i);
+        }
+
+        /**
+         * Missing value bitmap of a field, bit i of word i / 64 set when row i is missing
+         */
+        long missingWord(int field, int word) {
+            return missing[field].get(word);
+        }
+
+        private void set(int i, long date, double[] values) {
+            dates[i] = date;
+            for (int field = 0; field < FIELDS; field++) {
+                double value = values[field];
+                // the row may have been written by a batch that was then aborted: clear its bit too
+                long word = missing[field].get(i >>> 6);
+                if (Double.isNaN(value)) {
+                    missing[field].put(i >>> 6, word | 1L << i);
+                    continue;
+                }
+                missing[field].put(i >>> 6, word & ~(1L << i));
+                if (INTEGER_FIELD[field]) {
+                    ints[field].put(i, (int) value);
+                } else {
+                    doubles[field].put(i, value);
+                }
+            }
+        }
+
+        private double[] row(int i) {
+            double[] values = new double[FIELDS];
+            for (int field = 0; field < FIELDS; field++) {
+                values[field] = isMissing(field, i) ? Double.NaN
+                                : INTEGER_FIELD[field] ? ints[field].get(i) : doubles[field].get(i);
+            }
+            return values;
+        }
+    }
+
+    static boolean isIntegerField(int field) {
+        return INTEGER_FIELD[field];
+    }
+
+    /**
+     * Columns of a station, null when it has no observation
+     */
+    public Columns station(String stationId) {
+        return stations.get(stationId);
+    }
+
+    /**
+     * Ids of the stations with observations, sorted
+     */
+    public List<String> stationIds() {
+        List<String> ids = new ArrayList<>(stations.keySet());
+        ids.sort(null);
+        return ids;
+    }
+
+    /**
+     * Write the columns to a snapshot file, to start the next time with {@link #loadSnapshot}
+     */
+    public void writeSnapshot(Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        ColumnarSnapshot.write(Map.copyOf(stations), file);
+        System.out.println("Columnar snapshot written to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Use the columns of a snapshot, mapped in memory, in place of building them from the
+     * store. The snapshot is only taken if it holds what the station index holds (same
+     * stations, same observation count and last observation for each).
+     * @return false when the snapshot is missing, unreadable or out of date; the store is then left empty
+     */
+    public boolean loadSnapshot(Path file, Dataset dataset) {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Columns> mapped;
+        try {
+            mapped = ColumnarSnapshot.map(file);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot read the columnar snapshot " + file + ": " + e.getMessage());
+            return false;
+        }
+        dataset.begin(ReadWrite.READ);
+        try {
+            List<StationIndex.Station> indexed = stationIndex.list(dataset.asDatasetGraph());
+            int matching = 0;
+            for (StationIndex.Station station : indexed) {
+                Columns columns = mapped.get(station.id());
+                if (columns != null && columns.size() > 0 && columns.size() == station.observationCount()
+                    && Long.toString(columns.date(columns.size() - 1)).equals(station.lastObservation())) {
+                    matching++;
+                }
+            }
+            if (matching != indexed.size() || matching != mapped.size()) {
+                System.out.println("Columnar snapshot " + file + " is out of date");
+                return false;
+            }
+        } finally {
+            dataset.end();
+        }
+        stations.clear();
+        stations.putAll(mapped);
+        System.out.println("Columnar snapshot mapped: " + stations.size() + " stations in "
+                           + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Build the columns from what the store holds.
+     */
+    public void load(Dataset dataset) {
+        long start = System.currentTimeMillis();
+        dataset.begin(ReadWrite.READ);
+        try {
+            Map<String, Columns> loaded = build(dataset.asDatasetGraph());
+            stations.clear();
+            stations.putAll(loaded);
+        } finally {
+            dataset.end();
+        }
+        System.out.println("Columnar store built: " + stations.size() + " stations in "
+                           + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        Map<String, List<ObservationGrouper.Block>> byStation = new HashMap<>();
+        for (ObservationGrouper.Block block : batch) {
+            byStation.computeIfAbsent(block.station(), id -> new ArrayList<>()).add(block);
+        }
+        Map<String, Columns> updated = new HashMap<>();
+        byStation.forEach((id, blocks) -> updated.put(id, merge(stations.get(id), stationIndex.name(dsg, id), blocks)));
+        pending.set(updated);
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        Map<String, Columns> rebuilt = build(dsg);
+        // stations of the previous content that are gone map to null
+        stations.keySet().forEach(id -> rebuilt.putIfAbsent(id, null));
+        pending.set(rebuilt);
+    }
+
+    @Override
+    public void afterCommit(Set<String> committed) {
+        Map<String, Columns> updated = pending.get();
+        pending.remove();
+        if (updated == null) {
+            return;
+        }
+        updated.forEach((id, columns) -> {
+            if (columns == null) {
+                stations.remove(id);
+            } else {
+                stations.put(id, columns);
+            }
+        });
+    }
+
+    @Override
+    public void afterAbort() {
+        pending.remove();
+    }
+
+    private Map<String, Columns> build(DatasetGraph dsg) {
+        Map<String, List<ObservationGrouper.Block>> byStation = new HashMap<>();
+        ObservationGrouper.scan(dsg.getDefaultGraph(), block -> {
+            if (block.station() != null && block.date() != null) {
+                byStation.computeIfAbsent(block.station(), id -> new ArrayList<>()).add(block);
+            }
+        });
+        Map<String, Columns> built = new HashMap<>();
+        byStation.forEach((id, blocks) -> built.put(id, merge(null, stationIndex.name(dsg, id), blocks)));
+        return built;
+    }
+
+    /**
+     * New columns holding the rows of current and the blocks, a block replacing the row of the same date.
+     * Blocks all newer than current are appended (see {@link Columns#grow}), others merged into new arrays.
+     */
+    private static Columns merge(Columns current, String name, List<ObservationGrouper.Block> blocks) {
+        blocks.sort(Comparator.comparing(ObservationGrouper.Block::date));
+        long[] dates = new long[blocks.size()];
+        int added = 0;
+        for (ObservationGrouper.Block block : blocks) {
+            long date = Long.parseLong(block.date());
+            if (added > 0 && dates[added - 1] == date) {
+                blocks.set(added - 1, block);
+            } else {
+                blocks.set(added, block);
+                dates[added++] = date;
+            }
+        }
+
+        int size = current == null ? 0 : current.size();
+        if (size > 0 && added > 0 && dates[0] > current.date(size - 1)) {
+            Columns appended = current.grow(name, added);
+            for (int j = 0; j < added; j++) {
+                appended.set(size + j, dates[j], blocks.get(j).values());
+            }
+            return appended;
+        }
+        int duplicates = 0;
+        for (int j = 0; j < added; j++) {
+            if (current != null && current.indexOf(dates[j]) >= 0) {
+                duplicates++;
+            }
+        }
+        Columns merged = new Columns(name, size + added - duplicates, size + added - duplicates);
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size || j < added) {
+            if (j == added || (i < size && current.date(i) < dates[j])) {
+                merged.set(k++, current.date(i), current.row(i));
+                i++;
+            } else {
+                if (i < size && current.date(i) == dates[j]) {
+                    i++;
+                }
+                merged.set(k++, dates[j], blocks.get(j).values());
+                j++;
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,146 @@
+package org.example.weatherApp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The JSON responses of the API as CBOR (RFC 8949), for clients that read many rows
+ * (Accept: application/cbor). Same content, in a form smaller to send and cheaper to read:
+ * <ul>
+ * <li>measurements and derived values are numbers, and "N/A" is null;</li>
+ * <li>an array of objects is written as columns, one object of arrays keyed by the
+ * fields of its rows (null where a row does not have the field), so the field names
+ * are sent once: [{"date":"a","temperature":"1.5"},{"date":"b"}] becomes
+ * {"date":["a","b"],"temperature":[1.5,null]}. Arrays of objects inside the rows
+ * are written the same way.</li>
+ * </ul>
+ * Everything else (ids, names, dates, other numbers) keeps its JSON type.
+ */
+final class CompactCbor {
+    static final String CBOR = "application/cbor";
+
+    private static final CBORFactory FACTORY = new CBORFactory();
+    private static final Set<String> FIELDS = Set.copyOf(WeatherVocabulary.FIELDS);
+
+    private CompactCbor() {
+    }
+
+    static byte[] fromJson(String json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() / 2);
+        try (JsonGenerator generator = FACTORY.createGenerator(out)) {
+            write(JsonParser.parseString(json), null, generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param field name the value has in its object, null for array items and the root
+     */
+    private static void write(JsonElement json, String field, JsonGenerator generator) throws IOException {
+        if (json.isJsonNull()) {
+            generator.writeNull();
+        } else if (json.isJsonPrimitive()) {
+            writePrimitive(json.getAsJsonPrimitive(), field, generator);
+        } else if (json.isJsonObject()) {
+            generator.writeStartObject();
+            for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+                generator.writeFieldName(member.getKey());
+                write(member.getValue(), member.getKey(), generator);
+            }
+            generator.writeEndObject();
+        } else if (isRows(json.getAsJsonArray())) {
+            writeColumns(json.getAsJsonArray(), generator);
+        } else {
+            JsonArray array = json.getAsJsonArray();
+            generator.writeStartArray(array.size());
+            for (JsonElement item : array) {
+                write(item, field, generator);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static boolean isRows(JsonArray array) {
+        if (array.isEmpty()) {
+            return false;
+        }
+        for (JsonElement item : array) {
+            if (!item.isJsonObject()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeColumns(JsonArray rows, JsonGenerator generator) throws IOException {
+        Set<String> fields = new LinkedHashSet<>();
+        for (JsonElement row : rows) {
+            fields.addAll(row.getAsJsonObject().keySet());
+        }
+        generator.writeStartObject();
+        for (String field : fields) {
+            JsonArray column = new JsonArray(rows.size());
+            for (JsonElement row : rows) {
+                JsonElement value = row.getAsJsonObject().get(field);
+                column.add(value == null ? JsonNull.INSTANCE : value);
+            }
+            generator.writeFieldName(field);
+            write(column, field, generator);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writePrimitive(JsonPrimitive value, String field, JsonGenerator generator) throws IOException {
+        if (value.isBoolean()) {
+            generator.writeBoolean(value.getAsBoolean());
+        } else if (value.isNumber()) {
+            writeNumber(value.getAsString(), generator);
+        } else if (field != null && FIELDS.contains(field)) {
+            String text = value.getAsString();
+            if (SPARQLService.MISSING_VALUE.equals(text)) {
+                generator.writeNull();
+            } else if (!writeNumber(text, generator)) {
+                generator.writeString(text);
+            }
+        } else {
+            generator.writeString(value.getAsString());
+        }
+    }
+
+    /**
+     * An integer when the text is one, a double otherwise
+     *
+     * @return false when the text is not a number, nothing is written then
+     */
+    private static boolean writeNumber(String text, JsonGenerator generator) throws IOException {
+        try {
+            generator.writeNumber(Long.parseLong(text));
+            return true;
+        } catch (NumberFormatException e) {
+            // not an integer
+        }
+        try {
+            generator.writeNumber(Double.parseDouble(text));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+/**
+ * Ingest stage computing the {@link WeatherVocabulary#DERIVED} values of normalised
+ * observations, stored as properties next to the measurements (ex:temperature_celsius...)
+ * so the API returns them without computing anything per request.
+ * A chunk of observations is turned into one array per input measurement, NaN when
+ * missing, and each metric is a loop over these arrays: straight-line arithmetic the
+ * JIT can compile to SIMD instructions, NaN flowing through to mark the values that
+ * cannot be computed. To add a metric, name it in {@link WeatherVocabulary#DERIVED} and
+ * give its kernel in {@link #KERNELS}.
+ */
+public final class DerivedMetrics {
+    /**
+     * Input measurements of a chunk, one value per observation, NaN when missing
+     * @param temperature K
+     * @param dewPoint K
+     * @param windSpeed m/s
+     * @param windDirection degrees
+     * @param humidity %
+     */
+    public record Inputs(int size, double[] temperature, double[] dewPoint, double[] windSpeed,
+                         double[] windDirection, double[] humidity) {
+    }
+
+    /**
+     * Computes one metric for every observation of a chunk, NaN where it is not defined
+     */
+    @FunctionalInterface
+    public interface Kernel {
+        void compute(Inputs in, double[] out);
+    }
+
+    /** Lower bounds in m/s of the Beaufort forces 1 to 12 */
+    private static final double[] BEAUFORT_LIMITS = {0.5, 1.6, 3.4, 5.5, 8.0, 10.8, 13.9, 17.2, 20.8, 24.5, 28.5, 32.7};
+
+    /** The 16 compass sectors, from N clockwise */
+    public static final List<String> SECTORS = List.of(
+            "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE", "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW");
+
+    private static final Map<String, Kernel> KERNELS = new LinkedHashMap<>();
+    static {
+        KERNELS.put("temperature_celsius", DerivedMetrics::celsius);
+        KERNELS.put("dew_point_depression", DerivedMetrics::dewPointDepression);
+        KERNELS.put("wind_chill", DerivedMetrics::windChill);
+        KERNELS.put("heat_index", DerivedMetrics::heatIndex);
+        KERNELS.put("beaufort", DerivedMetrics::beaufort);
+        KERNELS.put("wind_sector", DerivedMetrics::windSector);
+        if (!KERNELS.keySet().equals(new HashSet<>(WeatherVocabulary.DERIVED))) {
+            throw new IllegalStateException("Derived values without a kernel: " + WeatherVocabulary.DERIVED);
+        }
+    }
+
+    private static final Node[] PROPERTIES = new Node[WeatherVocabulary.DERIVED.size()];
+    private static final Set<String> PROPERTY_URIS = new HashSet<>();
+    static {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            PROPERTIES[i] = NodeFactory.createURI(WeatherVocabulary.NS + WeatherVocabulary.DERIVED.get(i));
+            PROPERTY_URIS.add(PROPERTIES[i].getURI());
+        }
+    }
+
+    private static final int TEMPERATURE = WeatherVocabulary.FIELDS.indexOf("temperature");
+    private static final int DEW_POINT = WeatherVocabulary.FIELDS.indexOf("dew_point");
+    private static final int WIND_SPEED = WeatherVocabulary.FIELDS.indexOf("wind_speed");
+    private static final int WIND_DIRECTION = WeatherVocabulary.FIELDS.indexOf("wind_direction");
+    private static final int HUMIDITY = WeatherVocabulary.FIELDS.indexOf("humidity");
+
+    private DerivedMetrics() {
+    }
+
+    /**
+     * The blocks with their derived values added. Blocks that are not observations pass
+     * unchanged; derived values already in a block (an export of this store) are replaced.
+     */
+    public static List<ObservationGrouper.Block> derive(List<ObservationGrouper.Block> blocks) {
+        List<ObservationGrouper.Block> observations = new ArrayList<>(blocks.size());
+        for (ObservationGrouper.Block block : blocks) {
+            if (block.station() != null && block.date() != null) {
+                observations.add(block);
+            }
+        }
+        int size = observations.size();
+        if (size == 0) {
+            return blocks;
+        }
+        Inputs in = new Inputs(size, new double[size], new double[size], new double[size], new double[size], new double[size]);
+        for (int i = 0; i < size; i++) {
+            double[] values = observations.get(i).values();
+            in.temperature()[i] = values[TEMPERATURE];
+            in.dewPoint()[i] = values[DEW_POINT];
+            in.windSpeed()[i] = values[WIND_SPEED];
+            in.windDirection()[i] = values[WIND_DIRECTION];
+            in.humidity()[i] = values[HUMIDITY];
+        }
+        double[][] derived = new double[PROPERTIES.length][];
+        for (int d = 0; d < PROPERTIES.length; d++) {
+            derived[d] = new double[size];
+            KERNELS.get(WeatherVocabulary.DERIVED.get(d)).compute(in, derived[d]);
+        }
+
+        List<ObservationGrouper.Block> result = new ArrayList<>(blocks.size());
+        int i = 0;
+        for (ObservationGrouper.Block block : blocks) {
+            if (block.station() == null || block.date() == null) {
+                result.add(block);
+                continue;
+            }
+            List<Triple> triples = new ArrayList<>(block.triples().size() + PROPERTIES.length);
+            for (Triple triple : block.triples()) {
+                if (!PROPERTY_URIS.contains(triple.getPredicate().getURI())) {
+                    triples.add(triple);
+                }
+            }
+            for (int d = 0; d < PROPERTIES.length; d++) {
+                double value = derived[d][i];
+                if (!Double.isNaN(value)) {
+                    triples.add(Triple.create(block.subject(), PROPERTIES[d], literal(WeatherVocabulary.DERIVED.get(d), value)));
+                }
+            }
+            result.add(new ObservationGrouper.Block(block.subject(), triples, block.station(), block.date()));
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #derive(List)} for one block
+     */
+    public static ObservationGrouper.Block derive(ObservationGrouper.Block block) {
+        return derive(List.of(block)).get(0);
+    }
+
+    /**
+     * Compass sector of a direction, 0 (N) to 15 (NNW), each 22.5° wide and centred on its direction
+     */
+    public static int compassSector(double degrees) {
+        return Math.floorMod((int) Math.floor((degrees + 11.25) / 22.5), 16);
+    }
+
+    private static Node literal(String name, double value) {
+        if (WeatherVocabulary.INTEGER_MEASUREMENTS.contains(name)) {
+            return NodeFactory.createLiteralDT(Integer.toString((int) value), XSDDatatype.XSDint);
+        }
+        return NodeFactory.createLiteralDT(Double.toString(value), XSDDatatype.XSDdouble);
+    }
+
+    private static void celsius(Inputs in, double[] out) {
+        double[] t = in.temperature();
+        for (int i = 0; i < in.size(); i++) {
+            out[i] = Math.rint((t[i] - 273.15) * 100) / 100;
+        }
+    }
+
+    /**
+     * Temperature minus dew point, in K (or °C): the drier the air, the larger
+     */
+    private static void dewPointDepression(Inputs in, double[] out) {
+        double[] t = in.temperature();
+        double[] td = in.dewPoint();
+        for (int i = 0; i < in.size(); i++) {
+            out[i] = Math.rint((t[i] - td[i]) * 100) / 100;
+        }
+    }
+
+    /**
+     * Wind chill index in °C (JAG/TI, as used by Environment Canada and Météo-France),
+     * defined at or below 10 °C with a wind above 4.8 km/h
+     */
+    private static void windChill(Inputs in, double[] out) {
+        double[] t = in.temperature();
+        double[] ws = in.windSpeed();
+        for (int i = 0; i < in.size(); i++) {
+            double celsius = t[i] - 273.15;
+            double kmh = ws[i] * 3.6;
+            double v = Math.pow(kmh, 0.16);
+            double chill = 13.12 + 0.6215 * celsius - 11.37 * v + 0.3965 * celsius * v;
+            out[i] = celsius <= 10 && kmh > 4.8 ? Math.rint(chill * 10) / 10 : Double.NaN;
+        }
+    }
+
+    /**
+     * Heat index in °C (Rothfusz regression of the US National Weather Service),
+     * defined from 80 °F (26.7 °C) with a relative humidity of at least 40 %
+     */
+    private static void heatIndex(Inputs in, double[] out) {
+        double[] t = in.temperature();
+        double[] rh = in.humidity();
+        for (int i = 0; i < in.size(); i++) {
+            double f = (t[i] - 273.15) * 1.8 + 32;
+            double r = rh[i];
+            double index = -42.379 + 2.04901523 * f + 10.14333127 * r - 0.22475541 * f * r
+                           - 6.83783e-3 * f * f - 5.481717e-2 * r * r + 1.22874e-3 * f * f * r
+                           + 8.5282e-4 * f * r * r - 1.99e-6 * f * f * r * r;
+            out[i] = f >= 80 && r >= 40 ? Math.rint((index - 32) / 1.8 * 10) / 10 : Double.NaN;
+        }
+    }
+
+    private static void beaufort(Inputs in, double[] out) {
+        double[] ws = in.windSpeed();
+        for (int i = 0; i < in.size(); i++) {
+            double force = 0;
+            for (double limit : BEAUFORT_LIMITS) {
+                force += ws[i] >= limit ? 1 : 0;
+            }
+            out[i] = Double.isNaN(ws[i]) ? Double.NaN : force;
+        }
+    }
+
+    private static void windSector(Inputs in, double[] out) {
+        double[] direction = in.windDirection();
+        for (int i = 0; i < in.size(); i++) {
+            out[i] = Double.isNaN(direction[i]) ? Double.NaN : compassSector(direction[i]);
+        }
+    }
+}
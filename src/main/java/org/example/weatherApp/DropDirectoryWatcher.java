@@ -0,0 +1,125 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Watches a drop directory and ingests the Turtle, N-Triples and SYNOP CSV files put in
+ * it, oldest name first. A loaded file is moved to done/, one that failed to load to
+ * failed/. Producers should write a file under another name (or elsewhere on the same
+ * disk) and rename it into the directory, so it is never read half written; names
+ * starting with '.' or ending with .part or .tmp are ignored.
+ * When the ingest queue is full the watcher waits, and the files stay in the directory.
+ */
+public class DropDirectoryWatcher implements AutoCloseable {
+    private final Path directory;
+    private final LiveIngest ingest;
+    private final WatchService watchService;
+    private final Thread thread;
+    /** Files queued and not loaded yet, so repeated events do not queue them twice */
+    private final Set<Path> pending = new HashSet<>();
+
+    public DropDirectoryWatcher(Path directory, LiveIngest ingest) {
+        this.directory = directory;
+        this.ingest = ingest;
+        try {
+            Files.createDirectories(directory.resolve("done"));
+            Files.createDirectories(directory.resolve("failed"));
+            this.watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot watch " + directory, e);
+        }
+        this.thread = new Thread(this::run, "drop-directory-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        System.out.println("Watching " + directory.toAbsolutePath() + " for new observations");
+    }
+
+    private void run() {
+        try {
+            // files dropped while the server was down
+            scan();
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        submit(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (overflow) {
+                    scan();
+                }
+                if (!key.reset()) {
+                    System.out.println("Drop directory " + directory + " is gone, no longer watching it");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void scan() throws InterruptedException {
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(directory)) {
+            files = entries.sorted().toList();
+        } catch (IOException e) {
+            System.out.println("Cannot list " + directory + ": " + e.getMessage());
+            return;
+        }
+        for (Path file : files) {
+            submit(file);
+        }
+    }
+
+    private void submit(Path file) throws InterruptedException {
+        String name = file.getFileName().toString();
+        if (!Files.isRegularFile(file) || name.startsWith(".") || name.endsWith(".part") || name.endsWith(".tmp")) {
+            return;
+        }
+        synchronized (pending) {
+            if (!pending.add(file)) {
+                return;
+            }
+        }
+        CompletableFuture<IngestPipeline.Report> result = ingest.put(file, false);
+        result.whenComplete((report, error) -> {
+            try {
+                Path target = directory.resolve(error == null ? "done" : "failed").resolve(name);
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("Cannot move " + file + " out of the drop directory: " + e.getMessage());
+            } finally {
+                synchronized (pending) {
+                    pending.remove(file);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,434 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * Extreme readings and missing-data streaks of every station, kept up to date at ingest
+ * so that "hottest readings this month" or "stations with long mq streaks" are answered
+ * from a few small arrays instead of a scan of the observations:
+ * <ul>
+ * <li>per station, field and month, the K highest and the K lowest readings, in bounded
+ * sorted arrays (an observation costs O(K) per field);</li>
+ * <li>per station and measurement, the run of consecutive missing ("N/A", mq in the SYNOP
+ * files) observations still going on, and the K longest runs that ended.</li>
+ * </ul>
+ * The runs need the observations of a station oldest first. They come in that order when
+ * the files are in date order; a batch with observations older than the last one seen
+ * for a station recomputes that station from the store.
+ * Built from the store at startup, updated in memory when a batch commits.
+ */
+public class ExtremesIndex implements IngestListener {
+    /** K kept per station, field and month, the most a query can ask for */
+    public static final int DEFAULT_CAPACITY = 20;
+
+    /**
+     * @param value the reading, in the unit of the store (Kelvin, m/s...)
+     */
+    public record Reading(String station, String field, String date, double value) {
+    }
+
+    /**
+     * Consecutive observations of a station missing the field
+     *
+     * @param from date of the first missing observation
+     * @param to   date of the last one
+     * @param open the last observation of the station is one of them, the gap may go on
+     */
+    public record Gap(String station, String field, String from, String to, int observations, boolean open) {
+    }
+
+    private static final int FIELDS = WeatherVocabulary.FIELDS.size();
+    private static final int MEASUREMENTS = WeatherVocabulary.MEASUREMENTS.size();
+    private static final Comparator<Gap> LONGEST_FIRST = Comparator.comparingInt(Gap::observations).reversed()
+                                                                   .thenComparing(Gap::station).thenComparing(Gap::from);
+
+    private final int capacity;
+    private final Map<String, Station> stations = new HashMap<>();
+    /** Changes of the batch being committed, applied once it is */
+    private final ThreadLocal<Map<String, Station>> pending = new ThreadLocal<>();
+    private volatile boolean loaded;
+
+    public ExtremesIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExtremesIndex(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Build the index from the observations in the store
+     */
+    public void load(Dataset dataset) {
+        long start = System.currentTimeMillis();
+        Map<String, Station> loaded;
+        dataset.begin(ReadWrite.READ);
+        try {
+            loaded = build(dataset.asDatasetGraph().getDefaultGraph());
+        } finally {
+            dataset.end();
+        }
+        synchronized (this) {
+            stations.clear();
+            stations.putAll(loaded);
+        }
+        this.loaded = true;
+        System.out.println("Extremes index built: " + loaded.size() + " stations in "
+                           + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Whether {@link #load} is over
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * The k highest (or lowest) readings of the field, highest (lowest) first.
+     *
+     * @param station   id, null for every station
+     * @param fromMonth first month (yyyyMM), null for no lower bound
+     * @param toMonth   last month (yyyyMM, included), null for no upper bound
+     */
+    public synchronized List<Reading> extremes(String field, String station, Integer fromMonth, Integer toMonth,
+                                               int k, boolean lowest) {
+        int index = WeatherVocabulary.FIELDS.indexOf(field);
+        List<Reading> readings = new ArrayList<>();
+        for (Map.Entry<String, Station> entry : selected(station).entrySet()) {
+            Map<Integer, Month> months = entry.getValue().months;
+            if (fromMonth != null || toMonth != null) {
+                months = entry.getValue().months.subMap(fromMonth == null ? Integer.MIN_VALUE : fromMonth, true,
+                                                        toMonth == null ? Integer.MAX_VALUE : toMonth, true);
+            }
+            for (Month month : months.values()) {
+                Top top = (lowest ? month.lowest : month.highest)[index];
+                for (int i = 0; top != null && i < top.size; i++) {
+                    readings.add(new Reading(entry.getKey(), field, Long.toString(top.dates[i]),
+                                             lowest ? -top.values[i] : top.values[i]));
+                }
+            }
+        }
+        Comparator<Reading> order = Comparator.comparingDouble(Reading::value);
+        readings.sort((lowest ? order : order.reversed()).thenComparing(Reading::date).thenComparing(Reading::station));
+        return readings.subList(0, Math.min(k, readings.size()));
+    }
+
+    /**
+     * The k longest runs of missing observations, longest first.
+     *
+     * @param field   measurement, null for all of them
+     * @param station id, null for every station
+     */
+    public synchronized List<Gap> gaps(String field, String station, int k) {
+        List<Gap> gaps = new ArrayList<>();
+        for (Map.Entry<String, Station> entry : selected(station).entrySet()) {
+            Station state = entry.getValue();
+            for (int m = 0; m < MEASUREMENTS; m++) {
+                if (field != null && !field.equals(WeatherVocabulary.MEASUREMENTS.get(m))) {
+                    continue;
+                }
+                gaps.addAll(state.longest.get(m));
+                if (state.open[m] != null) {
+                    gaps.add(state.open[m].gap(entry.getKey(), m, true));
+                }
+            }
+        }
+        gaps.sort(LONGEST_FIRST);
+        return gaps.subList(0, Math.min(k, gaps.size()));
+    }
+
+    private Map<String, Station> selected(String station) {
+        if (station == null) {
+            return new TreeMap<>(stations);
+        }
+        Station state = stations.get(station);
+        return state == null ? Map.of() : Map.of(station, state);
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        Map<String, List<ObservationGrouper.Block>> byStation = new HashMap<>();
+        for (ObservationGrouper.Block block : batch) {
+            if (block.station() != null && block.date() != null) {
+                byStation.computeIfAbsent(block.station(), id -> new ArrayList<>()).add(block);
+            }
+        }
+        Map<String, Station> updated = new HashMap<>();
+        Set<String> recomputed = new HashSet<>();
+        synchronized (this) {
+            byStation.forEach((id, blocks) -> {
+                blocks.sort(Comparator.comparing(ObservationGrouper.Block::date));
+                Station current = stations.get(id);
+                if (current != null && blocks.get(0).date().compareTo(current.last) <= 0) {
+                    recomputed.add(id);
+                } else {
+                    // applied to a copy, so the queries see the station as committed until it is
+                    Station next = current == null ? new Station(id) : current.copy();
+                    blocks.forEach(block -> next.add(block.date(), block.values()));
+                    updated.put(id, next);
+                }
+            });
+        }
+        if (!recomputed.isEmpty()) {
+            System.out.println("Observations older than the last ones of " + recomputed.size()
+                               + " stations, recomputing their extremes from the store");
+            Graph graph = dsg.getDefaultGraph();
+            for (String id : recomputed) {
+                updated.put(id, build(graph, id));
+            }
+        }
+        pending.set(updated);
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        Map<String, Station> rebuilt = build(dsg.getDefaultGraph());
+        // stations of the previous content that are gone map to null
+        synchronized (this) {
+            stations.keySet().forEach(id -> rebuilt.putIfAbsent(id, null));
+        }
+        pending.set(rebuilt);
+    }
+
+    @Override
+    public void afterCommit(Set<String> committed) {
+        Map<String, Station> updated = pending.get();
+        pending.remove();
+        if (updated == null) {
+            return;
+        }
+        synchronized (this) {
+            updated.forEach((id, state) -> {
+                if (state == null) {
+                    stations.remove(id);
+                } else {
+                    stations.put(id, state);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void afterAbort() {
+        pending.remove();
+    }
+
+    /**
+     * Replay the observations of the graph, each station oldest first
+     */
+    private Map<String, Station> build(Graph graph) {
+        Map<String, List<ObservationGrouper.Block>> byStation = new HashMap<>();
+        ObservationGrouper.scan(graph, block -> {
+            if (block.station() != null && block.date() != null) {
+                byStation.computeIfAbsent(block.station(), id -> new ArrayList<>()).add(block);
+            }
+        });
+        Map<String, Station> built = new HashMap<>();
+        byStation.forEach((id, blocks) -> built.put(id, replay(id, blocks)));
+        return built;
+    }
+
+    /**
+     * Replay the observations of one station, found by their ex:station triple instead of
+     * a scan of every observation
+     */
+    private Station build(Graph graph, String stationId) {
+        List<ObservationGrouper.Block> blocks = new ArrayList<>();
+        ObservationGrouper.scan(graph, stationId, block -> {
+            if (block.date() != null) {
+                blocks.add(block);
+            }
+        });
+        return replay(stationId, blocks);
+    }
+
+    private Station replay(String stationId, List<ObservationGrouper.Block> blocks) {
+        blocks.sort(Comparator.comparing(ObservationGrouper.Block::date));
+        Station state = new Station(stationId);
+        blocks.forEach(block -> state.add(block.date(), block.values()));
+        return state;
+    }
+
+    private final class Station {
+        private final String id;
+        private final TreeMap<Integer, Month> months = new TreeMap<>();
+        /** Months this copy changed, the others are shared with the station it was copied from */
+        private final Set<Integer> owned = new HashSet<>();
+        /** Missing run going on per measurement, null when the last observation has it */
+        private final Run[] open = new Run[MEASUREMENTS];
+        /** Longest finished runs per measurement, longest first */
+        private final List<List<Gap>> longest = new ArrayList<>(MEASUREMENTS);
+        private String last = "";
+
+        private Station(String id) {
+            this.id = id;
+            for (int m = 0; m < MEASUREMENTS; m++) {
+                longest.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * @param values in {@link WeatherVocabulary#FIELDS} order, NaN when missing
+         */
+        private void add(String date, double[] values) {
+            last = date;
+            int key = Integer.parseInt(date.substring(0, 6));
+            Month month = months.get(key);
+            if (month == null || !owned.contains(key)) {
+                month = month == null ? new Month() : month.copy();
+                months.put(key, month);
+                owned.add(key);
+            }
+            long compactDate = Long.parseLong(date);
+            for (int field = 0; field < FIELDS; field++) {
+                if (!Double.isNaN(values[field])) {
+                    month.offer(field, values[field], compactDate);
+                }
+            }
+            for (int m = 0; m < MEASUREMENTS; m++) {
+                if (Double.isNaN(values[m])) {
+                    if (open[m] == null) {
+                        open[m] = new Run(date);
+                    }
+                    open[m].to = date;
+                    open[m].observations++;
+                } else if (open[m] != null) {
+                    offerGap(m, open[m].gap(id, m, false));
+                    open[m] = null;
+                }
+            }
+        }
+
+        private void offerGap(int measurement, Gap gap) {
+            List<Gap> top = longest.get(measurement);
+            if (top.size() == capacity && gap.observations() <= top.get(top.size() - 1).observations()) {
+                return;
+            }
+            int i = top.size();
+            while (i > 0 && top.get(i - 1).observations() < gap.observations()) {
+                i--;
+            }
+            top.add(i, gap);
+            if (top.size() > capacity) {
+                top.remove(top.size() - 1);
+            }
+        }
+
+        private Station copy() {
+            Station copy = new Station(id);
+            copy.months.putAll(months);
+            for (int m = 0; m < MEASUREMENTS; m++) {
+                copy.open[m] = open[m] == null ? null : open[m].copy();
+                copy.longest.get(m).addAll(longest.get(m));
+            }
+            copy.last = last;
+            return copy;
+        }
+    }
+
+    /**
+     * Missing run being followed
+     */
+    private static final class Run {
+        private final String from;
+        private String to;
+        private int observations;
+
+        private Run(String from) {
+            this.from = from;
+            this.to = from;
+        }
+
+        private Gap gap(String station, int measurement, boolean open) {
+            return new Gap(station, WeatherVocabulary.MEASUREMENTS.get(measurement), from, to, observations, open);
+        }
+
+        private Run copy() {
+            Run copy = new Run(from);
+            copy.to = to;
+            copy.observations = observations;
+            return copy;
+        }
+    }
+
+    private final class Month {
+        private final Top[] highest = new Top[FIELDS];
+        /** Negated values, so the lowest readings are the highest of these */
+        private final Top[] lowest = new Top[FIELDS];
+
+        private void offer(int field, double value, long date) {
+            if (highest[field] == null) {
+                highest[field] = new Top(capacity);
+                lowest[field] = new Top(capacity);
+            }
+            highest[field].offer(value, date);
+            lowest[field].offer(-value, date);
+        }
+
+        private Month copy() {
+            Month copy = new Month();
+            for (int field = 0; field < FIELDS; field++) {
+                copy.highest[field] = highest[field] == null ? null : highest[field].copy();
+                copy.lowest[field] = lowest[field] == null ? null : lowest[field].copy();
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * The largest values offered, largest first, with their dates (yyyyMMddHHmmss); a
+     * value equal to one kept goes after it, so among ties the earliest offered stay
+     */
+    static final class Top {
+        private final double[] values;
+        private final long[] dates;
+        private int size;
+
+        Top(int capacity) {
+            this.values = new double[capacity];
+            this.dates = new long[capacity];
+        }
+
+        void offer(double value, long date) {
+            if (size == values.length && value <= values[size - 1]) {
+                return;
+            }
+            int i = size < values.length ? size++ : size - 1;
+            while (i > 0 && values[i - 1] < value) {
+                values[i] = values[i - 1];
+                dates[i] = dates[i - 1];
+                i--;
+            }
+            values[i] = value;
+            dates[i] = date;
+        }
+
+        private Top copy() {
+            Top copy = new Top(values.length);
+            System.arraycopy(values, 0, copy.values, 0, size);
+            System.arraycopy(dates, 0, copy.dates, 0, size);
+            copy.size = size;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * In-memory spatial index of the stations, built from their WGS84 coordinates
+ * (geo:lat, geo:long, geo:alt on ex:station/{id}). Two k-d trees over the same points:
+ * one on the unit sphere (x, y, z) for the nearest stations, where the straight line
+ * distance orders points like the great circle distance and nothing special happens
+ * at the poles or the antimeridian, one on (latitude, longitude) for bounding boxes.
+ * The trees are immutable and rebuilt when a commit touches a station, they hold a
+ * few hundred points at most.
+ */
+public class GeoIndex implements IngestListener {
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    public record Located(String id, double latitude, double longitude, Double altitude) {
+    }
+
+    /**
+     * @param distanceKm great circle distance from the query point
+     */
+    public record Neighbour(Located station, double distanceKm) {
+    }
+
+    private volatile Trees trees = new Trees(List.of());
+    private final ThreadLocal<Boolean> touched = new ThreadLocal<>();
+    private volatile Dataset dataset;
+
+    /**
+     * Build the index from the coordinates in the store, and keep the store to rebuild it after commits.
+     */
+    public void load(Dataset dataset) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            trees = new Trees(read(dataset.asDatasetGraph().getDefaultGraph()));
+        } finally {
+            dataset.end();
+        }
+        // set once the trees are built: it also tells the index is loaded
+        this.dataset = dataset;
+        System.out.println("Geo index built: " + trees.stations.size() + " located stations");
+    }
+
+    /**
+     * Whether any station of the store has coordinates
+     */
+    public static boolean hasCoordinates(Dataset dataset) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            return dataset.asDatasetGraph().getDefaultGraph().contains(Node.ANY, WeatherVocabulary.GEO_LAT, Node.ANY);
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Whether {@link #load} is over
+     */
+    public boolean isLoaded() {
+        return dataset != null;
+    }
+
+    public int size() {
+        return trees.stations.size();
+    }
+
+    /**
+     * The k stations closest to the point, closest first
+     */
+    public List<Neighbour> nearest(double latitude, double longitude, int k) {
+        Trees current = trees;
+        double[] query = unitVector(latitude, longitude);
+        List<Neighbour> neighbours = new ArrayList<>();
+        for (int i : current.sphere.nearest(query, k)) {
+            Located station = current.stations.get(i);
+            neighbours.add(new Neighbour(station, distanceKm(latitude, longitude, station.latitude(), station.longitude())));
+        }
+        return neighbours;
+    }
+
+    /**
+     * Stations inside the box, ordered by id. A box crossing the antimeridian has minLongitude greater than maxLongitude.
+     */
+    public List<Located> within(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        Trees current = trees;
+        List<Integer> found = new ArrayList<>();
+        if (minLongitude <= maxLongitude) {
+            current.plane.range(new double[] {minLatitude, minLongitude}, new double[] {maxLatitude, maxLongitude}, found);
+        } else {
+            current.plane.range(new double[] {minLatitude, minLongitude}, new double[] {maxLatitude, 180}, found);
+            current.plane.range(new double[] {minLatitude, -180}, new double[] {maxLatitude, maxLongitude}, found);
+        }
+        List<Located> stations = new ArrayList<>(found.size());
+        for (int i : found) {
+            stations.add(current.stations.get(i));
+        }
+        stations.sort(Comparator.comparing(Located::id));
+        return stations;
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        Set<String> stations = new HashSet<>();
+        for (ObservationGrouper.Block block : batch) {
+            if (block.station() != null) {
+                stations.add(block.station());
+            }
+        }
+        Trees current = trees;
+        Set<String> located = new HashSet<>();
+        current.stations.forEach(station -> located.add(station.id()));
+        // only a station seen for the first time can bring coordinates
+        if (!located.containsAll(stations)) {
+            touched.set(Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        touched.set(Boolean.TRUE);
+    }
+
+    @Override
+    public void afterCommit(Set<String> stations) {
+        boolean rebuild = touched.get() != null;
+        touched.remove();
+        if (rebuild && dataset != null) {
+            load(dataset);
+        }
+    }
+
+    @Override
+    public void afterAbort() {
+        touched.remove();
+    }
+
+    public static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                   + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                     * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static double[] unitVector(double latitude, double longitude) {
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        return new double[] {Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi)};
+    }
+
+    private static List<Located> read(Graph graph) {
+        List<Located> stations = new ArrayList<>();
+        Iterator<Triple> iter = graph.find(Node.ANY, WeatherVocabulary.GEO_LAT, Node.ANY);
+        while (iter.hasNext()) {
+            Triple triple = iter.next();
+            Node station = triple.getSubject();
+            if (!station.isURI() || !station.getURI().startsWith(StationIndex.STATION_BASE)) {
+                continue;
+            }
+            Double latitude = number(triple.getObject());
+            Double longitude = number(value(graph, station, WeatherVocabulary.GEO_LONG));
+            if (latitude != null && longitude != null) {
+                stations.add(new Located(StationIndex.stationId(station), latitude, longitude,
+                                         number(value(graph, station, WeatherVocabulary.GEO_ALT))));
+            }
+        }
+        return stations;
+    }
+
+    private static Node value(Graph graph, Node subject, Node predicate) {
+        Iterator<Triple> iter = graph.find(subject, predicate, Node.ANY);
+        return iter.hasNext() ? iter.next().getObject() : null;
+    }
+
+    private static Double number(Node node) {
+        if (node == null || !node.isLiteral()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(node.getLiteralLexicalForm());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static final class Trees {
+        private final List<Located> stations;
+        private final KdTree sphere;
+        private final KdTree plane;
+
+        private Trees(List<Located> stations) {
+            this.stations = stations;
+            double[][] sphere = new double[stations.size()][];
+            double[][] plane = new double[stations.size()][];
+            for (int i = 0; i < stations.size(); i++) {
+                Located station = stations.get(i);
+                sphere[i] = unitVector(station.latitude(), station.longitude());
+                plane[i] = new double[] {station.latitude(), station.longitude()};
+            }
+            this.sphere = new KdTree(sphere);
+            this.plane = new KdTree(plane);
+        }
+    }
+
+    /**
+     * Static k-d tree of points, stored as a median-split permutation of their indexes:
+     * the node of range [from, to) is its middle element, split on axis depth % dimensions.
+     */
+    static final class KdTree {
+        private final double[][] points;
+        private final int[] order;
+        private final int dimensions;
+
+        KdTree(double[][] points) {
+            this.points = points;
+            this.order = new int[points.length];
+            this.dimensions = points.length == 0 ? 1 : points[0].length;
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            build(0, order.length, 0);
+        }
+
+        private void build(int from, int to, int depth) {
+            if (to - from <= 1) {
+                return;
+            }
+            int axis = depth % dimensions;
+            Integer[] range = new Integer[to - from];
+            for (int i = from; i < to; i++) {
+                range[i - from] = order[i];
+            }
+            Arrays.sort(range, Comparator.comparingDouble(i -> points[i][axis]));
+            for (int i = from; i < to; i++) {
+                order[i] = range[i - from];
+            }
+            int middle = (from + to) >>> 1;
+            build(from, middle, depth + 1);
+            build(middle + 1, to, depth + 1);
+        }
+
+        /**
+         * Indexes of the k points closest to the query (Euclidean distance), closest first
+         */
+        int[] nearest(double[] query, int k) {
+            // max-heap of the best candidates so far, farthest on top
+            PriorityQueue<double[]> best = new PriorityQueue<>(Comparator.comparingDouble((double[] c) -> c[1]).reversed());
+            nearest(query, k, 0, order.length, 0, best);
+            int[] result = new int[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = (int) best.poll()[0];
+            }
+            return result;
+        }
+
+        private void nearest(double[] query, int k, int from, int to, int depth, PriorityQueue<double[]> best) {
+            if (from >= to || k <= 0) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            int point = order[middle];
+            double distance = squaredDistance(query, points[point]);
+            if (best.size() < k) {
+                best.add(new double[] {point, distance});
+            } else if (distance < best.peek()[1]) {
+                best.poll();
+                best.add(new double[] {point, distance});
+            }
+            int axis = depth % dimensions;
+            double delta = query[axis] - points[point][axis];
+            boolean left = delta < 0;
+            nearest(query, k, left ? from : middle + 1, left ? middle : to, depth + 1, best);
+            // the other side can only hold closer points if the splitting plane is closer than the worst kept
+            if (best.size() < k || delta * delta < best.peek()[1]) {
+                nearest(query, k, left ? middle + 1 : from, left ? to : middle, depth + 1, best);
+            }
+        }
+
+        /**
+         * Add the indexes of the points inside [min, max] on every axis
+         */
+        void range(double[] min, double[] max, List<Integer> found) {
+            range(min, max, 0, order.length, 0, found);
+        }
+
+        private void range(double[] min, double[] max, int from, int to, int depth, List<Integer> found) {
+            if (from >= to) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            int point = order[middle];
+            boolean inside = true;
+            for (int axis = 0; axis < dimensions; axis++) {
+                inside &= points[point][axis] >= min[axis] && points[point][axis] <= max[axis];
+            }
+            if (inside) {
+                found.add(point);
+            }
+            int axis = depth % dimensions;
+            if (min[axis] <= points[point][axis]) {
+                range(min, max, from, middle, depth + 1, found);
+            }
+            if (max[axis] >= points[point][axis]) {
+                range(min, max, middle + 1, to, depth + 1, found);
+            }
+        }
+
+        private static double squaredDistance(double[] a, double[] b) {
+            double sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                double d = a[i] - b[i];
+                sum += d * d;
+            }
+            return sum;
+        }
+    }
+}
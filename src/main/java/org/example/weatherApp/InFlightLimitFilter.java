@@ -0,0 +1,79 @@
+package org.example.weatherApp;
+
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.PreMatching;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * Caps the number of requests being served at once. Every request holds a TDB2 READ
+ * transaction while it runs; past the cap a request is answered 503 with a
+ * Retry-After right away instead of queueing behind the others. So are the requests
+ * a full {@link RequestExecutors} pool handed to its overflow threads.
+ * GET /ready and /metrics are not counted: a saturated server is when the load
+ * balancer and the monitoring need them most.
+ * The permit is given back on the FINISHED request event, which Jersey fires once the
+ * response is written, whether the request succeeded or failed.
+ */
+@PreMatching
+public class InFlightLimitFilter implements ContainerRequestFilter, ApplicationEventListener {
+    private static final String PERMIT = InFlightLimitFilter.class.getName() + ".permit";
+    private static final Set<String> EXEMPT = Set.of("ready", "metrics");
+
+    private final int maxInFlight;
+    private final int retryAfterSeconds;
+    private final Semaphore permits;
+
+    public InFlightLimitFilter(int maxInFlight, int retryAfterSeconds) {
+        this.maxInFlight = maxInFlight;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        String path = request.getUriInfo().getPath();
+        if (EXEMPT.contains(path.startsWith("/") ? path.substring(1) : path)) {
+            return;
+        }
+        if (!RequestExecutors.isOverflow() && permits.tryAcquire()) {
+            request.setProperty(PERMIT, Boolean.TRUE);
+            return;
+        }
+        request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                  .header("Retry-After", retryAfterSeconds)
+                                  .type(MediaType.APPLICATION_JSON)
+                                  .entity("{\"error\": \"Too many requests in flight, retry later\"}")
+                                  .build());
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent start) {
+        return event -> {
+            if (event.getType() == RequestEvent.Type.FINISHED
+                && event.getContainerRequest().getProperty(PERMIT) != null) {
+                event.getContainerRequest().removeProperty(PERMIT);
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Requests currently being served
+     */
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+}
@@ -0,0 +1,46 @@
+package org.example.weatherApp;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * Hook for data derived from the observations (indexes, summaries...) that must
+ * stay in step with what the loader writes.
+ */
+public interface IngestListener {
+
+    /**
+     * Called inside the WRITE transaction of every batch, just before it commits, so
+     * whatever is written here commits atomically with the observations.
+     *
+     * @param batch the observations of the batch that were not in the store before
+     */
+    default void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+    }
+
+    /**
+     * Called inside a WRITE transaction after observations reached the store without
+     * going through batches (TDB2 bulk load): recompute from the store.
+     */
+    default void rebuild(DatasetGraph dsg) {
+    }
+
+    /**
+     * Called once a batch or a bulk load is committed and its transaction ended, for
+     * state kept outside the store (caches) that must drop what it derived from the
+     * previous data.
+     *
+     * @param stations ids of the stations that received new observations
+     */
+    default void afterCommit(Set<String> stations) {
+    }
+
+    /**
+     * Called when the transaction of a batch was aborted after {@link #beforeCommit} or
+     * {@link #rebuild}: drop what was prepared for it.
+     */
+    default void afterAbort() {
+    }
+}
@@ -0,0 +1,335 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+
+/**
+ * Streaming ingest of one source into the dataset:
+ * <ul>
+ *     <li>a reader thread tokenizes the file into chunks of raw records,</li>
+ *     <li>a pool of workers builds and normalises ({@link ObservationNormalizer}) the
+ *     triples of each chunk in parallel, and adds the {@link DerivedMetrics} of the chunk,</li>
+ *     <li>the calling thread, the single TDB2 writer, adds the chunks in file order
+ *     and commits every {@code batchSize} observations.</li>
+ * </ul>
+ * Observations already in the store are skipped, and the {@link IngestListener}s see
+ * each batch of new observations before it commits. An observation older than the
+ * latest one of its station (a late report, a backfill) is written all the same and
+ * counted as late; the station's watermark only ever moves forward. An observation
+ * whose date is not a date is left out and counted as invalid, the rest of the file loads.
+ * The queue between the reader and the writer is bounded, so a slow disk stalls the
+ * parser instead of buffering the whole file. Every commit also records how many
+ * records of the file have been consumed: a load that dies midway resumes after the
+ * last committed batch the next time the same file is ingested.
+ * A shard process only keeps the blocks of its stations, the others are dropped
+ * before the writer sees them.
+ */
+public class IngestPipeline {
+    private static final int CHUNK_SIZE = 500;
+
+    private static final Future<List<ObservationGrouper.Block>> END = CompletableFuture.completedFuture(List.of());
+
+    /**
+     * Outcome of one run, for logging.
+     * @param late observations written though older than the watermark of their station
+     * @param invalid observations left out because their date is not a date
+     * @param maxCommitMillis longest commit of a batch, listeners and their after commit updates included
+     */
+    public record Report(long observations, long skipped, long late, long invalid, long triples, long batches,
+                         long millis, long maxCommitMillis) {
+        public double triplesPerSecond() {
+            return millis == 0 ? triples : triples * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d observations (%d already present, %d late, %d invalid), %d triples in %d batches, %d ms, %.0f triples/s, longest commit %d ms",
+                                 observations, skipped, late, invalid, triples, batches, millis, triplesPerSecond(), maxCommitMillis);
+        }
+    }
+
+    private final Dataset dataset;
+    private final int batchSize;
+    private final int parallelism;
+    private final List<IngestListener> listeners;
+    private final Predicate<ObservationGrouper.Block> filter;
+
+    public IngestPipeline(Dataset dataset, int batchSize, int parallelism, List<IngestListener> listeners) {
+        this(dataset, batchSize, parallelism, listeners, block -> true);
+    }
+
+    /**
+     * @param filter blocks to write, the others are ignored (see {@link ShardMap#owns(ObservationGrouper.Block)})
+     */
+    public IngestPipeline(Dataset dataset, int batchSize, int parallelism, List<IngestListener> listeners,
+                          Predicate<ObservationGrouper.Block> filter) {
+        this.dataset = dataset;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.listeners = listeners;
+        this.filter = filter;
+    }
+
+    /**
+     * @param fingerprint recorded with the source once it is loaded; null for data that is
+     *                    not a file of its own (batches shipped to a replica): nothing is
+     *                    recorded and an interrupted run does not resume
+     */
+    public <R> Report run(ObservationSource<R> source, LoaderState.Source fingerprint) {
+        long start = System.currentTimeMillis();
+        String sourceName = source.name();
+        BlockingQueue<Future<List<ObservationGrouper.Block>>> chunks = new ArrayBlockingQueue<>(parallelism * 2);
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "ingest-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LongAdder invalid = new LongAdder();
+        Thread reader = new Thread(() -> read(source, workers, chunks, invalid), "ingest-reader-" + sourceName);
+        reader.setDaemon(true);
+
+        long observations = 0;
+        long skipped = 0;
+        long late = 0;
+        long triples = 0;
+        long batches = 0;
+        long position = 0;
+        long maxCommitNanos = 0;
+        Set<String> committed = Set.of();
+        long commitStart = 0;
+        // the WRITE transaction holds changes not committed yet: aborted if the load fails
+        boolean writing = false;
+
+        Metrics.Histogram commits = Metrics.DEFAULT.histogram("weather_ingest_commit_seconds",
+                "Time to commit a batch of the ingest pipeline, listeners included", Metrics.LATENCY_BUCKETS);
+        Metrics.DEFAULT.begin(dataset, ReadWrite.WRITE);
+        writing = true;
+        try {
+            LoaderState state = new LoaderState(dataset.asDatasetGraph());
+            LoaderState.Progress progress = state.readProgress(sourceName);
+            long resumeAt = progress != null && fingerprint != null && progress.checksum().equals(fingerprint.checksum())
+                            ? progress.position() : 0;
+            if (resumeAt > 0) {
+                System.out.println("Resuming " + sourceName + " after record " + resumeAt);
+            }
+            Map<String, String> watermarks = state.readWatermarks();
+            Map<String, String> latest = new HashMap<>();
+            Graph graph = dataset.asDatasetGraph().getDefaultGraph();
+            List<ObservationGrouper.Block> batch = new ArrayList<>();
+
+            reader.start();
+            while (true) {
+                Future<List<ObservationGrouper.Block>> chunk = chunks.take();
+                if (chunk == END) {
+                    break;
+                }
+                for (ObservationGrouper.Block block : chunk.get()) {
+                    position++;
+                    if (position <= resumeAt || !filter.test(block)) {
+                        continue;
+                    }
+                    if (block.station() != null && block.date() != null) {
+                        if (graph.contains(block.subject(), Node.ANY, Node.ANY)) {
+                            skipped++;
+                            continue;
+                        }
+                        String watermark = watermarks.get(block.station());
+                        if (watermark != null && block.date().compareTo(watermark) <= 0) {
+                            late++;
+                        }
+                        latest.merge(block.station(), block.date(), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                        observations++;
+                        batch.add(block);
+                    }
+                    block.triples().forEach(graph::add);
+                    triples += block.triples().size();
+
+                    if (batch.size() >= batchSize) {
+                        commitStart = System.nanoTime();
+                        notifyListeners(batch);
+                        batch.clear();
+                        advanceWatermarks(state, watermarks, latest);
+                        Set<String> stations = new HashSet<>(latest.keySet());
+                        latest.clear();
+                        if (fingerprint != null) {
+                            state.writeProgress(sourceName, new LoaderState.Progress(fingerprint.checksum(), position));
+                        }
+                        dataset.commit();
+                        writing = false;
+                        dataset.end();
+                        batches++;
+                        notifyCommitted(stations);
+                        long commitNanos = System.nanoTime() - commitStart;
+                        commits.observeNanos(commitNanos);
+                        maxCommitNanos = Math.max(maxCommitNanos, commitNanos);
+                        Metrics.DEFAULT.begin(dataset, ReadWrite.WRITE);
+                        writing = true;
+                        state = new LoaderState(dataset.asDatasetGraph());
+                        graph = dataset.asDatasetGraph().getDefaultGraph();
+                    }
+                }
+            }
+
+            commitStart = System.nanoTime();
+            notifyListeners(batch);
+            advanceWatermarks(state, watermarks, latest);
+            if (fingerprint != null) {
+                state.clearProgress(sourceName);
+                state.writeSource(sourceName, fingerprint);
+            }
+            dataset.commit();
+            writing = false;
+            batches++;
+            committed = new HashSet<>(latest.keySet());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading " + sourceName, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load " + sourceName + " at record " + position, e.getCause());
+        } finally {
+            try {
+                if (writing) {
+                    dataset.abort();
+                    notifyAborted();
+                }
+                if (dataset.isInTransaction()) {
+                    dataset.end();
+                }
+            } finally {
+                // the reader may be blocked on a full queue
+                reader.interrupt();
+                workers.shutdownNow();
+            }
+        }
+        notifyCommitted(committed);
+        long commitNanos = System.nanoTime() - commitStart;
+        commits.observeNanos(commitNanos);
+        maxCommitNanos = Math.max(maxCommitNanos, commitNanos);
+
+        return new Report(observations, skipped, late, invalid.sum(), triples, batches, System.currentTimeMillis() - start,
+                          maxCommitNanos / 1_000_000);
+    }
+
+    /**
+     * Record the latest date of each station, unless late observations only are behind it
+     */
+    private static void advanceWatermarks(LoaderState state, Map<String, String> watermarks, Map<String, String> latest) {
+        latest.forEach((station, date) -> {
+            String watermark = watermarks.get(station);
+            if (watermark == null || date.compareTo(watermark) > 0) {
+                state.writeWatermark(station, date);
+                watermarks.put(station, date);
+            }
+        });
+    }
+
+    private void notifyListeners(List<ObservationGrouper.Block> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (IngestListener listener : listeners) {
+            listener.beforeCommit(dataset.asDatasetGraph(), batch);
+        }
+    }
+
+    private void notifyCommitted(Set<String> stations) {
+        if (stations.isEmpty()) {
+            return;
+        }
+        for (IngestListener listener : listeners) {
+            listener.afterCommit(stations);
+        }
+    }
+
+    private void notifyAborted() {
+        for (IngestListener listener : listeners) {
+            listener.afterAbort();
+        }
+    }
+
+    /**
+     * Reader thread: cut the source into chunks and hand each one to the workers.
+     * Futures are queued in file order so the writer sees the records in that order.
+     */
+    private <R> void read(ObservationSource<R> source, ExecutorService workers,
+                          BlockingQueue<Future<List<ObservationGrouper.Block>>> chunks, LongAdder invalid) {
+        List<List<R>> pending = new ArrayList<>(List.of(new ArrayList<>(CHUNK_SIZE)));
+        try {
+            source.read(record -> {
+                List<R> chunk = pending.get(0);
+                chunk.add(record);
+                if (chunk.size() == CHUNK_SIZE) {
+                    enqueue(chunks, workers.submit(() -> build(source, chunk, invalid)));
+                    pending.set(0, new ArrayList<>(CHUNK_SIZE));
+                }
+            });
+            flush(source, workers, chunks, pending.get(0), invalid);
+            enqueue(chunks, END);
+        } catch (CancelledException e) {
+            // The writer gave up, nobody is listening any more
+        } catch (Throwable t) {
+            try {
+                // Records read before the error are still good: let the writer commit them
+                flush(source, workers, chunks, pending.get(0), invalid);
+                enqueue(chunks, CompletableFuture.failedFuture(t));
+            } catch (CancelledException e) {
+                // same as above
+            }
+        }
+    }
+
+    private <R> void flush(ObservationSource<R> source, ExecutorService workers,
+                           BlockingQueue<Future<List<ObservationGrouper.Block>>> chunks, List<R> chunk,
+                           LongAdder invalid) {
+        if (!chunk.isEmpty()) {
+            enqueue(chunks, workers.submit(() -> build(source, chunk, invalid)));
+        }
+    }
+
+    private static <R> List<ObservationGrouper.Block> build(ObservationSource<R> source, List<R> chunk, LongAdder invalid) {
+        List<ObservationGrouper.Block> blocks = new ArrayList<>(chunk.size());
+        for (R record : chunk) {
+            ObservationGrouper.Block block = source.build(record);
+            ObservationGrouper.Block normalized = ObservationNormalizer.normalize(block);
+            if (normalized == null) {
+                invalid.increment();
+                // an empty block in its place, so the position of the records stays right for a resume
+                normalized = new ObservationGrouper.Block(block.subject(), List.of(), null, null);
+            }
+            blocks.add(normalized);
+        }
+        return DerivedMetrics.derive(blocks);
+    }
+
+    private static void enqueue(BlockingQueue<Future<List<ObservationGrouper.Block>>> chunks,
+                                Future<List<ObservationGrouper.Block>> chunk) {
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            // The writer gave up: stop reading
+            throw new CancelledException();
+        }
+    }
+
+    private static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes result rows as they come, either as one JSON array or as NDJSON (one object
+ * per line), so a response never has to be held in memory as a whole.
+ */
+public class JsonRowWriter {
+    public static final String NDJSON = "application/x-ndjson";
+
+    private final Writer out;
+    private final boolean ndjson;
+    private final JsonWriter json;
+    private boolean started;
+    private long count;
+
+    public JsonRowWriter(Writer out, boolean ndjson) {
+        this.out = out;
+        this.ndjson = ndjson;
+        this.json = new JsonWriter(out);
+        // NDJSON is a sequence of top level values, which Gson only accepts when lenient
+        this.json.setLenient(ndjson);
+    }
+
+    /**
+     * Start the next row and return the writer to fill it; the row is ended by the next call or {@link #finish()}.
+     */
+    public JsonWriter row() throws IOException {
+        if (started) {
+            endRow();
+        } else if (!ndjson) {
+            json.beginArray();
+        }
+        started = true;
+        count++;
+        json.beginObject();
+        return json;
+    }
+
+    /**
+     * Close the last row and the array, flushing everything to the underlying writer.
+     */
+    public void finish() throws IOException {
+        if (started) {
+            endRow();
+        } else if (!ndjson) {
+            json.beginArray();
+        }
+        if (!ndjson) {
+            json.endArray();
+        }
+        json.flush();
+    }
+
+    /**
+     * Rows started so far
+     */
+    public long count() {
+        return count;
+    }
+
+    private void endRow() throws IOException {
+        json.endObject();
+        if (ndjson) {
+            json.flush();
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Loads new observations while the server runs. Files, from the drop directory or
+ * uploaded to the API, wait in a bounded queue and a single thread hands them to
+ * {@link RDFDataLoader#loadData} one after the other, which commits them in small
+ * batches. TDB2 lets READ transactions run alongside the one writer (MR+SW), so the
+ * queries never wait for an ingest; they see each batch once it is committed.
+ * When the queue is full, {@link #offer} refuses the file: the caller retries later
+ * instead of the backlog growing without bound.
+ */
+public class LiveIngest implements AutoCloseable {
+    private record Job(Path path, boolean delete, CompletableFuture<IngestPipeline.Report> result) {
+    }
+
+    private static final Job STOP = new Job(null, false, null);
+
+    private final RDFDataLoader loader;
+    private final BlockingQueue<Job> queue;
+    private final Path spoolDirectory;
+    private final Thread writer;
+
+    /**
+     * @param queueSize files waiting to be loaded before new ones are refused
+     * @param spoolDirectory where uploaded bodies are kept until they are loaded
+     */
+    public LiveIngest(RDFDataLoader loader, int queueSize, Path spoolDirectory) {
+        this.loader = loader;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.spoolDirectory = spoolDirectory;
+        this.writer = new Thread(this::run, "live-ingest");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Queue the file unless the queue is full.
+     * @param delete remove the file once it is loaded, or once loading failed
+     * @return completed with the load report, or exceptionally with the load error; null when the queue is full
+     */
+    public CompletableFuture<IngestPipeline.Report> offer(Path path, boolean delete) {
+        Job job = new Job(path, delete, new CompletableFuture<>());
+        if (!queue.offer(job)) {
+            return rejected();
+        }
+        return job.result();
+    }
+
+    private static CompletableFuture<IngestPipeline.Report> rejected() {
+        Metrics.DEFAULT.counter("weather_ingest_rejected_total", "Files refused because the ingest queue was full").inc();
+        return null;
+    }
+
+    /**
+     * Queue the file, waiting for room in the queue
+     */
+    public CompletableFuture<IngestPipeline.Report> put(Path path, boolean delete) throws InterruptedException {
+        Job job = new Job(path, delete, new CompletableFuture<>());
+        queue.put(job);
+        return job.result();
+    }
+
+    /**
+     * Spool an uploaded body to a file and queue it, unless the queue is full.
+     * @param extension file extension telling the loader the format: ttl, nt or csv
+     * @return as {@link #offer}, null when the queue is full
+     * @throws IllegalArgumentException if the body is larger than maxBytes
+     */
+    public CompletableFuture<IngestPipeline.Report> upload(InputStream body, String extension, long maxBytes) throws IOException {
+        if (queue.remainingCapacity() == 0) {
+            return rejected();
+        }
+        Files.createDirectories(spoolDirectory);
+        Path file = Files.createTempFile(spoolDirectory, "upload-", "." + extension);
+        CompletableFuture<IngestPipeline.Report> result = null;
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                byte[] buffer = new byte[8192];
+                long size = 0;
+                int read;
+                while ((read = body.read(buffer)) >= 0) {
+                    size += read;
+                    if (size > maxBytes) {
+                        throw new IllegalArgumentException("Body larger than " + maxBytes + " bytes");
+                    }
+                    out.write(buffer, 0, read);
+                }
+            }
+            result = offer(file, true);
+            return result;
+        } finally {
+            if (result == null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Files waiting to be loaded
+     */
+    public int queued() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == STOP) {
+                return;
+            }
+            IngestPipeline.Report report = null;
+            RuntimeException failure = null;
+            try {
+                report = loader.loadData(job.path().toString());
+                System.out.println("Ingested " + job.path().getFileName() + ": " + report);
+            } catch (RuntimeException e) {
+                System.out.println("Cannot ingest " + job.path() + ": " + e.getMessage());
+                failure = e;
+            }
+            // before the result: whoever waits on it finds the upload gone
+            if (job.delete()) {
+                try {
+                    Files.deleteIfExists(job.path());
+                } catch (IOException e) {
+                    System.out.println("Cannot delete " + job.path() + ": " + e.getMessage());
+                }
+            }
+            if (failure != null) {
+                job.result().completeExceptionally(failure);
+            } else {
+                job.result().complete(report);
+            }
+        }
+    }
+
+    /**
+     * Stop once the files already queued are loaded
+     */
+    @Override
+    public void close() {
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.example.weatherApp;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * What RDFDataLoader has already written to the store: a fingerprint of every
+ * source file and, per station, the date of the latest observation loaded.
+ * Everything lives in {@link WeatherVocabulary#LOADER_GRAPH} so it is committed
+ * in the same transaction as the data it describes. While a file is being ingested in
+ * batches the state also holds how far the last committed batch got, so an
+ * interrupted load can resume from there.
+ * All methods must be called inside a transaction on the dataset.
+ */
+public class LoaderState {
+    private static final String BASE = WeatherVocabulary.LOADER_GRAPH + "/";
+    private static final Node GRAPH = NodeFactory.createURI(WeatherVocabulary.LOADER_GRAPH);
+    private static final Node SIZE = NodeFactory.createURI(WeatherVocabulary.NS + "sourceSize");
+    private static final Node MODIFIED = NodeFactory.createURI(WeatherVocabulary.NS + "sourceModified");
+    private static final Node CHECKSUM = NodeFactory.createURI(WeatherVocabulary.NS + "sourceChecksum");
+    private static final Node WATERMARK = NodeFactory.createURI(WeatherVocabulary.NS + "watermark");
+    private static final Node PROGRESS_CHECKSUM = NodeFactory.createURI(WeatherVocabulary.NS + "progressChecksum");
+    private static final Node SCHEMA_VERSION = NodeFactory.createURI(WeatherVocabulary.NS + "schemaVersion");
+    private static final Node PROGRESS_POSITION = NodeFactory.createURI(WeatherVocabulary.NS + "progressPosition");
+
+    /**
+     * Fingerprint of a source file. size and lastModified are the cheap check,
+     * checksum (SHA-256) decides when they differ.
+     */
+    public record Source(long size, long lastModified, String checksum) {
+    }
+
+    /**
+     * Ingest in progress: number of records of the file (identified by its checksum)
+     * already committed.
+     */
+    public record Progress(String checksum, long position) {
+    }
+
+    private final DatasetGraph dsg;
+
+    public LoaderState(DatasetGraph dsg) {
+        this.dsg = dsg;
+    }
+
+    /**
+     * Version of the form observations are stored in, 0 for a store written before it was recorded.
+     */
+    public int readSchemaVersion() {
+        Node version = value(GRAPH, SCHEMA_VERSION);
+        return version == null ? 0 : Integer.parseInt(version.getLiteralLexicalForm());
+    }
+
+    public void writeSchemaVersion(int version) {
+        replace(GRAPH, SCHEMA_VERSION, NodeFactory.createLiteralDT(Integer.toString(version), XSDDatatype.XSDint));
+    }
+
+    /**
+     * Forget every source and watermark, for a store whose data is dropped.
+     */
+    public void clear() {
+        dsg.deleteAny(GRAPH, Node.ANY, Node.ANY, Node.ANY);
+    }
+
+    public Source readSource(String sourceName) {
+        Node subject = sourceNode(sourceName);
+        Node size = value(subject, SIZE);
+        Node modified = value(subject, MODIFIED);
+        Node checksum = value(subject, CHECKSUM);
+        if (size == null || modified == null || checksum == null) {
+            return null;
+        }
+        return new Source(Long.parseLong(size.getLiteralLexicalForm()),
+                          Long.parseLong(modified.getLiteralLexicalForm()),
+                          checksum.getLiteralLexicalForm());
+    }
+
+    public void writeSource(String sourceName, Source source) {
+        Node subject = sourceNode(sourceName);
+        replace(subject, SIZE, NodeFactory.createLiteralDT(Long.toString(source.size()), XSDDatatype.XSDlong));
+        replace(subject, MODIFIED, NodeFactory.createLiteralDT(Long.toString(source.lastModified()), XSDDatatype.XSDlong));
+        replace(subject, CHECKSUM, NodeFactory.createLiteralString(source.checksum()));
+    }
+
+    public Progress readProgress(String sourceName) {
+        Node subject = sourceNode(sourceName);
+        Node checksum = value(subject, PROGRESS_CHECKSUM);
+        Node position = value(subject, PROGRESS_POSITION);
+        if (checksum == null || position == null) {
+            return null;
+        }
+        return new Progress(checksum.getLiteralLexicalForm(), Long.parseLong(position.getLiteralLexicalForm()));
+    }
+
+    public void writeProgress(String sourceName, Progress progress) {
+        Node subject = sourceNode(sourceName);
+        replace(subject, PROGRESS_CHECKSUM, NodeFactory.createLiteralString(progress.checksum()));
+        replace(subject, PROGRESS_POSITION, NodeFactory.createLiteralDT(Long.toString(progress.position()), XSDDatatype.XSDlong));
+    }
+
+    public void clearProgress(String sourceName) {
+        Node subject = sourceNode(sourceName);
+        dsg.deleteAny(GRAPH, subject, PROGRESS_CHECKSUM, Node.ANY);
+        dsg.deleteAny(GRAPH, subject, PROGRESS_POSITION, Node.ANY);
+    }
+
+    /**
+     * @return station id -> date (yyyyMMddHHmmss) of the latest observation loaded
+     */
+    public Map<String, String> readWatermarks() {
+        Map<String, String> watermarks = new HashMap<>();
+        Iterator<Quad> iter = dsg.find(GRAPH, Node.ANY, WATERMARK, Node.ANY);
+        while (iter.hasNext()) {
+            Quad quad = iter.next();
+            String uri = quad.getSubject().getURI();
+            String stationId = uri.substring(uri.lastIndexOf('/') + 1);
+            watermarks.put(stationId, quad.getObject().getLiteralLexicalForm());
+        }
+        return watermarks;
+    }
+
+    public void writeWatermark(String stationId, String date) {
+        replace(NodeFactory.createURI(BASE + "station/" + stationId), WATERMARK, NodeFactory.createLiteralString(date));
+    }
+
+    private Node sourceNode(String sourceName) {
+        return NodeFactory.createURI(BASE + "source/" + URLEncoder.encode(sourceName, StandardCharsets.UTF_8));
+    }
+
+    private Node value(Node subject, Node predicate) {
+        Iterator<Quad> iter = dsg.find(GRAPH, subject, predicate, Node.ANY);
+        return iter.hasNext() ? iter.next().getObject() : null;
+    }
+
+    private void replace(Node subject, Node predicate, Node object) {
+        dsg.deleteAny(GRAPH, subject, predicate, Node.ANY);
+        dsg.add(GRAPH, subject, predicate, object);
+    }
+}
@@ -0,0 +1,247 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+
+/**
+ * Counters and histograms of the server, written in the Prometheus text format by
+ * {@link MetricsResource}. Recording is a lookup in a concurrent map and a few
+ * LongAdder increments, so it can sit on the request path; everything else (sorting,
+ * cumulative buckets, formatting) happens when /metrics is scraped.
+ * A metric is identified by its name and its labels, given as name/value pairs.
+ */
+public final class Metrics {
+    /** Upper bounds in seconds of the latency histograms, 0.5 ms to 10 s */
+    public static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /** Upper bounds of the rows returned by a query */
+    public static final double[] ROW_BUCKETS = {0, 1, 10, 100, 1_000, 10_000, 100_000};
+
+    /** Registry of the application, shared by the API, the queries and the loader */
+    public static final Metrics DEFAULT = new Metrics();
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private record Family(String name, String help, Type type, Map<String, Object> children) {
+    }
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    /** Children by name and labels, so recording does not go through the families */
+    private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+    private final Histogram readWait = transactionWait("read");
+    private final Histogram writeWait = transactionWait("write");
+    private volatile long slowQueryNanos = 1_000_000_000L;
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            // the buckets are few, a linear scan beats a binary search
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double sum() {
+            return sum.sum();
+        }
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) metric(name, help, Type.COUNTER, labels, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        return (Histogram) metric(name, help, Type.HISTOGRAM, labels, () -> new Histogram(bounds));
+    }
+
+    /**
+     * Value read at scrape time, for state owned by another object (cache size, requests in flight)
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        metric(name, help, Type.GAUGE, labels, () -> value);
+    }
+
+    /**
+     * Counter kept by another object, read at scrape time
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        metric(name, help, Type.COUNTER, labels, () -> value);
+    }
+
+    /**
+     * SPARQLService calls taking at least this long are logged, 0 logs every call
+     */
+    public void setSlowQueryMillis(long millis) {
+        slowQueryNanos = millis * 1_000_000;
+    }
+
+    long slowQueryNanos() {
+        return slowQueryNanos;
+    }
+
+    /**
+     * dataset.begin(mode), its wait for the transaction recorded under weather_tdb_transaction_wait_seconds
+     * @return the wait in nanoseconds
+     */
+    public long begin(Dataset dataset, ReadWrite mode) {
+        long start = System.nanoTime();
+        dataset.begin(mode);
+        long wait = System.nanoTime() - start;
+        (mode == ReadWrite.READ ? readWait : writeWait).observeNanos(wait);
+        return wait;
+    }
+
+    private Histogram transactionWait(String mode) {
+        return histogram("weather_tdb_transaction_wait_seconds", "Time spent waiting for a TDB2 transaction to begin",
+                         LATENCY_BUCKETS, "mode", mode);
+    }
+
+    private Object metric(String name, String help, Type type, String[] labels, Supplier<Object> create) {
+        String labelText = labelText(labels);
+        Object metric = metrics.get(name + labelText);
+        if (metric != null) {
+            return metric;
+        }
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException(name + " is a " + family.type() + ", not a " + type);
+        }
+        metric = family.children().computeIfAbsent(labelText, l -> create.get());
+        metrics.putIfAbsent(name + labelText, metric);
+        return metric;
+    }
+
+    private static String labelText(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels go by name/value pairs");
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format (version 0.0.4), sorted by name
+     */
+    public void write(Writer out) throws IOException {
+        for (Family family : new TreeMap<>(families).values()) {
+            out.write("# HELP " + family.name() + " " + family.help() + "\n");
+            out.write("# TYPE " + family.name() + " " + family.type() + "\n");
+            for (Map.Entry<String, Object> child : new TreeMap<>(family.children()).entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof Counter counter) {
+                    sample(out, family.name(), labels, counter.value());
+                } else if (metric instanceof DoubleSupplier value) {
+                    sample(out, family.name(), labels, value.getAsDouble());
+                } else if (metric instanceof Histogram histogram) {
+                    writeHistogram(out, family.name(), labels, histogram);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, Histogram histogram) throws IOException {
+        // read the count first: buckets incremented since are at most counted in +Inf
+        long count = histogram.count();
+        long cumulative = 0;
+        List<String> bucketLabels = new ArrayList<>(histogram.bounds.length + 1);
+        for (double bound : histogram.bounds) {
+            bucketLabels.add(withLabel(labels, "le", format(bound)));
+        }
+        for (int i = 0; i < histogram.bounds.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            sample(out, name + "_bucket", bucketLabels.get(i), Math.min(cumulative, count));
+        }
+        sample(out, name + "_bucket", withLabel(labels, "le", "+Inf"), count);
+        sample(out, name + "_sum", labels, histogram.sum());
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name + labels + " " + format(value) + "\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
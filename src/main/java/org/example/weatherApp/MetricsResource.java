@@ -0,0 +1,36 @@
+package org.example.weatherApp;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * GET /metrics, for a Prometheus server to scrape
+ */
+@Path("/metrics")
+public class MetricsResource {
+    public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Metrics metrics;
+
+    public MetricsResource(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @GET
+    @Produces(PROMETHEUS_TEXT)
+    public Response getMetrics() {
+        StreamingOutput body = output -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            metrics.write(out);
+        };
+        return Response.ok(body).header("Cache-Control", "no-store").build();
+    }
+}
@@ -0,0 +1,121 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+/**
+ * StreamRDF sink that regroups the parser output into one block per subject.
+ * The Turtle export writes each observation as a single subject block, so the
+ * triples of an observation always arrive one after the other.
+ */
+public class ObservationGrouper extends StreamRDFBase {
+    private static final String STATION = WeatherVocabulary.NS + "station";
+    private static final String DATE = WeatherVocabulary.NS + "date";
+
+    /**
+     * All triples of one subject. station (id) and date (yyyyMMddHHmmss) are null
+     * when the subject is not an observation (e.g. station metadata).
+     */
+    public record Block(Node subject, List<Triple> triples, String station, String date) {
+
+        /**
+         * Measurement and derived values in {@link WeatherVocabulary#FIELDS} order, NaN when
+         * missing. Only meaningful once the block has been normalised.
+         */
+        public double[] values() {
+            double[] values = new double[MEASUREMENT_INDEX.size()];
+            Arrays.fill(values, Double.NaN);
+            for (Triple triple : triples) {
+                Integer index = MEASUREMENT_INDEX.get(triple.getPredicate().getURI());
+                if (index != null && triple.getObject().isLiteral()
+                    && triple.getObject().getLiteralValue() instanceof Number number) {
+                    values[index] = number.doubleValue();
+                }
+            }
+            return values;
+        }
+    }
+
+    private static final Map<String, Integer> MEASUREMENT_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < WeatherVocabulary.FIELDS.size(); i++) {
+            MEASUREMENT_INDEX.put(WeatherVocabulary.NS + WeatherVocabulary.FIELDS.get(i), i);
+        }
+    }
+
+    /**
+     * Read back every observation stored in a graph, one block each.
+     * Must be called inside a transaction.
+     */
+    public static void scan(Graph graph, Consumer<Block> consumer) {
+        scan(graph, graph.find(Node.ANY, NodeFactory.createURI(STATION), Node.ANY), consumer);
+    }
+
+    /**
+     * Read back the observations of one station, one block each. Must be called inside a transaction.
+     */
+    public static void scan(Graph graph, String stationId, Consumer<Block> consumer) {
+        scan(graph, graph.find(Node.ANY, NodeFactory.createURI(STATION), StationIndex.stationNode(stationId)), consumer);
+    }
+
+    private static void scan(Graph graph, Iterator<Triple> observations, Consumer<Block> consumer) {
+        while (observations.hasNext()) {
+            ObservationGrouper grouper = new ObservationGrouper(consumer);
+            graph.find(observations.next().getSubject(), Node.ANY, Node.ANY).forEachRemaining(grouper::triple);
+            grouper.finish();
+        }
+    }
+
+    private final Consumer<Block> consumer;
+    private Node subject;
+    private List<Triple> triples = new ArrayList<>();
+    private String station;
+    private String date;
+
+    public ObservationGrouper(Consumer<Block> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        if (subject != null && !subject.equals(triple.getSubject())) {
+            flush();
+        }
+        subject = triple.getSubject();
+        triples.add(triple);
+
+        String predicate = triple.getPredicate().getURI();
+        if (STATION.equals(predicate)) {
+            station = StationIndex.stationId(triple.getObject());
+        } else if (DATE.equals(predicate) && triple.getObject().isLiteral()) {
+            date = ObservationNormalizer.compactDate(triple.getObject());
+        }
+    }
+
+    @Override
+    public void finish() {
+        flush();
+    }
+
+    private void flush() {
+        if (subject == null) {
+            return;
+        }
+        consumer.accept(new Block(subject, triples, station, date));
+        subject = null;
+        triples = new ArrayList<>();
+        station = null;
+        date = null;
+    }
+}
@@ -0,0 +1,148 @@
+package org.example.weatherApp;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+/**
+ * Ingest stage turning the raw observation triples of the Météo-France export
+ * (every value a plain string, "mq" for missing) into typed RDF:
+ * <ul>
+ *     <li>measurements become xsd:double or xsd:int literals, which TDB2 stores inline
+ *     in its NodeIds and SPARQL compares and aggregates natively; the lexical form of
+ *     the source is kept (an integer measurement written "12.0" is rounded),</li>
+ *     <li>"mq" (or anything that is not a number) becomes an absent triple,</li>
+ *     <li>ex:date "20241101000000" becomes "2024-11-01T00:00:00Z"^^xsd:dateTime (SYNOP dates are UTC),</li>
+ *     <li>ex:station "07005" becomes a link to the station resource of the {@link StationIndex}.</li>
+ * </ul>
+ * The compact yyyyMMddHHmmss form stays the external one: the API and the loader
+ * bookkeeping use it, and {@link #compactDate} converts back.
+ */
+public final class ObservationNormalizer {
+    private static final DateTimeFormatter COMPACT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final DateTimeFormatter XSD = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    private static final String STATION = WeatherVocabulary.NS + "station";
+    private static final String DATE = WeatherVocabulary.NS + "date";
+    private static final Map<String, XSDDatatype> MEASUREMENT_TYPES = new HashMap<>();
+    static {
+        for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+            MEASUREMENT_TYPES.put(WeatherVocabulary.NS + measurement,
+                                  WeatherVocabulary.INTEGER_MEASUREMENTS.contains(measurement) ? XSDDatatype.XSDint : XSDDatatype.XSDdouble);
+        }
+    }
+
+    private ObservationNormalizer() {
+    }
+
+    /**
+     * Normalise the triples of one observation. Blocks that are not observations pass unchanged.
+     * @return null for an observation whose ex:date is not a date, which cannot be stored
+     */
+    public static ObservationGrouper.Block normalize(ObservationGrouper.Block block) {
+        if (block.station() == null || block.date() == null) {
+            return block;
+        }
+        List<Triple> triples = new ArrayList<>(block.triples().size());
+        try {
+            for (Triple triple : block.triples()) {
+                Node normalized = normalize(triple.getPredicate().getURI(), triple.getObject());
+                if (normalized != null) {
+                    triples.add(normalized == triple.getObject()
+                                ? triple : Triple.create(triple.getSubject(), triple.getPredicate(), normalized));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return new ObservationGrouper.Block(block.subject(), triples, block.station(), block.date());
+    }
+
+    /**
+     * @return the normalised object, the same node if there is nothing to do, null to drop the triple
+     */
+    private static Node normalize(String predicate, Node object) {
+        if (!object.isLiteral() || object.getLiteralDatatypeURI() != null
+                                   && !XSDDatatype.XSDstring.getURI().equals(object.getLiteralDatatypeURI())) {
+            return object; // already an IRI or a typed literal
+        }
+        String value = object.getLiteralLexicalForm().trim();
+        if (STATION.equals(predicate)) {
+            return StationIndex.stationNode(value);
+        }
+        if (DATE.equals(predicate)) {
+            return dateTime(value);
+        }
+        XSDDatatype type = MEASUREMENT_TYPES.get(predicate);
+        if (type == null) {
+            return object;
+        }
+        if (value.isEmpty() || "mq".equals(value)) {
+            return null;
+        }
+        if (type.isValid(value)) {
+            return NodeFactory.createLiteralDT(value, type); // the source's lexical form, "282.650000" stays so
+        }
+        try {
+            if (type == XSDDatatype.XSDint) {
+                return NodeFactory.createLiteralDT(Integer.toString((int) Math.round(Double.parseDouble(value))), type);
+            }
+            return null;
+        } catch (NumberFormatException e) {
+            return null; // not a measurement: same as missing
+        }
+    }
+
+    /**
+     * xsd:dateTime literal of a compact date. yyyyMMdd, yyyyMMddHH... are accepted and
+     * completed with zeros.
+     *
+     * @throws IllegalArgumentException if the value is not a date
+     */
+    public static Node dateTime(String compact) {
+        if (compact.length() < 8 || compact.length() > 14) {
+            throw new IllegalArgumentException("Invalid date: " + compact);
+        }
+        try {
+            LocalDateTime dateTime = LocalDateTime.parse((compact + "000000").substring(0, 14), COMPACT);
+            return NodeFactory.createLiteralDT(dateTime.format(XSD), XSDDatatype.XSDdateTime);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + compact, e);
+        }
+    }
+
+    /**
+     * Compact date as the number yyyyMMddHHmmss, accepting and validating the same forms as {@link #dateTime}.
+     */
+    public static long compactNumber(String compact) {
+        dateTime(compact);
+        return Long.parseLong((compact + "000000").substring(0, 14));
+    }
+
+    /**
+     * Compact yyyyMMddHHmmss form of an ex:date value, typed or not.
+     */
+    public static String compactDate(Node date) {
+        String lexical = date.getLiteralLexicalForm();
+        if (!XSDDatatype.XSDdateTime.getURI().equals(date.getLiteralDatatypeURI())) {
+            return lexical;
+        }
+        StringBuilder digits = new StringBuilder(14);
+        for (int i = 0; i < lexical.length() && digits.length() < 14; i++) {
+            char c = lexical.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+
+/**
+ * A file the loader can ingest. Reading is split in two so the ingest pipeline can
+ * spread the work: {@link #read} runs on a single reader thread and only tokenizes
+ * the input into raw records, {@link #build} turns one raw record into triples and
+ * may run on any worker thread.
+ *
+ * @param <R> the raw record handed from the reader to the workers
+ */
+public interface ObservationSource<R> {
+
+    Path path();
+
+    default String name() {
+        return path().getFileName().toString();
+    }
+
+    void read(Consumer<R> sink) throws IOException;
+
+    ObservationGrouper.Block build(R record);
+
+    /**
+     * Pick the source implementation from the file extension: .csv is a
+     * Météo-France SYNOP dump, anything else must be an RDF syntax Jena knows.
+     */
+    static ObservationSource<?> open(Path path) {
+        String fileName = path.getFileName().toString().toLowerCase();
+        if (fileName.endsWith(".csv")) {
+            return new SynopCsvSource(path);
+        }
+        Lang lang = RDFLanguages.filenameToLang(fileName);
+        if (lang == null) {
+            throw new IllegalArgumentException("Unsupported file format: " + path);
+        }
+        return new RdfSource(path, lang);
+    }
+}
@@ -0,0 +1,94 @@
+package org.example.weatherApp;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.algebra.Table;
+import org.apache.jena.sparql.algebra.TableFactory;
+import org.apache.jena.sparql.algebra.Transformer;
+import org.apache.jena.sparql.algebra.op.OpProject;
+import org.apache.jena.sparql.algebra.op.OpSequence;
+import org.apache.jena.sparql.algebra.op.OpSlice;
+import org.apache.jena.sparql.algebra.op.OpTable;
+import org.apache.jena.sparql.algebra.optimize.TransformTopN;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingBuilder;
+
+/**
+ * A SPARQL query parsed, compiled to algebra and optimised once, then executed
+ * any number of times with values bound to its parameter variables.
+ * Values are substituted as RDF terms into the algebra, never spliced into the
+ * query text, so a parameter cannot change the shape of the query.
+ */
+public class PreparedQuery {
+    private final Query query;
+    private final Op op;
+
+    public PreparedQuery(String sparql) {
+        this.query = QueryFactory.create(sparql);
+        this.op = Algebra.optimize(Algebra.compile(query));
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * Run the query. Must be called inside a READ transaction, and the iterator
+     * closed before the transaction ends.
+     *
+     * @param params value of each parameter variable, by variable name
+     */
+    public QueryIterator execute(DatasetGraph dsg, Map<String, Node> params) {
+        return Algebra.exec(bind(params), dsg);
+    }
+
+    /**
+     * Run the query for its first limit solutions only: an ORDER BY query then keeps
+     * the limit best solutions in a bounded heap (top-N) instead of sorting all of them.
+     * Must be called inside a READ transaction, and the iterator closed before the
+     * transaction ends.
+     */
+    public QueryIterator execute(DatasetGraph dsg, Map<String, Node> params, long limit) {
+        return Algebra.exec(Transformer.transform(new TransformTopN(), new OpSlice(bind(params), 0, limit)), dsg);
+    }
+
+    private Op bind(Map<String, Node> params) {
+        if (params.isEmpty()) {
+            return op;
+        }
+        BindingBuilder builder = Binding.builder();
+        params.forEach((name, value) -> builder.add(Var.alloc(name), value));
+        return Substitute.substitute(op, builder.build());
+    }
+
+    /**
+     * Run the query for every row of values in a single execution, as if the rows were
+     * a VALUES block placed ahead of the query: each row is substituted into the
+     * patterns in turn (index join) and its variables stay bound in its results, so
+     * results come out grouped by row, in row order. The variables of the rows must be
+     * projected by the query to be read back.
+     * Must be called inside a READ transaction, and the iterator closed before the
+     * transaction ends.
+     */
+    public QueryIterator execute(DatasetGraph dsg, List<Binding> rows) {
+        Table table = TableFactory.create();
+        rows.forEach(table::addBinding);
+        // The rows go under the SELECT projection: above it they would be a join with a
+        // sub-query, whose variables are out of their scope and never substituted
+        if (op instanceof OpProject project) {
+            return Algebra.exec(new OpProject(OpSequence.create(OpTable.create(table), project.getSubOp()),
+                                              project.getVars()), dsg);
+        }
+        return Algebra.exec(OpSequence.create(OpTable.create(table), op), dsg);
+    }
+}
@@ -0,0 +1,36 @@
+package org.example.weatherApp;
+
+import jakarta.ws.rs.core.Response;
+
+/**
+ * A query of {@link SPARQLService} that cannot be answered, with the status the API
+ * answers for it: 400 for a bad parameter, 404 for a station or observation that is not
+ * in the store, 503 for a query the server is not set up to answer (an index not enabled).
+ * It is thrown before any row is written, so a streamed response can still get its status.
+ */
+public class QueryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final Response.Status status;
+
+    public QueryException(Response.Status status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    static QueryException badRequest(String message) {
+        return new QueryException(Response.Status.BAD_REQUEST, message);
+    }
+
+    static QueryException notFound(String message) {
+        return new QueryException(Response.Status.NOT_FOUND, message);
+    }
+
+    static QueryException unavailable(String message) {
+        return new QueryException(Response.Status.SERVICE_UNAVAILABLE, message);
+    }
+
+    public Response.Status status() {
+        return status;
+    }
+}
@@ -0,0 +1,66 @@
+package org.example.weatherApp;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+
+/**
+ * Timing of one SPARQLService call: time to get the READ transaction, total time and
+ * rows returned, recorded per method and per store (tdb2 or columnar).
+ * A call slower than {@link Metrics#setSlowQueryMillis} is logged with its arguments.
+ */
+final class QueryTrace {
+    private static final Map<String, Instruments> INSTRUMENTS = new ConcurrentHashMap<>();
+
+    private record Instruments(Metrics.Histogram duration, Metrics.Histogram rows, Metrics.Counter slow) {
+    }
+
+    private final String method;
+    private final String store;
+    private final Object[] args;
+    private final long start = System.nanoTime();
+    private long wait;
+    private long rows;
+
+    private QueryTrace(String method, String store, Object[] args) {
+        this.method = method;
+        this.store = store;
+        this.args = args;
+    }
+
+    static QueryTrace start(String method, String store, Object... args) {
+        return new QueryTrace(method, store, args);
+    }
+
+    /**
+     * Begin the READ transaction of the call
+     */
+    void begin(Dataset dataset) {
+        wait += Metrics.DEFAULT.begin(dataset, ReadWrite.READ);
+    }
+
+    void rows(long rows) {
+        this.rows += rows;
+    }
+
+    void finish() {
+        long elapsed = System.nanoTime() - start;
+        Instruments instruments = INSTRUMENTS.computeIfAbsent(method + "/" + store, key -> new Instruments(
+                Metrics.DEFAULT.histogram("weather_sparql_query_seconds", "Time spent in a SPARQLService method, transaction wait included",
+                                          Metrics.LATENCY_BUCKETS, "method", method, "store", store),
+                Metrics.DEFAULT.histogram("weather_sparql_query_rows", "Rows returned by a SPARQLService method",
+                                          Metrics.ROW_BUCKETS, "method", method, "store", store),
+                Metrics.DEFAULT.counter("weather_sparql_slow_queries_total", "SPARQLService calls over the slow query threshold",
+                                        "method", method, "store", store)));
+        instruments.duration().observeNanos(elapsed);
+        instruments.rows().observe(rows);
+        if (elapsed >= Metrics.DEFAULT.slowQueryNanos()) {
+            instruments.slow().inc();
+            System.out.printf("Slow query: %s%s on %s took %d ms (transaction wait %d ms), %d rows%n",
+                              method, Arrays.toString(args), store, elapsed / 1_000_000, wait / 1_000_000, rows);
+        }
+    }
+}
@@ -1,46 +1,360 @@
 package org.example.weatherApp;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.ReadWrite;
-import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.Statement;
-import org.apache.jena.rdf.model.StmtIterator;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.sys.TDBInternal;
 
 public class RDFDataLoader {
     private static final String TDB_DIRECTORY = "tdb-dataset";
+    private static final int DEFAULT_BATCH_SIZE = 5000; // observations per commit
+    /**
+     * Form the observations are stored in. 1: plain strings as in the Turtle export,
+     * 2: typed by {@link ObservationNormalizer}, 3: with the {@link RollupStore} summaries,
+     * 4: with the {@link DerivedMetrics} values.
+     */
+    private static final int SCHEMA_VERSION = 4;
     private final Dataset dataset;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private boolean bulkLoaderEnabled = true;
+    private ShardMap shard;
+    private final List<IngestListener> listeners = new ArrayList<>();
 
     public RDFDataLoader() {
         // Create data set
-        this.dataset = TDB2Factory.connectDataset(TDB_DIRECTORY);
+        this(TDB_DIRECTORY);
+    }
+
+    /**
+     * @param tdbDirectory TDB2 store, one per process: TDB2 locks it
+     */
+    public RDFDataLoader(String tdbDirectory) {
+        this(TDB2Factory.connectDataset(tdbDirectory));
+    }
+
+    public RDFDataLoader(Dataset dataset) {
+        this.dataset = dataset;
+        this.listeners.add(new StationIndex());
+        this.listeners.add(new RollupStore());
+    }
+
+    /**
+     * Register derived data to maintain as observations are loaded.
+     */
+    public void addListener(IngestListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Run the task while no file or batch is being loaded: what it reads of the store
+     * stays the latest state until it returns, e.g. to build a listener from the store
+     * without missing a batch committed meanwhile.
+     */
+    public synchronized void runBetweenLoads(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Number of observations written per transaction by the batched pipeline.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Number of worker threads building triples in the batched pipeline.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Whether an RDF file loaded into an empty TDB2 store goes through the TDB2 bulk loader.
+     */
+    public void setBulkLoaderEnabled(boolean bulkLoaderEnabled) {
+        this.bulkLoaderEnabled = bulkLoaderEnabled;
+    }
+
+    /**
+     * Only keep the observations and station resources of the stations of this shard,
+     * null (the default) to keep everything.
+     */
+    public void setShard(ShardMap shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Load a Turtle file or a SYNOP CSV dump into the dataset, incrementally.
+     * An unchanged file (same size and modification time, or same checksum) is skipped
+     * without being parsed. A changed file is streamed and only the observations not in
+     * the store yet are written, so re-running on a file that only grew loads just the
+     * appended observations. Large files are committed in batches of
+     * {@link #setBatchSize} observations, and an interrupted load resumes after the
+     * last committed batch. One load runs at a time.
+     * @return what was written, nothing for a file already loaded
+     */
+    public synchronized IngestPipeline.Report loadData(String rdfFilePath) {
+        long start = System.currentTimeMillis();
+        Path path = Paths.get(rdfFilePath);
+        String sourceName = path.getFileName().toString();
+        long size;
+        long lastModified;
+        try {
+            size = Files.size(path);
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + rdfFilePath, e);
+        }
+
+        upgradeSchema();
+
+        LoaderState.Source recorded;
+        dataset.begin(ReadWrite.READ);
+        try {
+            recorded = new LoaderState(dataset.asDatasetGraph()).readSource(sourceName);
+        } finally {
+            dataset.end();
+        }
+        if (recorded != null && recorded.size() == size && recorded.lastModified() == lastModified) {
+            System.out.println(sourceName + " is up to date, nothing to load");
+            return new IngestPipeline.Report(0, 0, 0, 0, 0, 0, System.currentTimeMillis() - start, 0);
+        }
+
+        String checksum = checksum(path);
+        LoaderState.Source current = new LoaderState.Source(size, lastModified, checksum);
+
+        if (recorded != null && recorded.checksum().equals(checksum)) {
+            // Touched but not modified: only refresh the fingerprint
+            dataset.begin(ReadWrite.WRITE);
+            try {
+                new LoaderState(dataset.asDatasetGraph()).writeSource(sourceName, current);
+                dataset.commit();
+            } finally {
+                dataset.end();
+            }
+            System.out.println(sourceName + " is unchanged, nothing to load");
+            return new IngestPipeline.Report(0, 0, 0, 0, 0, 0, System.currentTimeMillis() - start, 0);
+        }
+
+        ObservationSource<?> source = ObservationSource.open(path);
+        if (bulkLoaderEnabled && source instanceof RdfSource && isEmptyTDB2()) {
+            return bulkLoad(source, current);
+        } else {
+            IngestPipeline.Report report = pipeline().run(source, current);
+            System.out.println("Loaded " + sourceName + ": " + report);
+            recordLoad("pipeline", report.observations(), report.triples(), report.millis());
+            Metrics.DEFAULT.counter("weather_ingest_skipped_observations_total",
+                                    "Observations already in the store when loaded again").add(report.skipped());
+            Metrics.DEFAULT.counter("weather_ingest_invalid_observations_total",
+                                    "Observations left out because their date is not a date").add(report.invalid());
+            Metrics.DEFAULT.counter("weather_ingest_late_observations_total",
+                                    "Observations written though older than the latest of their station").add(report.late());
+            return report;
+        }
+    }
+
+    /**
+     * Apply an N-Triples batch shipped by the primary of this replica ({@link BatchShipper}).
+     * It goes through the pipeline like a file, so the station index, rollups and columns
+     * follow, but it is not recorded as a source. Observations already in the store are
+     * skipped: a batch sent twice changes nothing.
+     */
+    public synchronized IngestPipeline.Report replicate(Path batch) {
+        upgradeSchema();
+        return pipeline().run(new RdfSource(batch, Lang.NTRIPLES), null);
+    }
+
+    /**
+     * Summary of every station: latest observation and number of observations
+     */
+    public List<StationIndex.Station> readStations() {
+        dataset.begin(ReadWrite.READ);
+        try {
+            return new StationIndex().list(dataset.asDatasetGraph());
+        } finally {
+            dataset.end();
+        }
     }
 
-    public void loadData(String rdfFilePath) {
+    private IngestPipeline pipeline() {
+        ShardMap shard = this.shard;
+        return new IngestPipeline(dataset, batchSize, parallelism, listeners,
+                                  shard == null ? block -> true : shard::owns);
+    }
+
+    /**
+     * A store written by an older loader holds observations in a form the queries no
+     * longer match: drop them and the loader bookkeeping, so every source is loaded
+     * again through the current pipeline.
+     */
+    private void upgradeSchema() {
+        dataset.begin(ReadWrite.READ);
+        try {
+            if (new LoaderState(dataset.asDatasetGraph()).readSchemaVersion() == SCHEMA_VERSION) {
+                return;
+            }
+        } finally {
+            dataset.end();
+        }
         dataset.begin(ReadWrite.WRITE);
         try {
-            Model model = dataset.getDefaultModel();
-            model.read(rdfFilePath, "TURTLE"); // load RDF data in format .ttl
-            System.out.println("Loaded model size: " + model.size());
-            //model.write(System.out, "TURTLE"); // output .ttl to terminal
-
-            // Print 07005 observation for examining
-            model = dataset.getDefaultModel();
-            StmtIterator iter = model.listStatements(null, model.createProperty("http://example.org/weather#station"), "07005");
-            while (iter.hasNext()) {
-                Statement stmt = iter.nextStatement();
-                System.out.println("Observation: " + stmt.getSubject());
+            DatasetGraph dsg = dataset.asDatasetGraph();
+            LoaderState state = new LoaderState(dsg);
+            if (!dsg.getDefaultGraph().isEmpty()) {
+                System.out.println("Store written with schema version " + state.readSchemaVersion()
+                                   + ", dropping it to reload with version " + SCHEMA_VERSION);
+                dsg.clear();
             }
+            state.clear();
+            state.writeSchemaVersion(SCHEMA_VERSION);
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * An empty TDB2 store can be filled by the TDB2 bulk loader, which builds the
+     * indexes in parallel outside the normal transaction machinery. It is all or
+     * nothing: an interrupted bulk load is not resumable like the batched pipeline.
+     */
+    private boolean isEmptyTDB2() {
+        DatasetGraph dsg = dataset.asDatasetGraph();
+        if (!TDBInternal.isTDB2(dsg)) {
+            return false;
+        }
+        dataset.begin(ReadWrite.READ);
+        try {
+            return dsg.getDefaultGraph().isEmpty();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    private <R> IngestPipeline.Report bulkLoad(ObservationSource<R> source, LoaderState.Source fingerprint) {
+        long start = System.currentTimeMillis();
+        Map<String, String> latest = new HashMap<>();
+        long[] observations = new long[1];
+        long[] invalid = new long[1];
+
+        DataLoader bulkLoader = LoaderFactory.parallelLoader(dataset.asDatasetGraph(),
+                                                             (fmt, args) -> System.out.println(String.format(fmt, args)));
+        bulkLoader.startBulk();
+        try {
+            StreamRDF destination = bulkLoader.stream();
+            source.read(record -> {
+                ObservationGrouper.Block block = ObservationNormalizer.normalize(source.build(record));
+                if (block == null) {
+                    invalid[0]++;
+                    return;
+                }
+                block = DerivedMetrics.derive(block);
+                if (shard != null && !shard.owns(block)) {
+                    return;
+                }
+                if (block.station() != null && block.date() != null) {
+                    latest.merge(block.station(), block.date(), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                    observations[0]++;
+                }
+                block.triples().forEach(destination::triple);
+            });
+            bulkLoader.finishBulk();
+        } catch (IOException | RuntimeException e) {
+            bulkLoader.finishException(e);
+            throw new IllegalStateException("Bulk load of " + source.name() + " failed", e);
+        }
 
+        long commitStart = System.currentTimeMillis();
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            LoaderState state = new LoaderState(dataset.asDatasetGraph());
+            latest.forEach(state::writeWatermark);
+            state.writeSource(source.name(), fingerprint);
+            for (IngestListener listener : listeners) {
+                listener.rebuild(dataset.asDatasetGraph());
+            }
             dataset.commit();
+        } catch (RuntimeException e) {
+            dataset.abort();
+            listeners.forEach(IngestListener::afterAbort);
+            throw e;
         } finally {
             dataset.end();
         }
+        for (IngestListener listener : listeners) {
+            listener.afterCommit(latest.keySet());
+        }
 
+        long millis = System.currentTimeMillis() - start;
+        long triples = bulkLoader.countTriples();
+        recordLoad("bulk", observations[0], triples, millis);
+        System.out.printf("Bulk loaded %s: %d observations (%d invalid), %d triples, %d ms, %.0f triples/s%n",
+                          source.name(), observations[0], invalid[0], triples, millis, millis == 0 ? triples : triples * 1000.0 / millis);
+        return new IngestPipeline.Report(observations[0], 0, 0, invalid[0], triples, 1, millis, System.currentTimeMillis() - commitStart);
+    }
+
+    private static void recordLoad(String loader, long observations, long triples, long millis) {
+        Metrics.DEFAULT.counter("weather_ingest_observations_total", "Observations written by the loader", "loader", loader)
+                       .add(observations);
+        Metrics.DEFAULT.counter("weather_ingest_triples_total", "Triples written by the loader", "loader", loader)
+                       .add(triples);
+        Metrics.DEFAULT.histogram("weather_ingest_load_seconds", "Time to load a file", new double[] {1, 5, 15, 60, 300, 900, 3600},
+                                  "loader", loader).observe(millis / 1000.0);
+    }
+
+    private static String checksum(Path path) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + path, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Give the stations already in the store the coordinates of the station list, for
+     * stores loaded before it had any; stations written from now on get them as they are loaded.
+     * @return the number of stations given coordinates
+     */
+    public synchronized int writeStationCoordinates() {
+        Metrics.DEFAULT.begin(dataset, ReadWrite.WRITE);
+        try {
+            int written = new StationIndex().writeCoordinates(dataset.asDatasetGraph());
+            dataset.commit();
+            return written;
+        } finally {
+            dataset.end();
+        }
     }
 
     public Dataset getDataset() {
         return dataset;
     }
 }
-
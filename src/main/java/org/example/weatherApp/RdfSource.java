@@ -0,0 +1,40 @@
+package org.example.weatherApp;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+
+/**
+ * RDF file (Turtle, N-Triples...) streamed through the Jena parser.
+ * The parser already produces triples, so the reader thread does all the work here.
+ */
+public class RdfSource implements ObservationSource<ObservationGrouper.Block> {
+    private final Path path;
+    private final Lang lang;
+
+    public RdfSource(Path path, Lang lang) {
+        this.path = path;
+        this.lang = lang;
+    }
+
+    @Override
+    public Path path() {
+        return path;
+    }
+
+    public Lang lang() {
+        return lang;
+    }
+
+    @Override
+    public void read(Consumer<ObservationGrouper.Block> sink) {
+        RDFParser.source(path).lang(lang).parse(new ObservationGrouper(sink));
+    }
+
+    @Override
+    public ObservationGrouper.Block build(ObservationGrouper.Block block) {
+        return block;
+    }
+}
@@ -0,0 +1,54 @@
+package org.example.weatherApp;
+
+import java.util.function.BooleanSupplier;
+
+import com.google.gson.JsonObject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * GET /ready, for a load balancer to send requests only to warm processes: 200 once the
+ * indexes built at startup are and the first {@link CacheWarmer} run is over, 503 until
+ * then. The process serves as soon as its port is open, it is only slower, and the
+ * queries of the indexes not built yet incomplete, while this says not ready.
+ */
+@Path("/ready")
+public class ReadinessResource {
+    private final CacheWarmer warmer;
+    private final BooleanSupplier indexed;
+
+    /**
+     * @param warmer null when there is no warm-up: ready at once
+     */
+    public ReadinessResource(CacheWarmer warmer) {
+        this(warmer, () -> true);
+    }
+
+    /**
+     * @param indexed whether the indexes built in the background at startup are
+     */
+    public ReadinessResource(CacheWarmer warmer, BooleanSupplier indexed) {
+        this.warmer = warmer;
+        this.indexed = indexed;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getReadiness() {
+        boolean indexesReady = indexed.getAsBoolean();
+        boolean ready = indexesReady && (warmer == null || warmer.isReady());
+        JsonObject json = new JsonObject();
+        json.addProperty("ready", ready);
+        json.addProperty("indexes", indexesReady);
+        if (warmer != null) {
+            json.addProperty("stations", warmer.stations());
+            json.addProperty("lastWarmupMillis", warmer.lastRunMillis());
+        }
+        return Response.status(ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+                       .entity(json.toString()).type(MediaType.APPLICATION_JSON_TYPE)
+                       .header("Cache-Control", "no-store").build();
+    }
+}
@@ -0,0 +1,116 @@
+package org.example.weatherApp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.google.gson.JsonObject;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Endpoints of a replica for its primary's {@link BatchShipper}: POST /replication/batches
+ * takes a batch committed by the primary, answered once it is committed here so the
+ * primary only sends the next one after it; GET /replication/stations tells how far
+ * the replica got, for the primary to send what it missed.
+ * Both write or reveal the store, so they answer 403 to a call without the
+ * {@link BatchShipper#TOKEN_HEADER} the replica was started with.
+ */
+@jakarta.ws.rs.Path("/replication")
+public class ReplicationResource {
+    private final RDFDataLoader loader;
+    private final Path spoolDirectory;
+    private final byte[] token;
+
+    /**
+     * @param spoolDirectory where a batch is kept while it is loaded
+     * @param token secret shared with the primary
+     */
+    public ReplicationResource(RDFDataLoader loader, Path spoolDirectory, String token) {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A replica needs a replication token (-Dweather.replication.token)");
+        }
+        this.loader = loader;
+        this.spoolDirectory = spoolDirectory;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Date of the latest observation of each station and how many it has,
+     * {"07005": {"last": "20241115090000", "observations": 1234}, ...}
+     */
+    @GET
+    @jakarta.ws.rs.Path("/stations")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStations(@HeaderParam(BatchShipper.TOKEN_HEADER) String token) {
+        if (!authorized(token)) {
+            return forbidden();
+        }
+        JsonObject json = new JsonObject();
+        for (StationIndex.Station station : loader.readStations()) {
+            if (station.observationCount() > 0) {
+                JsonObject summary = new JsonObject();
+                summary.addProperty("last", station.lastObservation());
+                summary.addProperty("observations", station.observationCount());
+                json.add(station.id(), summary);
+            }
+        }
+        return Response.ok(json.toString()).build();
+    }
+
+    @POST
+    @jakarta.ws.rs.Path("/batches")
+    @Consumes(BatchShipper.N_TRIPLES)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response postBatch(@HeaderParam(BatchShipper.TOKEN_HEADER) String token, InputStream body) {
+        if (!authorized(token)) {
+            return forbidden();
+        }
+        Path file = null;
+        try {
+            Files.createDirectories(spoolDirectory);
+            file = Files.createTempFile(spoolDirectory, "batch-", ".nt");
+            Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+            IngestPipeline.Report report = loader.replicate(file);
+            JsonObject json = new JsonObject();
+            json.addProperty("observations", report.observations());
+            json.addProperty("skipped", report.skipped());
+            json.addProperty("late", report.late());
+            json.addProperty("invalid", report.invalid());
+            json.addProperty("triples", report.triples());
+            return Response.ok(json.toString()).build();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot apply a replicated batch: " + e.getMessage());
+            JsonObject json = new JsonObject();
+            json.addProperty("error", "Cannot apply the batch: " + e.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(json.toString()).build();
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    System.out.println("Cannot delete " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private boolean authorized(String token) {
+        // in constant time, not to tell how much of it is right
+        return token != null && MessageDigest.isEqual(this.token, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Response forbidden() {
+        return Response.status(Response.Status.FORBIDDEN).entity(WeatherAPI.error("Missing or wrong replication token"))
+                       .type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+}
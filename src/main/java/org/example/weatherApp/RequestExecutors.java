@@ -0,0 +1,67 @@
+package org.example.weatherApp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors the JDK HTTP server can run requests on. Without one it handles every
+ * exchange on its single dispatcher thread, so a slow query holds up everybody.
+ */
+public final class RequestExecutors {
+    public static final String VIRTUAL = "virtual";
+    public static final String POOL = "pool";
+
+    /** Threads taking the exchanges a full pool rejects */
+    private static final int OVERFLOW_THREADS = 2;
+
+    /** Set on the overflow threads */
+    private static final ThreadLocal<Boolean> OVERFLOW = new ThreadLocal<>();
+
+    private RequestExecutors() {
+    }
+
+    /**
+     * @param mode    "virtual": one virtual thread per request, "pool": a fixed pool of platform threads
+     * @param threads size of the platform pool, ignored for virtual threads
+     */
+    public static ExecutorService create(String mode, int threads) {
+        switch (mode) {
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+            case POOL:
+                AtomicInteger count = new AtomicInteger();
+                // a rejected exchange would make the server's dispatcher close the connection without a
+                // word: it goes to the overflow threads instead, where InFlightLimitFilter answers it 503
+                ThreadPoolExecutor overflow = new ThreadPoolExecutor(OVERFLOW_THREADS, OVERFLOW_THREADS, 60, TimeUnit.SECONDS,
+                                                                     new ArrayBlockingQueue<>(threads * 16),
+                                                                     runnable -> daemon(() -> {
+                                                                         OVERFLOW.set(Boolean.TRUE);
+                                                                         runnable.run();
+                                                                     }, "http-overflow-" + count.getAndIncrement()),
+                                                                     new ThreadPoolExecutor.AbortPolicy());
+                // the in-flight limit only counts the requests running, the queue takes the bursts
+                return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 16),
+                                              runnable -> daemon(runnable, "http-" + count.getAndIncrement()),
+                                              (runnable, pool) -> overflow.execute(runnable));
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + mode + ", expected " + VIRTUAL + " or " + POOL);
+        }
+    }
+
+    /**
+     * Whether the current thread runs an exchange the pool had no room for: it is only answered 503
+     */
+    public static boolean isOverflow() {
+        return OVERFLOW.get() != null;
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.weatherApp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.glassfish.jersey.uri.UriTemplate;
+
+/**
+ * Latency of every request per endpoint, from the moment Jersey starts on it to the
+ * FINISHED event, which comes once the response (streamed ones included) is written.
+ * Endpoints are labelled by their path template (/api/weather/{stationId}/{date}),
+ * not by the actual path, so station ids and dates do not each make a new series.
+ */
+public class RequestMetrics implements ApplicationEventListener {
+    private final Metrics metrics;
+    private final Map<String, Metrics.Histogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Metrics.Counter> requests = new ConcurrentHashMap<>();
+
+    public RequestMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent start) {
+        long startNanos = System.nanoTime();
+        return event -> {
+            if (event.getType() != RequestEvent.Type.FINISHED) {
+                return;
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            String method = event.getContainerRequest().getMethod();
+            String path = template(event.getUriInfo());
+            latencies.computeIfAbsent(method + " " + path, key -> metrics.histogram(
+                    "weather_http_request_duration_seconds", "Time to serve a request, response written",
+                    Metrics.LATENCY_BUCKETS, "method", method, "path", path)).observeNanos(elapsed);
+            String status = Integer.toString(event.getContainerResponse() != null ? event.getContainerResponse().getStatus() : 500);
+            requests.computeIfAbsent(method + " " + path + " " + status, key -> metrics.counter(
+                    "weather_http_requests_total", "Requests served, by status",
+                    "method", method, "path", path, "status", status)).inc();
+        };
+    }
+
+    /**
+     * Path template of the matched resource method, "unmatched" when no method was matched
+     * (404, or a request rejected by a pre-matching filter)
+     */
+    private static String template(ExtendedUriInfo uriInfo) {
+        List<UriTemplate> templates = uriInfo.getMatchedTemplates();
+        if (uriInfo.getMatchedResourceMethod() == null || templates.isEmpty()) {
+            return "unmatched";
+        }
+        // innermost first
+        StringBuilder path = new StringBuilder();
+        for (int i = templates.size() - 1; i >= 0; i--) {
+            String template = templates.get(i).getTemplate();
+            if (!template.startsWith("/")) {
+                path.append('/');
+            }
+            path.append(template);
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package org.example.weatherApp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Serialized API responses keyed by endpoint and parameters, bounded by their total
+ * size (least recently used out first) and by a time to live.
+ * Each entry remembers the station it was computed for; the loader reports the
+ * stations of every commit so only their entries, and the entries spanning all
+ * stations (station null), are dropped.
+ */
+public class ResponseCache implements IngestListener {
+    /** Rough per entry overhead (key, map node, ETag) added to the body size */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * @param etag strong validator of the body (ETag header value without the quotes)
+     * @param station id of the station the response depends on, null when it depends on all of them
+     */
+    public record Entry(String body, String etag, String station, long expiresAt) {
+        long weight() {
+            return 2L * body.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, long invalidations, int entries, long bytes, long maxBytes) {
+    }
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    /** Bumped by every invalidation, so a response computed across a commit is not stored */
+    private long generation;
+
+    public ResponseCache(long maxBytes, Duration ttl) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    /**
+     * Cached response for the key, or the one computed by the loader, stored unless a
+     * commit for its station happened while it was being computed: the next request asks
+     * again. A loader that throws (a {@link QueryException}) leaves nothing in the cache.
+     */
+    public Entry get(String key, String station, Supplier<String> loader) {
+        long seen;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+                hits++;
+                return entry;
+            }
+            if (entry != null) {
+                remove(key);
+                evictions++;
+            }
+            misses++;
+            seen = generation;
+        }
+
+        String body = loader.get();
+        Entry entry = new Entry(body, etag(body), station, System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            if (seen == generation && entry.weight() <= maxBytes) {
+                Entry previous = entries.put(key, entry);
+                if (previous != null) {
+                    bytes -= previous.weight();
+                }
+                bytes += entry.weight();
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void afterCommit(Set<String> stations) {
+        generation++;
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.station() == null || stations.contains(entry.station())) {
+                iter.remove();
+                bytes -= entry.weight();
+                invalidations++;
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, invalidations, entries.size(), bytes, maxBytes);
+    }
+
+    private void evict() {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            Entry eldest = iter.next();
+            iter.remove();
+            bytes -= eldest.weight();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.weight();
+        }
+    }
+
+    private static String etag(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
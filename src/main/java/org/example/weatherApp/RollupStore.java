@@ -0,0 +1,250 @@
+package org.example.weatherApp;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.DatasetGraph;
+
+/**
+ * Pre-aggregated summaries of the observations: for every station and every hour,
+ * day and month, the count, min, max and sum of each measurement.
+ * A rollup is a resource of {@link WeatherVocabulary#ROLLUP_GRAPH} named
+ * rollup/{station}/{granularity}/{period}, so a time range is answered with one
+ * subject lookup per period instead of a scan of the raw 3-hourly observations.
+ * The loader folds every batch into the rollups before it commits.
+ */
+public class RollupStore implements IngestListener {
+    private static final String ROLLUP_BASE = "http://example.org/weather/rollup/";
+    private static final Node GRAPH = NodeFactory.createURI(WeatherVocabulary.ROLLUP_GRAPH);
+    private static final Node STATION = NodeFactory.createURI(WeatherVocabulary.NS + "station");
+    private static final Node GRANULARITY = NodeFactory.createURI(WeatherVocabulary.NS + "granularity");
+    private static final Node PERIOD = NodeFactory.createURI(WeatherVocabulary.NS + "period");
+
+    /** Longest range a single request may ask for, in periods */
+    public static final int MAX_PERIODS = 10_000;
+
+    /**
+     * count, min, max, sum properties of each measurement, e.g. ex:temperature_min
+     */
+    private static final Node[][] FIELD_PROPERTIES = new Node[WeatherVocabulary.MEASUREMENTS.size()][];
+    static {
+        for (int i = 0; i < FIELD_PROPERTIES.length; i++) {
+            String field = WeatherVocabulary.NS + WeatherVocabulary.MEASUREMENTS.get(i);
+            FIELD_PROPERTIES[i] = new Node[] {
+                    NodeFactory.createURI(field + "_count"),
+                    NodeFactory.createURI(field + "_min"),
+                    NodeFactory.createURI(field + "_max"),
+                    NodeFactory.createURI(field + "_sum")
+            };
+        }
+    }
+
+    public enum Granularity {
+        HOUR("yyyyMMddHH", ChronoUnit.HOURS),
+        DAY("yyyyMMdd", ChronoUnit.DAYS),
+        MONTH("yyyyMM", ChronoUnit.MONTHS);
+
+        private final DateTimeFormatter format;
+        private final ChronoUnit unit;
+
+        Granularity(String pattern, ChronoUnit unit) {
+            this.format = DateTimeFormatter.ofPattern(pattern);
+            this.unit = unit;
+        }
+
+        public static Granularity parse(String value) {
+            try {
+                return valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid granularity: " + value + ", expected hour, day or month");
+            }
+        }
+
+        /**
+         * Start of the period containing the given time.
+         */
+        public LocalDateTime truncate(LocalDateTime time) {
+            return this == MONTH ? time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1) : time.truncatedTo(unit);
+        }
+
+        public LocalDateTime next(LocalDateTime periodStart) {
+            return periodStart.plus(1, unit);
+        }
+
+        String key(LocalDateTime periodStart) {
+            return periodStart.format(format);
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Summary of one measurement over one period.
+     */
+    public record Aggregate(long count, double min, double max, double sum) {
+        public double mean() {
+            return sum / count;
+        }
+
+        Aggregate merge(Aggregate other) {
+            return new Aggregate(count + other.count, Math.min(min, other.min), Math.max(max, other.max), sum + other.sum);
+        }
+    }
+
+    /**
+     * @param start  first instant of the period
+     * @param fields one aggregate per measurement in {@link WeatherVocabulary#MEASUREMENTS} order, null when
+     *               the measurement is missing from every observation of the period
+     */
+    public record Period(LocalDateTime start, Aggregate[] fields) {
+    }
+
+    private static final DateTimeFormatter COMPACT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    /**
+     * Periods of a station between two instants, both included, oldest first.
+     * Periods without observations are left out. Must be called inside a READ transaction.
+     */
+    public List<Period> query(DatasetGraph dsg, String stationId, Granularity granularity,
+                              LocalDateTime from, LocalDateTime to) {
+        Graph graph = dsg.getGraph(GRAPH);
+        List<Period> periods = new ArrayList<>();
+        LocalDateTime last = granularity.truncate(to);
+        int visited = 0;
+        for (LocalDateTime start = granularity.truncate(from); !start.isAfter(last); start = granularity.next(start)) {
+            if (++visited > MAX_PERIODS) {
+                throw new IllegalArgumentException("Range too long: more than " + MAX_PERIODS + " " + granularity + "s");
+            }
+            Aggregate[] fields = read(graph, rollupNode(stationId, granularity, start));
+            if (fields != null) {
+                periods.add(new Period(start, fields));
+            }
+        }
+        return periods;
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        Map<Node, Rollup> rollups = new HashMap<>();
+        for (ObservationGrouper.Block block : batch) {
+            add(rollups, block);
+        }
+        Graph graph = dsg.getGraph(GRAPH);
+        for (Map.Entry<Node, Rollup> entry : rollups.entrySet()) {
+            Aggregate[] stored = read(graph, entry.getKey());
+            Rollup rollup = entry.getValue();
+            if (stored != null) {
+                for (int i = 0; i < stored.length; i++) {
+                    if (stored[i] != null) {
+                        rollup.fields[i] = rollup.fields[i] == null ? stored[i] : rollup.fields[i].merge(stored[i]);
+                    }
+                }
+                graph.remove(entry.getKey(), Node.ANY, Node.ANY);
+            }
+            write(graph, entry.getKey(), rollup);
+        }
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        Map<Node, Rollup> rollups = new HashMap<>();
+        ObservationGrouper.scan(dsg.getDefaultGraph(), block -> add(rollups, block));
+        Graph graph = dsg.getGraph(GRAPH);
+        graph.clear();
+        rollups.forEach((node, rollup) -> write(graph, node, rollup));
+    }
+
+    /**
+     * Rollup being built for one station and period.
+     */
+    private static class Rollup {
+        final String stationId;
+        final Granularity granularity;
+        final LocalDateTime start;
+        final Aggregate[] fields = new Aggregate[FIELD_PROPERTIES.length];
+
+        Rollup(String stationId, Granularity granularity, LocalDateTime start) {
+            this.stationId = stationId;
+            this.granularity = granularity;
+            this.start = start;
+        }
+    }
+
+    private static void add(Map<Node, Rollup> rollups, ObservationGrouper.Block block) {
+        LocalDateTime time = LocalDateTime.parse(block.date(), COMPACT);
+        double[] values = block.values();
+        for (Granularity granularity : Granularity.values()) {
+            LocalDateTime start = granularity.truncate(time);
+            Rollup rollup = rollups.computeIfAbsent(rollupNode(block.station(), granularity, start),
+                                                    node -> new Rollup(block.station(), granularity, start));
+            for (int i = 0; i < rollup.fields.length; i++) {
+                if (!Double.isNaN(values[i])) {
+                    Aggregate value = new Aggregate(1, values[i], values[i], values[i]);
+                    rollup.fields[i] = rollup.fields[i] == null ? value : rollup.fields[i].merge(value);
+                }
+            }
+        }
+    }
+
+    private static Node rollupNode(String stationId, Granularity granularity, LocalDateTime start) {
+        return NodeFactory.createURI(ROLLUP_BASE + stationId + "/" + granularity + "/" + granularity.key(start));
+    }
+
+    /**
+     * @return the stored aggregates of a rollup, null if there is no such rollup
+     */
+    private static Aggregate[] read(Graph graph, Node rollup) {
+        Iterator<Triple> iter = graph.find(rollup, Node.ANY, Node.ANY);
+        if (!iter.hasNext()) {
+            return null;
+        }
+        Map<Node, Double> values = new HashMap<>();
+        while (iter.hasNext()) {
+            Triple triple = iter.next();
+            if (triple.getObject().isLiteral() && triple.getObject().getLiteralValue() instanceof Number number) {
+                values.put(triple.getPredicate(), number.doubleValue());
+            }
+        }
+        Aggregate[] fields = new Aggregate[FIELD_PROPERTIES.length];
+        for (int i = 0; i < fields.length; i++) {
+            Node[] properties = FIELD_PROPERTIES[i];
+            Double count = values.get(properties[0]);
+            if (count != null) {
+                fields[i] = new Aggregate(count.longValue(), values.get(properties[1]),
+                                          values.get(properties[2]), values.get(properties[3]));
+            }
+        }
+        return fields;
+    }
+
+    private static void write(Graph graph, Node node, Rollup rollup) {
+        graph.add(node, STATION, StationIndex.stationNode(rollup.stationId));
+        graph.add(node, GRANULARITY, NodeFactory.createLiteralString(rollup.granularity.toString()));
+        graph.add(node, PERIOD, ObservationNormalizer.dateTime(rollup.start.format(COMPACT)));
+        for (int i = 0; i < rollup.fields.length; i++) {
+            Aggregate aggregate = rollup.fields[i];
+            if (aggregate == null) {
+                continue;
+            }
+            Node[] properties = FIELD_PROPERTIES[i];
+            graph.add(node, properties[0], NodeFactory.createLiteralDT(Long.toString(aggregate.count()), XSDDatatype.XSDlong));
+            graph.add(node, properties[1], NodeFactory.createLiteralDT(Double.toString(aggregate.min()), XSDDatatype.XSDdouble));
+            graph.add(node, properties[2], NodeFactory.createLiteralDT(Double.toString(aggregate.max()), XSDDatatype.XSDdouble));
+            graph.add(node, properties[3], NodeFactory.createLiteralDT(Double.toString(aggregate.sum()), XSDDatatype.XSDdouble));
+        }
+    }
+}
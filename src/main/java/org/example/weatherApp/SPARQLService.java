@@ -1,332 +1,1315 @@
 package org.example.weatherApp;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.*;
 import com.google.gson.JsonObject;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
 
 public class SPARQLService {
     private final Dataset dataset;
-    private static final String MISSING_VALUE = "N/A"; //The "mq" value
-
-
-    /**
-     * Static map for station ID to name mapping
-      */
-    private static final Map<String, String> STATION_NAME_MAP = new HashMap<>();
-    static {
-        STATION_NAME_MAP.put("07005", "ABBEVILLE");
-        STATION_NAME_MAP.put("07015", "LILLE-LESQUIN");
-        STATION_NAME_MAP.put("07020", "PTE DE LA HAGUE");
-        STATION_NAME_MAP.put("07027", "CAEN-CARPIQUET");
-        STATION_NAME_MAP.put("07037", "ROUEN-BOOS");
-        STATION_NAME_MAP.put("07072", "REIMS-PRUNAY");
-        STATION_NAME_MAP.put("07110", "BREST-GUIPAVAS");
-        STATION_NAME_MAP.put("07117", "PLOUMANAC'H");
-        STATION_NAME_MAP.put("07130", "RENNES-ST JACQUES");
-        STATION_NAME_MAP.put("07139", "ALENCON");
-        STATION_NAME_MAP.put("07149", "ORLY");
-        STATION_NAME_MAP.put("07168", "TROYES-BARBEREY");
-        STATION_NAME_MAP.put("07181", "NANCY-OCHEY");
-        STATION_NAME_MAP.put("07190", "STRASBOURG-ENTZHEIM");
-        STATION_NAME_MAP.put("07207", "BELLE ILE-LE TALUT");
-        STATION_NAME_MAP.put("07222", "NANTES-BOUGUENAIS");
-        STATION_NAME_MAP.put("07240", "TOURS");
-        STATION_NAME_MAP.put("07255", "BOURGES");
-        STATION_NAME_MAP.put("07280", "DIJON-LONGVIC");
-        STATION_NAME_MAP.put("07299", "BALE-MULHOUSE");
-        STATION_NAME_MAP.put("07314", "PTE DE CHASSIRON");
-        STATION_NAME_MAP.put("07335", "POITIERS-BIARD");
-        STATION_NAME_MAP.put("07434", "LIMOGES-BELLEGARDE");
-        STATION_NAME_MAP.put("07460", "CLERMONT-FD");
-        STATION_NAME_MAP.put("07471", "LE PUY-LOUDES");
-        STATION_NAME_MAP.put("07481", "LYON-ST EXUPERY");
-        STATION_NAME_MAP.put("07510", "BORDEAUX-MERIGNAC");
-        STATION_NAME_MAP.put("07535", "GOURDON");
-        STATION_NAME_MAP.put("07558", "MILLAU");
-        STATION_NAME_MAP.put("07577", "MONTELIMAR");
-        STATION_NAME_MAP.put("07591", "EMBRUN");
-        STATION_NAME_MAP.put("07607", "MONT-DE-MARSAN");
-        STATION_NAME_MAP.put("07621", "TARBES-OSSUN");
-        STATION_NAME_MAP.put("07627", "ST GIRONS");
-        STATION_NAME_MAP.put("07630", "TOULOUSE-BLAGNAC");
-        STATION_NAME_MAP.put("07643", "MONTPELLIER");
-        STATION_NAME_MAP.put("07650", "MARIGNANE");
-        STATION_NAME_MAP.put("07661", "CAP CEPET");
-        STATION_NAME_MAP.put("07690", "NICE");
-        STATION_NAME_MAP.put("07747", "PERPIGNAN");
-        STATION_NAME_MAP.put("07761", "AJACCIO");
-        STATION_NAME_MAP.put("07790", "BASTIA");
-        STATION_NAME_MAP.put("61968", "GLORIEUSES");
-        STATION_NAME_MAP.put("61970", "JUAN DE NOVA");
-        STATION_NAME_MAP.put("61972", "EUROPA");
-        STATION_NAME_MAP.put("61976", "TROMELIN");
-        STATION_NAME_MAP.put("61980", "GILLOT-AEROPORT");
-        STATION_NAME_MAP.put("61996", "NOUVELLE AMSTERDAM");
-        STATION_NAME_MAP.put("61997", "CROZET");
-        STATION_NAME_MAP.put("61998", "KERGUELEN");
-        STATION_NAME_MAP.put("67005", "PAMANDZI");
-        STATION_NAME_MAP.put("71805", "ST-PIERRE");
-        STATION_NAME_MAP.put("78890", "LA DESIRADE METEO");
-        STATION_NAME_MAP.put("78894", "ST-BARTHELEMY METEO");
-        STATION_NAME_MAP.put("78897", "LE RAIZET AERO");
-        STATION_NAME_MAP.put("78922", "TRINITE-CARAVEL");
-        STATION_NAME_MAP.put("78925", "LAMENTIN-AERO");
-        STATION_NAME_MAP.put("81401", "SAINT LAURENT");
-        STATION_NAME_MAP.put("81405", "CAYENNE-MATOURY");
-        STATION_NAME_MAP.put("81408", "SAINT GEORGES");
-        STATION_NAME_MAP.put("81415", "MARIPASOULA");
-        STATION_NAME_MAP.put("89642", "DUMONT D'URVILLE");
-    }
-
-    /**
-     * use the map to get station name query
+    static final String MISSING_VALUE = "N/A"; //The "mq" value, an absent triple in the store
+
+
+    /**
+     * Station names and observation summaries, maintained by the loader
+     */
+    private final StationIndex stationIndex = new StationIndex();
+
+    /**
+     * Hour/day/month summaries of each station, maintained by the loader
+     */
+    private final RollupStore rollupStore = new RollupStore();
+
+    private static final DateTimeFormatter COMPACT_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    /**
+     * use the index to get station name; must be called inside a READ transaction
      * @param stationId
      * @return
      */
     private String getStationName(String stationId) {
-        return STATION_NAME_MAP.getOrDefault(stationId, "Unknown Station");
+        return stationIndex.name(dataset.asDatasetGraph(), stationId);
     }
 
+    /**
+     * Queries are parsed and optimised once, parameters (?stationId, ?from, ?to) are bound per call.
+     * Dates of a station in [?from, ?to], oldest first, for the pages of the date list.
+     * The range is a FILTER over the observations of the station: there is no index on the dates.
+     */
+    private static final PreparedQuery DATE_RANGE_QUERY = new PreparedQuery("""
+            PREFIX ex: <http://example.org/weather#>
+
+            SELECT DISTINCT ?date
+            WHERE {
+                ?observation ex:station ?stationId ;
+                             ex:date ?date .
+                FILTER (?date >= ?from && ?date <= ?to)
+            }
+            ORDER BY ?date
+            """);
+
+    /** Most dates a page of the date list may hold */
+    public static final int MAX_PAGE_SIZE = 10_000;
+
+    private static final String FIRST_DATE = "00010101000000";
+    private static final String LAST_DATE = "99991231235959";
+
+    /**
+     * Missing ("mq") measurements are absent triples, hence the OPTIONALs
+     */
+    private static final PreparedQuery WEATHER_DATA_QUERY = new PreparedQuery("""
+            PREFIX ex: <http://example.org/weather#>
+
+            SELECT ?temperature ?pression_ocean ?wind_direction ?wind_speed ?dew_point ?humidity
+                   ?horizontal_visibility ?couldiness ?min_temperature ?max_temperature
+            WHERE {
+                ?observation ex:station ?stationId ;
+                             ex:date ?date .
+                OPTIONAL { ?observation ex:temperature ?temperature }
+                OPTIONAL { ?observation ex:pression_ocean ?pression_ocean }
+                OPTIONAL { ?observation ex:wind_direction ?wind_direction }
+                OPTIONAL { ?observation ex:wind_speed ?wind_speed }
+                OPTIONAL { ?observation ex:dew_point ?dew_point }
+                OPTIONAL { ?observation ex:humidity ?humidity }
+                OPTIONAL { ?observation ex:horizontal_visibility ?horizontal_visibility }
+                OPTIONAL { ?observation ex:couldiness ?couldiness }
+                OPTIONAL { ?observation ex:min_temperature ?min_temperature }
+                OPTIONAL { ?observation ex:max_temperature ?max_temperature }
+            }
+            """);
+
+    /**
+     * Observations of many (station, date range) pairs in one execution: the pairs are
+     * bound as rows of values (?request ?stationId ?from ?to), see {@link PreparedQuery#execute(org.apache.jena.sparql.core.DatasetGraph, List)}
+     */
+    private static final PreparedQuery OBSERVATION_RANGE_QUERY = new PreparedQuery("""
+            PREFIX ex: <http://example.org/weather#>
+
+            SELECT ?request ?date ?temperature ?pression_ocean ?wind_direction ?wind_speed ?dew_point ?humidity
+                   ?horizontal_visibility ?couldiness ?min_temperature ?max_temperature
+            WHERE {
+                ?observation ex:station ?stationId ;
+                             ex:date ?date .
+                FILTER (?date >= ?from && ?date <= ?to)
+                OPTIONAL { ?observation ex:temperature ?temperature }
+                OPTIONAL { ?observation ex:pression_ocean ?pression_ocean }
+                OPTIONAL { ?observation ex:wind_direction ?wind_direction }
+                OPTIONAL { ?observation ex:wind_speed ?wind_speed }
+                OPTIONAL { ?observation ex:dew_point ?dew_point }
+                OPTIONAL { ?observation ex:humidity ?humidity }
+                OPTIONAL { ?observation ex:horizontal_visibility ?horizontal_visibility }
+                OPTIONAL { ?observation ex:couldiness ?couldiness }
+                OPTIONAL { ?observation ex:min_temperature ?min_temperature }
+                OPTIONAL { ?observation ex:max_temperature ?max_temperature }
+            }
+            """);
+
+    /**
+     * Derived values of one observation, see {@link DerivedMetrics}
+     */
+    private static final PreparedQuery DERIVED_QUERY = new PreparedQuery(derivedQuery());
+
+    private static String derivedQuery() {
+        StringBuilder query = new StringBuilder("PREFIX ex: <http://example.org/weather#>\n\nSELECT");
+        WeatherVocabulary.DERIVED.forEach(name -> query.append(" ?").append(name));
+        query.append("\nWHERE {\n    ?observation ex:station ?stationId ;\n                 ex:date ?date .\n");
+        WeatherVocabulary.DERIVED.forEach(name -> query.append("    OPTIONAL { ?observation ex:").append(name)
+                                                       .append(" ?").append(name).append(" }\n"));
+        return query.append("}\n").toString();
+    }
+
+    /** Most (station, date range) pairs a single batch may ask for */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * One pair of a batch, dates in the compact form, null for an open bound
+     */
+    public record Range(String stationId, String from, String to) {
+    }
+
+    /**
+     * Read-optimised copy of the observations, null to query TDB2 only
+     */
+    private final ColumnarStore columnar;
+
+    /**
+     * Station coordinates for the spatial queries, null when they are not enabled
+     */
+    private final GeoIndex geo;
+
+    /**
+     * Extreme readings and missing-data streaks, null when they are not tracked
+     */
+    private final ExtremesIndex extremes;
+
+    /** Most stations a nearest query may ask for */
+    public static final int MAX_NEAREST = 50;
+
     public SPARQLService(Dataset dataset) {
+        this(dataset, null);
+    }
+
+    /**
+     * @param columnar serves the observation lookups when given, it must be loaded and registered with the loader
+     */
+    public SPARQLService(Dataset dataset, ColumnarStore columnar) {
+        this(dataset, columnar, null);
+    }
+
+    /**
+     * @param geo answers the spatial queries when given, it must be loaded and registered with the loader
+     */
+    public SPARQLService(Dataset dataset, ColumnarStore columnar, GeoIndex geo) {
+        this(dataset, columnar, geo, null);
+    }
+
+    /**
+     * @param extremes answers the extreme and gap queries when given, it must be loaded and registered with the loader
+     */
+    public SPARQLService(Dataset dataset, ColumnarStore columnar, GeoIndex geo, ExtremesIndex extremes) {
         this.dataset = dataset;
+        this.columnar = columnar;
+        this.geo = geo;
+        this.extremes = extremes;
     }
 
+    /**
+     * List the stations from the station index: one resource per station instead of a scan of the observations
+     */
     public String queryStation() {
-        String sparqlQuery = String.format("""
-                PREFIX ex: <http://example.org/weather#>
-
-                SELECT DISTINCT ?station
-                WHERE {
-                    ?observation ex:station ?station ;
-                                 ex:date ?date ;
-                                 ex:temperature ?temperature ;
-                                 ex:pression_ocean ?pression_ocean ;
-                                 ex:wind_direction ?wind_direction ;
-                                 ex:wind_speed ?wind_speed ;
-                                 ex:dew_point ?dew_point ;
-                                 ex:humidity ?humidity ;
-                                 ex:horizontal_visibility ?horizontal_visibility ;
-                                 ex:couldiness ?couldiness ;
-                                 ex:min_temperature ?min_temperature ;
-                                 ex:max_temperature ?max_temperature .
+        StringWriter out = new StringWriter();
+        writeStations(out, false);
+        return out.toString();
+    }
+
+    /**
+     * Stream the station list to out, as a JSON array or as NDJSON
+     * @throws QueryException 404, before anything is written, when there is no station
+     */
+    public void writeStations(Writer out, boolean ndjson) {
+        QueryTrace trace = QueryTrace.start("writeStations", "tdb2");
+        trace.begin(dataset);
+        try {
+            JsonRowWriter rows = new JsonRowWriter(out, ndjson);
+            List<StationIndex.Station> stations = stationIndex.list(dataset.asDatasetGraph());
+            if (stations.isEmpty()) {
+                throw QueryException.notFound("No station has been found");
+            }
+
+            for (StationIndex.Station station : stations) {
+                rows.row()
+                    .name("station").value(station.id())
+                    .name("stationName").value(station.name()) // Add station name
+                    .name("firstObservation").value(station.firstObservation())
+                    .name("lastObservation").value(station.lastObservation())
+                    .name("observationCount").value(station.observationCount());
+            }
+            rows.finish();
+            trace.rows(rows.count());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            dataset.end();
+            trace.finish();
+        }
+    }
+
+    /**
+     * Fail as {@link #writeStations} would, before a streamed list has sent its status
+     * @throws QueryException 404 when there is no station
+     */
+    public void checkStations() {
+        Metrics.DEFAULT.begin(dataset, ReadWrite.READ);
+        try {
+            if (stationIndex.list(dataset.asDatasetGraph()).isEmpty()) {
+                throw QueryException.notFound("No station has been found");
+            }
+        } finally {
+            dataset.end();
+        }
+    }
+
+    public String queryDateOfStation(String stationId) {
+        StringWriter out = new StringWriter();
+        writeDatesOfStation(stationId, out, false);
+        return out.toString();
+    }
+
+    /**
+     * Stream the observation dates of a station to out as they come out of the query,
+     * so memory stays flat whatever the number of dates
+     */
+    public void writeDatesOfStation(String stationId, Writer out, boolean ndjson) {
+        writeDatesOfStation(stationId, null, null, null, 0, out, ndjson);
+    }
+
+    /**
+     * Stream one page of the observation dates of a station, oldest first: the dates after
+     * the cursor and within [from, to] (each optional, yyyyMMddHHmmss), at most limit of them.
+     * From the columns a page is two binary searches and limit rows, whatever the history.
+     * From TDB2 the query finds the observations by station, so every page still reads all of
+     * them: the range and the cursor are a FILTER, and ORDER BY with LIMIT only spares the
+     * sort (top-N). Deep paging of a long history should go through the columns.
+     * @param after last date of the previous page, null for the first one
+     * @param limit 0 for every date
+     * @return the cursor of the next page, null when this one is the last
+     * @throws QueryException before anything is written, as {@link #checkDates}
+     */
+    public String writeDatesOfStation(String stationId, String from, String to, String after, int limit,
+                                      Writer out, boolean ndjson) {
+        DateBounds bounds = dateBounds(from, to, after, limit);
+        String lower = bounds.lower();
+        String upper = bounds.upper();
+        JsonRowWriter rows = new JsonRowWriter(out, ndjson);
+        if (columnar != null) {
+            return writeColumnarDates(stationId, lower, upper, limit, rows);
+        }
+        QueryTrace trace = QueryTrace.start("writeDatesOfStation", "tdb2", stationId);
+        trace.begin(dataset);
+        QueryIterator results = null;
+        try {
+            Map<String, Node> params = Map.of("stationId", StationIndex.stationNode(stationId),
+                                              "from", ObservationNormalizer.dateTime(lower),
+                                              "to", ObservationNormalizer.dateTime(upper));
+            // one more than the page to know whether there is a next one
+            results = limit > 0 ? DATE_RANGE_QUERY.execute(dataset.asDatasetGraph(), params, limit + 1)
+                                : DATE_RANGE_QUERY.execute(dataset.asDatasetGraph(), params);
+            String last = null;
+            String next = null;
+            while (results.hasNext()) {
+                String date = ObservationNormalizer.compactDate(results.nextBinding().get("date"));
+                if (limit > 0 && rows.count() == limit) {
+                    next = last;
+                    break;
                 }
-                """);
+                rows.row().name("date").value(date);
+                last = date;
+            }
+            if (rows.count() == 0 && !hasDates(stationId)) {
+                throw QueryException.notFound("No data found for stationId: " + stationId);
+            }
+            rows.finish();
+            trace.rows(rows.count());
+            return next;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+            dataset.end();
+            trace.finish();
+        }
+    }
 
+    /**
+     * Fail as {@link #writeDatesOfStation} would, before a streamed list has sent its status
+     * @throws QueryException 400 for an invalid limit or date, 404 for a station without observations
+     */
+    public void checkDates(String stationId, String from, String to, String after, int limit) {
+        dateBounds(from, to, after, limit);
+        if (columnar != null) {
+            if (columnar.station(stationId) == null) {
+                throw QueryException.notFound("No data found for stationId: " + stationId);
+            }
+            return;
+        }
+        Metrics.DEFAULT.begin(dataset, ReadWrite.READ);
+        try {
+            if (!hasDates(stationId)) {
+                throw QueryException.notFound("No data found for stationId: " + stationId);
+            }
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * First and last date of a page, compact yyyyMMddHHmmss
+     */
+    private record DateBounds(String lower, String upper) {
+    }
 
+    /**
+     * @throws QueryException 400 for a limit out of [0, MAX_PAGE_SIZE] or an invalid date
+     */
+    private static DateBounds dateBounds(String from, String to, String after, int limit) {
+        if (limit < 0 || limit > MAX_PAGE_SIZE) {
+            throw QueryException.badRequest("limit must be between 1 and " + MAX_PAGE_SIZE + ", or 0 for every date");
+        }
+        try {
+            return new DateBounds(lowerBound(from, after),
+                                  to == null ? LAST_DATE : Long.toString(ObservationNormalizer.compactNumber(to)));
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest(e.getMessage() + ", expected yyyyMMddHHmmss");
+        }
+    }
 
+    /**
+     * Whether the station has any observation, must be called inside a READ transaction
+     */
+    private boolean hasDates(String stationId) {
+        QueryIterator results = DATE_RANGE_QUERY.execute(dataset.asDatasetGraph(),
+                                                         Map.of("stationId", StationIndex.stationNode(stationId),
+                                                                "from", ObservationNormalizer.dateTime(FIRST_DATE),
+                                                                "to", ObservationNormalizer.dateTime(LAST_DATE)), 1);
+        try {
+            return results.hasNext();
+        } finally {
+            results.close();
+        }
+    }
 
-        dataset.begin(ReadWrite.READ);
-        try (QueryExecution qexec = QueryExecutionFactory.create(sparqlQuery, dataset)) {
-            ResultSet results = qexec.execSelect();
+    /**
+     * First date of a page: from, or the second after the cursor when that is later
+     * @throws IllegalArgumentException if a date is invalid
+     */
+    private static String lowerBound(String from, String after) {
+        long lower = from == null ? Long.parseLong(FIRST_DATE) : ObservationNormalizer.compactNumber(from);
+        if (after != null) {
+            ObservationNormalizer.compactNumber(after);
+            LocalDateTime next = LocalDateTime.parse((after + "000000").substring(0, 14), COMPACT_DATE).plusSeconds(1);
+            lower = Math.max(lower, Long.parseLong(next.format(COMPACT_DATE)));
+        }
+        return String.format("%014d", lower);
+    }
+
+    /**
+     * Changes whenever observations are added to the station, usable as a validator of its date list
+     */
+    public String datesVersion(String stationId) {
+        QueryTrace trace = QueryTrace.start("datesVersion", "tdb2", stationId);
+        trace.begin(dataset);
+        try {
+            StationIndex.Station station = stationIndex.station(dataset.asDatasetGraph(), stationId);
+            return station == null ? "0" : station.observationCount() + "-" + station.lastObservation();
+        } finally {
+            dataset.end();
+            trace.finish();
+        }
+    }
+
+    public String queryWeatherDataByStationAndDate(String stationId, String date) {
+        return queryWeatherDataByStationAndDate(stationId, date, null);
+    }
+
+    /**
+     * @param derived derived values to add (comma separated names of {@link WeatherVocabulary#DERIVED}, or "all"), null for none
+     */
+    public String queryWeatherDataByStationAndDate(String stationId, String date, String derived) {
+        List<String> derivedFields;
+        try {
+            derivedFields = derivedFields(derived);
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest(e.getMessage());
+        }
+        Node dateTime;
+        try {
+            dateTime = ObservationNormalizer.dateTime(date);
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest("Invalid date: " + date + ", expected yyyyMMddHHmmss");
+        }
+        if (columnar != null) {
+            return queryColumnarObservation(stationId, date, derivedFields);
+        }
+
+        QueryTrace trace = QueryTrace.start("queryWeatherDataByStationAndDate", "tdb2", stationId, date);
+        trace.begin(dataset);
+        QueryIterator results = null;
+        try {
+            results = WEATHER_DATA_QUERY.execute(dataset.asDatasetGraph(),
+                                                 Map.of("stationId", StationIndex.stationNode(stationId),
+                                                        "date", dateTime));
             if (!results.hasNext()) {
-                return "{\"error\": \"No station has been found\"}";
+                throw QueryException.notFound("No data found for stationId: " + stationId + " and date: " + date);
             }
 
+            Binding solution = results.nextBinding();
+            trace.rows(1);
+            JsonObject json = new JsonObject();
+            json.addProperty("stationId", stationId);
+            json.addProperty("stationName", getStationName(stationId));
+            json.addProperty("date", date);
+            for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+                json.addProperty(measurement, measurementValue(solution, measurement));
+            }
+            addDerived(json, stationId, dateTime, derivedFields);
+
+            return json.toString();
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+            dataset.end();
+            trace.finish();
+        }
+    }
+
+    /**
+     * Mean of each requested measurement per period, oldest first.
+     * from and to (yyyyMMddHHmmss, both included) default to the first and last observation of the station,
+     * fields (comma separated) defaults to every measurement.
+     */
+    public String querySeries(String stationId, String from, String to, String fields, String granularity) {
+        return queryRollups(stationId, from, to, fields, granularity, false);
+    }
 
+    /**
+     * count, min, max and mean of each requested measurement per day or month, same parameters as
+     * {@link #querySeries}.
+     */
+    public String queryAggregate(String stationId, String from, String to, String fields, String granularity) {
+        return queryRollups(stationId, from, to, fields, granularity, true);
+    }
 
-            JsonArray jsonArray = new JsonArray(); // store all results
+    private String queryRollups(String stationId, String from, String to, String fields, String granularity,
+                                boolean aggregates) {
+        RollupStore.Granularity periodLength;
+        List<Integer> fieldIndexes;
+        try {
+            periodLength = RollupStore.Granularity.parse(granularity);
+            fieldIndexes = fieldIndexes(fields);
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest(e.getMessage());
+        }
 
-            while (results.hasNext()) {
-                QuerySolution solution = results.nextSolution();
-                JsonObject json = new JsonObject();
-                String stationId = solution.getLiteral("station").getString();
-                json.addProperty("station", stationId);
-                json.addProperty("stationName", getStationName(stationId)); // Add station name
-                jsonArray.add(json); // join this record to jsonArray
+        QueryTrace trace = QueryTrace.start(aggregates ? "queryAggregate" : "querySeries", "tdb2",
+                                            stationId, from, to, fields, granularity);
+        trace.begin(dataset);
+        try {
+            LocalDateTime start;
+            LocalDateTime end;
+            try {
+                start = rangeBound(stationId, from, true);
+                end = rangeBound(stationId, to, false);
+            } catch (IllegalArgumentException e) {
+                throw QueryException.badRequest(e.getMessage());
+            }
+            if (start == null || end == null) {
+                throw QueryException.notFound("No data found for stationId: " + stationId);
             }
 
-            if (jsonArray.size() == 0) {
-                return "{\"error\": \"No station found\"}";
+            List<RollupStore.Period> periods;
+            try {
+                periods = rollupStore.query(dataset.asDatasetGraph(), stationId, periodLength, start, end);
+            } catch (IllegalArgumentException e) {
+                throw QueryException.badRequest(e.getMessage());
             }
+            trace.rows(periods.size());
 
-            return jsonArray.toString(); // return JSON array
+            JsonArray jsonArray = new JsonArray();
+            for (RollupStore.Period period : periods) {
+                JsonObject json = new JsonObject();
+                json.addProperty("date", period.start().format(COMPACT_DATE));
+                for (int index : fieldIndexes) {
+                    RollupStore.Aggregate aggregate = period.fields()[index];
+                    String field = WeatherVocabulary.MEASUREMENTS.get(index);
+                    if (aggregate == null) {
+                        json.addProperty(field, MISSING_VALUE);
+                    } else if (aggregates) {
+                        JsonObject values = new JsonObject();
+                        values.addProperty("count", aggregate.count());
+                        values.addProperty("min", new BigDecimal(formatMeasurement(field, aggregate.min())));
+                        values.addProperty("max", new BigDecimal(formatMeasurement(field, aggregate.max())));
+                        values.addProperty("mean", new BigDecimal(sixDecimals(aggregate.mean())));
+                        json.add(field, values);
+                    } else {
+                        json.addProperty(field, new BigDecimal(sixDecimals(aggregate.mean())));
+                    }
+                }
+                jsonArray.add(json);
+            }
+
+            JsonObject json = new JsonObject();
+            json.addProperty("stationId", stationId);
+            json.addProperty("granularity", periodLength.toString());
+            json.addProperty("from", start.format(COMPACT_DATE));
+            json.addProperty("to", end.format(COMPACT_DATE));
+            json.add(aggregates ? "aggregates" : "series", jsonArray);
+            return json.toString();
         } finally {
             dataset.end();
+            trace.finish();
         }
     }
 
-    public String queryDateOfStation(String stationId) {
-        String sparqlQuery = String.format("""
-                PREFIX ex: <http://example.org/weather#>
-
-                SELECT DISTINCT ?date
-                WHERE {
-                    ?observation ex:station "%s" ;
-                                 ex:date ?date ;
-                                 ex:temperature ?temperature ;
-                                 ex:pression_ocean ?pression_ocean ;
-                                 ex:wind_direction ?wind_direction ;
-                                 ex:wind_speed ?wind_speed ;
-                                 ex:dew_point ?dew_point ;
-                                 ex:humidity ?humidity ;
-                                 ex:horizontal_visibility ?horizontal_visibility ;
-                                 ex:couldiness ?couldiness ;
-                                 ex:min_temperature ?min_temperature ;
-                                 ex:max_temperature ?max_temperature .
+    /**
+     * Parsed range bound, or the first/last observation of the station when the bound is not given.
+     * Must be called inside a READ transaction.
+     */
+    private LocalDateTime rangeBound(String stationId, String date, boolean first) {
+        if (date == null || date.isEmpty()) {
+            StationIndex.Station station = stationIndex.station(dataset.asDatasetGraph(), stationId);
+            if (station == null) {
+                return null;
+            }
+            date = first ? station.firstObservation() : station.lastObservation();
+        }
+        try {
+            return LocalDateTime.parse(ObservationNormalizer.compactDate(ObservationNormalizer.dateTime(date)), COMPACT_DATE);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid date: " + date + ", expected yyyyMMddHHmmss");
+        }
+    }
+
+    /**
+     * Indexes in {@link WeatherVocabulary#MEASUREMENTS} of a comma separated field list, all of them when empty
+     */
+    private static List<Integer> fieldIndexes(String fields) {
+        List<Integer> indexes = new ArrayList<>();
+        if (fields == null || fields.isBlank()) {
+            for (int i = 0; i < WeatherVocabulary.MEASUREMENTS.size(); i++) {
+                indexes.add(i);
+            }
+            return indexes;
+        }
+        for (String field : fields.split(",")) {
+            int index = WeatherVocabulary.MEASUREMENTS.indexOf(field.trim());
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown field: " + field.trim()
+                                                   + ", expected one of " + WeatherVocabulary.MEASUREMENTS);
+            }
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
+    /**
+     * Observations of a batch of (station, date range) pairs, all answered in one READ
+     * transaction by one execution of {@link #OBSERVATION_RANGE_QUERY}.
+     * The body is a JSON array of {"stationId", "from", "to"}, dates as yyyyMMddHHmmss and
+     * optional (open bound). The result holds one group per pair, in request order, with its
+     * observations oldest first.
+     * @throws QueryException 400, before anything is written, for a body that is not such an array
+     */
+    public void writeObservationBatch(String body, Writer out) {
+        writeObservationBatch(parseBatch(body), out);
+    }
+
+    /**
+     * The pairs of a batch body, see {@link #writeObservationBatch(String, Writer)}
+     * @throws QueryException 400 for a body that is not a batch
+     */
+    public static List<Range> parseBatch(String body) {
+        try {
+            return parseRanges(body);
+        } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+            throw QueryException.badRequest("Invalid batch: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stream the observations of pairs from {@link #parseBatch}
+     */
+    public void writeObservationBatch(List<Range> ranges, Writer out) {
+        try {
+            JsonRowWriter rows = new JsonRowWriter(out, false);
+            if (columnar != null) {
+                writeColumnarBatch(ranges, rows);
+                return;
+            }
+
+            QueryTrace trace = QueryTrace.start("writeObservationBatch", "tdb2", ranges.size() + " ranges");
+            trace.begin(dataset);
+            try {
+                List<Binding> values = new ArrayList<>(ranges.size());
+                for (int i = 0; i < ranges.size(); i++) {
+                    Range range = ranges.get(i);
+                    // open bounds are closed with the first/last observation of the station index
+                    StationIndex.Station station = stationIndex.station(dataset.asDatasetGraph(), range.stationId());
+                    String from = range.from() != null ? range.from() : station != null ? station.firstObservation() : null;
+                    String to = range.to() != null ? range.to() : station != null ? station.lastObservation() : null;
+                    if (from == null || to == null) {
+                        continue;
+                    }
+                    values.add(Binding.builder()
+                                      .add(Var.alloc("request"), NodeFactory.createLiteralDT(Integer.toString(i), XSDDatatype.XSDint))
+                                      .add(Var.alloc("stationId"), StationIndex.stationNode(range.stationId()))
+                                      .add(Var.alloc("from"), ObservationNormalizer.dateTime(from))
+                                      .add(Var.alloc("to"), ObservationNormalizer.dateTime(to))
+                                      .build());
                 }
-                """, stationId);
 
+                // the engine does not promise rows grouped by ?request: they are collected per pair
+                // before the first one is written
+                List<List<Binding>> groups = new ArrayList<>(ranges.size());
+                for (int i = 0; i < ranges.size(); i++) {
+                    groups.add(new ArrayList<>());
+                }
+                QueryIterator results = OBSERVATION_RANGE_QUERY.execute(dataset.asDatasetGraph(), values);
+                try {
+                    while (results.hasNext()) {
+                        Binding solution = results.nextBinding();
+                        groups.get(number(solution, "request").intValue()).add(solution);
+                        trace.rows(1);
+                    }
+                } finally {
+                    results.close();
+                }
+                for (int i = 0; i < ranges.size(); i++) {
+                    writeRange(rows, ranges.get(i), groups.get(i));
+                }
+                rows.finish();
+            } finally {
+                dataset.end();
+                trace.finish();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
+    /**
+     * Latest observation of every station, for map views: the station index gives each
+     * station's last date and the observations are fetched by one batched execution
+     */
+    public String queryLatestObservations() {
+        return queryLatestObservations(null);
+    }
 
+    /**
+     * @param derived derived values to add, as for {@link #queryWeatherDataByStationAndDate(String, String, String)}
+     */
+    public String queryLatestObservations(String derived) {
+        List<String> derivedFields;
+        try {
+            derivedFields = derivedFields(derived);
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest(e.getMessage());
+        }
+        if (columnar != null) {
+            return queryColumnarLatest(derivedFields);
+        }
+        QueryTrace trace = QueryTrace.start("queryLatestObservations", "tdb2");
+        trace.begin(dataset);
+        try {
+            List<StationIndex.Station> stations = stationIndex.list(dataset.asDatasetGraph());
+            List<Binding> values = new ArrayList<>(stations.size());
+            for (int i = 0; i < stations.size(); i++) {
+                StationIndex.Station station = stations.get(i);
+                if (station.lastObservation() == null) {
+                    continue;
+                }
+                Node last = ObservationNormalizer.dateTime(station.lastObservation());
+                values.add(Binding.builder()
+                                  .add(Var.alloc("request"), NodeFactory.createLiteralDT(Integer.toString(i), XSDDatatype.XSDint))
+                                  .add(Var.alloc("stationId"), StationIndex.stationNode(station.id()))
+                                  .add(Var.alloc("from"), last)
+                                  .add(Var.alloc("to"), last)
+                                  .build());
+            }
+            if (values.isEmpty()) {
+                throw QueryException.notFound("No station has been found");
+            }
 
-        dataset.begin(ReadWrite.READ);
-        try (QueryExecution qexec = QueryExecutionFactory.create(sparqlQuery, dataset)) {
-            ResultSet results = qexec.execSelect();
-            if (!results.hasNext()) {
-                return "{\"error\": \"No data found for stationId: " + stationId + "\"}";
+            JsonArray jsonArray = new JsonArray();
+            QueryIterator results = OBSERVATION_RANGE_QUERY.execute(dataset.asDatasetGraph(), values);
+            try {
+                while (results.hasNext()) {
+                    Binding solution = results.nextBinding();
+                    StationIndex.Station station = stations.get(number(solution, "request").intValue());
+                    JsonObject json = new JsonObject();
+                    json.addProperty("stationId", station.id());
+                    json.addProperty("stationName", station.name());
+                    json.addProperty("date", ObservationNormalizer.compactDate(solution.get("date")));
+                    for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+                        json.addProperty(measurement, measurementValue(solution, measurement));
+                    }
+                    addDerived(json, station.id(), solution.get("date"), derivedFields);
+                    jsonArray.add(json);
+                }
+            } finally {
+                results.close();
+            }
+            trace.rows(jsonArray.size());
+            return jsonArray.toString();
+        } finally {
+            dataset.end();
+            trace.finish();
+        }
+    }
+
+    /**
+     * The k stations closest to the point, closest first, each with its distance in km and latest observation
+     */
+    public String queryNearestStations(double latitude, double longitude, int k) {
+        checkGeo();
+        if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+            throw QueryException.badRequest("Invalid point: " + latitude + "," + longitude);
+        }
+        if (k < 1 || k > MAX_NEAREST) {
+            throw QueryException.badRequest("k must be between 1 and " + MAX_NEAREST);
+        }
+        QueryTrace trace = QueryTrace.start("queryNearestStations", columnar != null ? "columnar" : "tdb2",
+                                            latitude + "," + longitude, Integer.toString(k));
+        try {
+            List<GeoIndex.Neighbour> neighbours = geo.nearest(latitude, longitude, k);
+            List<JsonObject> stations = new ArrayList<>(neighbours.size());
+            for (GeoIndex.Neighbour neighbour : neighbours) {
+                JsonObject json = locatedJson(neighbour.station());
+                json.addProperty("distanceKm", Math.round(neighbour.distanceKm() * 1000) / 1000.0);
+                stations.add(json);
+            }
+            return withLatestObservations(stations, trace);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    /**
+     * Stations inside the box, ordered by id, each with its latest observation.
+     * A box crossing the antimeridian has minLongitude greater than maxLongitude.
+     */
+    public String queryStationsInBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        checkGeo();
+        if (minLatitude < -90 || maxLatitude > 90 || minLatitude > maxLatitude
+            || minLongitude < -180 || minLongitude > 180 || maxLongitude < -180 || maxLongitude > 180) {
+            throw QueryException.badRequest("Invalid box: " + minLatitude + "," + minLongitude + "," + maxLatitude + "," + maxLongitude);
+        }
+        QueryTrace trace = QueryTrace.start("queryStationsInBox", columnar != null ? "columnar" : "tdb2",
+                                            minLatitude + "," + minLongitude + "," + maxLatitude + "," + maxLongitude);
+        try {
+            List<JsonObject> stations = new ArrayList<>();
+            for (GeoIndex.Located station : geo.within(minLatitude, minLongitude, maxLatitude, maxLongitude)) {
+                stations.add(locatedJson(station));
             }
+            return withLatestObservations(stations, trace);
+        } finally {
+            trace.finish();
+        }
+    }
 
+    /**
+     * @throws QueryException 503 when there is no geo index, or it is still being built
+     */
+    private void checkGeo() {
+        if (geo == null) {
+            throw QueryException.unavailable("Station coordinates are not loaded");
+        }
+        if (!geo.isLoaded()) {
+            throw QueryException.unavailable("Station coordinates are being loaded, retry later");
+        }
+    }
 
+    private static JsonObject locatedJson(GeoIndex.Located station) {
+        JsonObject json = new JsonObject();
+        json.addProperty("stationId", station.id());
+        json.addProperty("latitude", station.latitude());
+        json.addProperty("longitude", station.longitude());
+        if (station.altitude() != null) {
+            json.addProperty("altitude", station.altitude());
+        }
+        return json;
+    }
 
-            JsonArray jsonArray = new JsonArray(); // store all results
+    /**
+     * The k highest or lowest readings of a field, from the {@link ExtremesIndex}: one row
+     * per reading, stationId, stationName, date and the field, highest (lowest) first.
+     *
+     * @param stationId null for every station
+     * @param order     highest or lowest
+     * @param from      first month, yyyyMM (a longer date is cut to its month), null for no lower bound
+     * @param to        last month, included, null for no upper bound
+     */
+    public String queryExtremes(String stationId, String field, String order, String from, String to, int k) {
+        if (extremes == null) {
+            throw QueryException.unavailable("Extremes are not tracked");
+        }
+        if (field == null || !WeatherVocabulary.FIELDS.contains(field)) {
+            throw QueryException.badRequest("Unknown field: " + field + ", expected one of " + String.join(",", WeatherVocabulary.FIELDS));
+        }
+        if (!"highest".equals(order) && !"lowest".equals(order)) {
+            throw QueryException.badRequest("Invalid order: " + order + ", expected highest or lowest");
+        }
+        if (k < 1 || k > extremes.capacity()) {
+            throw QueryException.badRequest("k must be between 1 and " + extremes.capacity());
+        }
+        Integer fromMonth;
+        Integer toMonth;
+        try {
+            fromMonth = month(from);
+            toMonth = month(to);
+        } catch (IllegalArgumentException e) {
+            throw QueryException.badRequest(e.getMessage());
+        }
+        QueryTrace trace = QueryTrace.start("queryExtremes", "memory", stationId, field, order, from, to, Integer.toString(k));
+        try {
+            List<ExtremesIndex.Reading> readings = extremes.extremes(field, stationId, fromMonth, toMonth, k, "lowest".equals(order));
+            JsonArray jsonArray = new JsonArray();
+            trace.begin(dataset);
+            try {
+                for (ExtremesIndex.Reading reading : readings) {
+                    JsonObject json = new JsonObject();
+                    json.addProperty("stationId", reading.station());
+                    json.addProperty("stationName", getStationName(reading.station()));
+                    json.addProperty("date", reading.date());
+                    json.addProperty(field, formatMeasurement(field, reading.value()));
+                    jsonArray.add(json);
+                }
+            } finally {
+                dataset.end();
+            }
+            trace.rows(jsonArray.size());
+            return jsonArray.toString();
+        } finally {
+            trace.finish();
+        }
+    }
 
-            while (results.hasNext()) {
-                QuerySolution solution = results.nextSolution();
+    /**
+     * The k longest runs of consecutive observations missing a measurement ("N/A"), from the
+     * {@link ExtremesIndex}, longest first: stationId, field, from and to (dates of the first
+     * and last missing observation), observations, and open when the run reaches the
+     * latest observation of the station.
+     *
+     * @param stationId null for every station
+     * @param field     measurement, null for all of them
+     */
+    public String queryGaps(String stationId, String field, int k) {
+        if (extremes == null) {
+            throw QueryException.unavailable("Extremes are not tracked");
+        }
+        if (field != null && !WeatherVocabulary.MEASUREMENTS.contains(field)) {
+            throw QueryException.badRequest("Unknown measurement: " + field + ", expected one of " + String.join(",", WeatherVocabulary.MEASUREMENTS));
+        }
+        if (k < 1 || k > extremes.capacity()) {
+            throw QueryException.badRequest("k must be between 1 and " + extremes.capacity());
+        }
+        QueryTrace trace = QueryTrace.start("queryGaps", "memory", stationId, field, Integer.toString(k));
+        try {
+            JsonArray jsonArray = new JsonArray();
+            for (ExtremesIndex.Gap gap : extremes.gaps(field, stationId, k)) {
                 JsonObject json = new JsonObject();
-                json.addProperty("date", solution.getLiteral("date").getString());
-
-                jsonArray.add(json); // join this record to jsonArray
+                json.addProperty("stationId", gap.station());
+                json.addProperty("field", gap.field());
+                json.addProperty("from", gap.from());
+                json.addProperty("to", gap.to());
+                json.addProperty("observations", gap.observations());
+                json.addProperty("open", gap.open());
+                jsonArray.add(json);
             }
+            trace.rows(jsonArray.size());
+            return jsonArray.toString();
+        } finally {
+            trace.finish();
+        }
+    }
 
-            if (jsonArray.size() == 0) {
-                return "{\"error\": \"No data found for stationId: " + stationId + "\"}";
+    /**
+     * yyyyMM of a date given as yyyyMM or longer, null for null
+     */
+    private static Integer month(String date) {
+        if (date == null) {
+            return null;
+        }
+        if (date.length() < 6 || !date.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid month: " + date + ", expected yyyyMM");
+        }
+        return Integer.parseInt(date.substring(0, 6));
+    }
+
+    /**
+     * Add the name and the latest observation ("latest", null when the station has none) to each station:
+     * the last row of its columns, or a lookup of the last date of its station index summary
+     */
+    private String withLatestObservations(List<JsonObject> stations, QueryTrace trace) {
+        JsonArray jsonArray = new JsonArray();
+        if (columnar != null) {
+            for (JsonObject json : stations) {
+                String stationId = json.get("stationId").getAsString();
+                ColumnarStore.Columns columns = columnar.station(stationId);
+                JsonObject latest = null;
+                if (columns != null && columns.size() > 0) {
+                    int last = columns.size() - 1;
+                    latest = new JsonObject();
+                    latest.addProperty("date", Long.toString(columns.date(last)));
+                    for (int field = 0; field < WeatherVocabulary.MEASUREMENTS.size(); field++) {
+                        latest.addProperty(WeatherVocabulary.MEASUREMENTS.get(field), columnValue(columns, field, last));
+                    }
+                }
+                json.addProperty("stationName", columns != null ? columns.name() : getStationNameInTransaction(stationId));
+                json.add("latest", latest);
+                jsonArray.add(json);
             }
+            trace.rows(jsonArray.size());
+            return jsonArray.toString();
+        }
 
-            return jsonArray.toString(); // return JSON array
+        trace.begin(dataset);
+        try {
+            for (JsonObject json : stations) {
+                String stationId = json.get("stationId").getAsString();
+                StationIndex.Station station = stationIndex.station(dataset.asDatasetGraph(), stationId);
+                json.addProperty("stationName", getStationName(stationId));
+                json.add("latest", station == null ? null : latestObservation(station));
+                jsonArray.add(json);
+            }
         } finally {
             dataset.end();
         }
+        trace.rows(jsonArray.size());
+        return jsonArray.toString();
     }
 
-    public String queryWeatherDataByStationAndDate(String stationId, String date) {
-        String sparqlQuery = String.format("""
-        PREFIX ex: <http://example.org/weather#>
-
-        SELECT ?temperature ?pression_ocean ?wind_direction ?wind_speed ?dew_point ?humidity
-               ?horizontal_visibility ?couldiness ?min_temperature ?max_temperature
-        WHERE {
-            ?observation ex:station "%s" ;
-                         ex:date "%s" ;
-                         ex:temperature ?temperature ;
-                         ex:pression_ocean ?pression_ocean ;
-                         ex:wind_direction ?wind_direction ;
-                         ex:wind_speed ?wind_speed ;
-                         ex:dew_point ?dew_point ;
-                         ex:humidity ?humidity ;
-                         ex:horizontal_visibility ?horizontal_visibility ;
-                         ex:couldiness ?couldiness ;
-                         ex:min_temperature ?min_temperature ;
-                         ex:max_temperature ?max_temperature .
-        }
-        """, stationId, date);
-
-        dataset.begin(ReadWrite.READ);
-        try (QueryExecution qexec = QueryExecutionFactory.create(sparqlQuery, dataset)) {
-            ResultSet results = qexec.execSelect();
+    /**
+     * Observation at the last date of the station, must be called inside a READ transaction
+     */
+    private JsonObject latestObservation(StationIndex.Station station) {
+        QueryIterator results = WEATHER_DATA_QUERY.execute(dataset.asDatasetGraph(),
+                                                           Map.of("stationId", StationIndex.stationNode(station.id()),
+                                                                  "date", ObservationNormalizer.dateTime(station.lastObservation())));
+        try {
             if (!results.hasNext()) {
-                return "{\"error\": \"No data found for stationId: " + stationId + " and date: " + date + "\"}";
+                return null;
             }
+            Binding solution = results.nextBinding();
+            JsonObject latest = new JsonObject();
+            latest.addProperty("date", station.lastObservation());
+            for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+                latest.addProperty(measurement, measurementValue(solution, measurement));
+            }
+            return latest;
+        } finally {
+            results.close();
+        }
+    }
+
+    private String writeColumnarDates(String stationId, String lower, String upper, int limit, JsonRowWriter rows) {
+        QueryTrace trace = QueryTrace.start("writeDatesOfStation", "columnar", stationId);
+        try {
+            ColumnarStore.Columns columns = columnar.station(stationId);
+            if (columns == null) {
+                throw QueryException.notFound("No data found for stationId: " + stationId);
+            }
+            int first = columns.lowerBound(Long.parseLong(lower));
+            int end = columns.upperBound(Long.parseLong(upper));
+            int stop = limit > 0 ? Math.min(end, first + limit) : end;
+            for (int i = first; i < stop; i++) {
+                rows.row().name("date").value(Long.toString(columns.date(i)));
+            }
+            rows.finish();
+            trace.rows(rows.count());
+            return stop < end ? Long.toString(columns.date(stop - 1)) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            trace.finish();
+        }
+    }
 
-            QuerySolution solution = results.nextSolution();
+    private String queryColumnarObservation(String stationId, String date, List<String> derived) {
+        QueryTrace trace = QueryTrace.start("queryWeatherDataByStationAndDate", "columnar", stationId, date);
+        try {
+            ColumnarStore.Columns columns = columnar.station(stationId);
+            int row = columns == null ? -1 : columns.indexOf(ObservationNormalizer.compactNumber(date));
+            if (row < 0) {
+                throw QueryException.notFound("No data found for stationId: " + stationId + " and date: " + date);
+            }
+            trace.rows(1);
             JsonObject json = new JsonObject();
             json.addProperty("stationId", stationId);
-            json.addProperty("stationName", getStationName(stationId));
+            json.addProperty("stationName", columns.name());
             json.addProperty("date", date);
-            json.addProperty("temperature", handleMqValue(solution, "temperature", MISSING_VALUE));
-            json.addProperty("pression_ocean", handleMqValue(solution, "pression_ocean", MISSING_VALUE));
-
-            // get original wind direction
-            String rawWindDirection = handleMqValue(solution, "wind_direction", MISSING_VALUE);
-            // using converted wind direction
-            json.addProperty("wind_direction", convertWindDirection(rawWindDirection));
-
-            json.addProperty("wind_speed", handleMqValue(solution, "wind_speed", MISSING_VALUE));
-            json.addProperty("dew_point", handleMqValue(solution, "dew_point", MISSING_VALUE));
-            json.addProperty("humidity", handleMqValue(solution, "humidity", MISSING_VALUE));
-            json.addProperty("horizontal_visibility", handleMqValue(solution, "horizontal_visibility", MISSING_VALUE));
-            json.addProperty("couldiness", handleMqValue(solution, "couldiness", MISSING_VALUE));
-            json.addProperty("min_temperature", handleMqValue(solution, "min_temperature", MISSING_VALUE));
-            json.addProperty("max_temperature", handleMqValue(solution, "max_temperature", MISSING_VALUE));
-
+            for (int field = 0; field < WeatherVocabulary.MEASUREMENTS.size(); field++) {
+                json.addProperty(WeatherVocabulary.MEASUREMENTS.get(field), columnValue(columns, field, row));
+            }
+            addColumnarDerived(json, columns, row, derived);
             return json.toString();
         } finally {
-            dataset.end();
+            trace.finish();
         }
     }
 
-    private String convertWindDirection(String windDirectionValue) {
+    /**
+     * Same output as the TDB2 batch, each range being two binary searches over the station's dates
+     */
+    private void writeColumnarBatch(List<Range> ranges, JsonRowWriter rows) throws IOException {
+        QueryTrace trace = QueryTrace.start("writeObservationBatch", "columnar", ranges.size() + " ranges");
         try {
-            // Examine the value is null or "mq"
-            if (windDirectionValue == null || "mq".equals(windDirectionValue)) {
-                return "N/A";
+            writeColumnarRanges(ranges, rows, trace);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    private void writeColumnarRanges(List<Range> ranges, JsonRowWriter rows, QueryTrace trace) throws IOException {
+        for (Range range : ranges) {
+            ColumnarStore.Columns columns = columnar.station(range.stationId());
+            JsonWriter json = rows.row()
+                                  .name("stationId").value(range.stationId())
+                                  .name("stationName").value(columns != null ? columns.name() : getStationNameInTransaction(range.stationId()))
+                                  .name("from").value(range.from())
+                                  .name("to").value(range.to())
+                                  .name("observations").beginArray();
+            if (columns != null) {
+                int first = range.from() == null ? 0 : columns.lowerBound(ObservationNormalizer.compactNumber(range.from()));
+                int end = range.to() == null ? columns.size() : columns.upperBound(ObservationNormalizer.compactNumber(range.to()));
+                for (int i = first; i < end; i++) {
+                    writeColumnarRow(json, columns, i);
+                }
+                trace.rows(Math.max(0, end - first));
             }
+            json.endArray();
+        }
+        rows.finish();
+    }
 
-            // convert String to Integer
-            int angle = Integer.parseInt(windDirectionValue);
+    private String queryColumnarLatest(List<String> derived) {
+        QueryTrace trace = QueryTrace.start("queryLatestObservations", "columnar");
+        try {
+            return columnarLatest(trace, derived);
+        } finally {
+            trace.finish();
+        }
+    }
 
-            // convert wind direction according to angle
-            if (angle >= 348.75 || angle < 11.25) return "Vent du Nord (N)";
-            else if (angle >= 11.25 && angle < 33.75) return "Vent du Nord-Nord-Est (NNE)";
-            else if (angle >= 33.75 && angle < 56.25) return "Vent du Nord-Est (NE)";
-            else if (angle >= 56.25 && angle < 78.75) return "Vent d'Est-Nord-Est (ENE)";
-            else if (angle >= 78.75 && angle < 101.25) return "Vent d'Est (E)";
-            else if (angle >= 101.25 && angle < 123.75) return "Vent d'Est-Sud-Est (ESE)";
-            else if (angle >= 123.75 && angle < 146.25) return "Vent du Sud-Est (SE)";
-            else if (angle >= 146.25 && angle < 168.75) return "Vent du Sud-Sud-Est (SSE)";
-            else if (angle >= 168.75 && angle < 191.25) return "Vent du Sud (S)";
-            else if (angle >= 191.25 && angle < 213.75) return "Vent du Sud-Sud-Ouest (SSW)";
-            else if (angle >= 213.75 && angle < 236.25) return "Vent du Sud-Ouest (SW)";
-            else if (angle >= 236.25 && angle < 258.75) return "Vent d'Ouest-Sud-Ouest (WSW)";
-            else if (angle >= 258.75 && angle < 281.25) return "Vent d'Ouest (W)";
-            else if (angle >= 281.25 && angle < 303.75) return "Vent d'Ouest-Nord-Ouest (WNW)";
-            else if (angle >= 303.75 && angle < 326.25) return "Vent du Nord-Ouest (NW)";
-            else if (angle >= 326.25 && angle < 348.75) return "Vent du Nord-Nord-Ouest (NNW)";
-            else return "Direction Inconnu";
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
-            return "N/A";
+    private String columnarLatest(QueryTrace trace, List<String> derived) {
+        JsonArray jsonArray = new JsonArray();
+        for (String stationId : columnar.stationIds()) {
+            ColumnarStore.Columns columns = columnar.station(stationId);
+            int last = columns.size() - 1;
+            JsonObject json = new JsonObject();
+            json.addProperty("stationId", stationId);
+            json.addProperty("stationName", columns.name());
+            json.addProperty("date", Long.toString(columns.date(last)));
+            for (int field = 0; field < WeatherVocabulary.MEASUREMENTS.size(); field++) {
+                json.addProperty(WeatherVocabulary.MEASUREMENTS.get(field), columnValue(columns, field, last));
+            }
+            addColumnarDerived(json, columns, last, derived);
+            jsonArray.add(json);
+        }
+        if (jsonArray.isEmpty()) {
+            throw QueryException.notFound("No station has been found");
         }
+        trace.rows(jsonArray.size());
+        return jsonArray.toString();
     }
 
+    private void writeColumnarRow(JsonWriter json, ColumnarStore.Columns columns, int row) throws IOException {
+        json.beginObject().name("date").value(Long.toString(columns.date(row)));
+        for (int field = 0; field < WeatherVocabulary.MEASUREMENTS.size(); field++) {
+            json.name(WeatherVocabulary.MEASUREMENTS.get(field)).value(columnValue(columns, field, row));
+        }
+        json.endObject();
+    }
 
+    /**
+     * Measurement as returned by the API, formatted like {@link #measurementValue} does for the TDB2 results
+     */
+    private String columnValue(ColumnarStore.Columns columns, int field, int row) {
+        boolean missing = columns.isMissing(field, row);
+        String name = WeatherVocabulary.FIELDS.get(field);
+        if ("wind_direction".equals(name)) {
+            return convertWindDirection(missing ? null : columns.intValue(field, row));
+        }
+        if (missing) {
+            return MISSING_VALUE;
+        }
+        if ("wind_sector".equals(name)) {
+            return DerivedMetrics.SECTORS.get(columns.intValue(field, row));
+        }
+        return columns.isInteger(field) ? Integer.toString(columns.intValue(field, row))
+                                        : formatMeasurement(name, columns.doubleValue(field, row));
+    }
 
+    private String getStationNameInTransaction(String stationId) {
+        Metrics.DEFAULT.begin(dataset, ReadWrite.READ);
+        try {
+            return getStationName(stationId);
+        } finally {
+            dataset.end();
+        }
+    }
 
-    private <T> T handleMqValue(QuerySolution solution, String variableName, T missingValueMarker) {
-        // If the result set does not contain the variable, directly return the marker value
-        if (!solution.contains(variableName)) {
-            return missingValueMarker;
+    /**
+     * Write one group of a batch, its observations oldest first
+     */
+    private void writeRange(JsonRowWriter rows, Range range, List<Binding> observations) throws IOException {
+        observations.sort(Comparator.comparing(solution -> ObservationNormalizer.compactDate(solution.get("date"))));
+        JsonWriter json = rows.row()
+                              .name("stationId").value(range.stationId())
+                              .name("stationName").value(getStationName(range.stationId()))
+                              .name("from").value(range.from())
+                              .name("to").value(range.to())
+                              .name("observations").beginArray();
+        for (Binding solution : observations) {
+            json.beginObject().name("date").value(ObservationNormalizer.compactDate(solution.get("date")));
+            for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+                json.name(measurement).value(measurementValue(solution, measurement));
+            }
+            json.endObject();
         }
+        json.endArray();
+    }
 
-        try {
-            // Get the variable value
-            String value = solution.getLiteral(variableName).getString();
+    private static List<Range> parseRanges(String body) {
+        JsonArray requests = JsonParser.parseString(body).getAsJsonArray();
+        if (requests.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(requests.size() + " pairs, at most " + MAX_BATCH_SIZE + " are allowed");
+        }
+        List<Range> ranges = new ArrayList<>(requests.size());
+        for (JsonElement element : requests) {
+            JsonObject request = element.getAsJsonObject();
+            if (!request.has("stationId")) {
+                throw new IllegalArgumentException("stationId is missing in " + request);
+            }
+            Range range = new Range(request.get("stationId").getAsString(),
+                                    request.has("from") ? request.get("from").getAsString() : null,
+                                    request.has("to") ? request.get("to").getAsString() : null);
+            for (String date : new String[] {range.from(), range.to()}) {
+                if (date != null) {
+                    try {
+                        ObservationNormalizer.dateTime(date);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid date: " + date + ", expected yyyyMMddHHmmss");
+                    }
+                }
+            }
+            ranges.add(range);
+        }
+        return ranges;
+    }
 
-            // If the value is "mq", return the marker value
-            if ("mq".equals(value)) {
-                return missingValueMarker;
+    /**
+     * Names of the derived values asked for: none for null or empty, every one for "all"
+     * @throws IllegalArgumentException for a name that is not a derived value
+     */
+    private static List<String> derivedFields(String derived) {
+        if (derived == null || derived.isBlank()) {
+            return List.of();
+        }
+        if ("all".equals(derived.trim())) {
+            return WeatherVocabulary.DERIVED;
+        }
+        List<String> fields = new ArrayList<>();
+        for (String name : derived.split(",")) {
+            if (!WeatherVocabulary.DERIVED.contains(name.trim())) {
+                throw new IllegalArgumentException("Unknown derived field: " + name.trim() + ", expected one of "
+                                                   + String.join(",", WeatherVocabulary.DERIVED) + " or all");
             }
+            fields.add(name.trim());
+        }
+        return fields;
+    }
 
-            // Dynamic type conversion
-            if (missingValueMarker instanceof Integer) {
-                return (T) Integer.valueOf(value);
-            } else if (missingValueMarker instanceof Double) {
-                return (T) Double.valueOf(value);
-            } else if (missingValueMarker instanceof String) {
-                return (T) value;
+    /**
+     * Add the derived values stored with the observation, must be called inside a READ transaction
+     */
+    private void addDerived(JsonObject json, String stationId, Node date, List<String> derived) {
+        if (derived.isEmpty()) {
+            return;
+        }
+        QueryIterator results = DERIVED_QUERY.execute(dataset.asDatasetGraph(),
+                                                      Map.of("stationId", StationIndex.stationNode(stationId), "date", date));
+        try {
+            Binding solution = results.hasNext() ? results.nextBinding() : null;
+            for (String name : derived) {
+                Number value = solution == null ? null : number(solution, name);
+                json.addProperty(name, value == null ? MISSING_VALUE
+                                       : "wind_sector".equals(name) ? DerivedMetrics.SECTORS.get(value.intValue())
+                                       : formatValue(solution, name));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } finally {
+            results.close();
         }
+    }
 
-        // Return the marker value in case of an exception
-        return missingValueMarker;
+    private void addColumnarDerived(JsonObject json, ColumnarStore.Columns columns, int row, List<String> derived) {
+        for (String name : derived) {
+            json.addProperty(name, columnValue(columns, WeatherVocabulary.FIELDS.indexOf(name), row));
+        }
     }
 
+    /**
+     * French name of each compass sector of {@link DerivedMetrics#SECTORS}
+     */
+    private static final List<String> WIND_DIRECTIONS = List.of(
+            "Vent du Nord (N)", "Vent du Nord-Nord-Est (NNE)", "Vent du Nord-Est (NE)", "Vent d'Est-Nord-Est (ENE)",
+            "Vent d'Est (E)", "Vent d'Est-Sud-Est (ESE)", "Vent du Sud-Est (SE)", "Vent du Sud-Sud-Est (SSE)",
+            "Vent du Sud (S)", "Vent du Sud-Sud-Ouest (SSW)", "Vent du Sud-Ouest (SW)", "Vent d'Ouest-Sud-Ouest (WSW)",
+            "Vent d'Ouest (W)", "Vent d'Ouest-Nord-Ouest (WNW)", "Vent du Nord-Ouest (NW)", "Vent du Nord-Nord-Ouest (NNW)");
 
+    private String convertWindDirection(Integer angle) {
+        // Examine the value is missing
+        if (angle == null) {
+            return MISSING_VALUE;
+        }
+        return WIND_DIRECTIONS.get(DerivedMetrics.compassSector(angle));
+    }
 
+    /**
+     * Measurement as returned by the API, wind direction converted to its compass name
+     */
+    private String measurementValue(Binding solution, String measurement) {
+        if ("wind_direction".equals(measurement)) {
+            // using converted wind direction
+            Number angle = number(solution, measurement);
+            return convertWindDirection(angle == null ? null : angle.intValue());
+        }
+        return formatValue(solution, measurement);
+    }
 
-}
+    /**
+     * Value of a typed measurement, null when it is missing
+     */
+    private static Number number(Binding solution, String variableName) {
+        Node value = solution.get(variableName);
+        if (value == null || !value.isLiteral()) {
+            return null;
+        }
+        return value.getLiteralValue() instanceof Number number ? number : null;
+    }
 
+    /**
+     * Measurement as returned by the API, "N/A" when missing
+     */
+    private static String formatValue(Binding solution, String variableName) {
+        Number value = number(solution, variableName);
+        if (value == null) {
+            return MISSING_VALUE;
+        }
+        return WeatherVocabulary.INTEGER_MEASUREMENTS.contains(variableName)
+               ? Long.toString(value.longValue()) : formatMeasurement(variableName, value.doubleValue());
+    }
+
+    /**
+     * A measurement in the form of the source files, which the API has always returned:
+     * six decimals ("282.650000"), integer measurements without any. The store, the
+     * columns and the rollups hold numbers, not the text of the file.
+     */
+    private static String formatMeasurement(String field, double value) {
+        return WeatherVocabulary.INTEGER_MEASUREMENTS.contains(field) ? Long.toString(Math.round(value)) : sixDecimals(value);
+    }
+
+    private static String sixDecimals(double value) {
+        long micros = Math.round(value * 1_000_000);
+        StringBuilder text = new StringBuilder(16);
+        if (micros < 0) {
+            text.append('-');
+            micros = -micros;
+        }
+        String fraction = Long.toString(micros % 1_000_000);
+        return text.append(micros / 1_000_000).append('.').append("000000", fraction.length(), 6).append(fraction).toString();
+    }
+}
@@ -0,0 +1,70 @@
+package org.example.weatherApp;
+
+/**
+ * Which stations a shard process keeps, when the observations are partitioned by station
+ * across several processes ({@link WeatherCluster}). A station belongs to shard
+ * hash(id) mod count; String.hashCode is fixed by the language, so every process and
+ * the router agree on it without sharing anything but the number of shards.
+ */
+public final class ShardMap {
+    private final int index;
+    private final int count;
+
+    public ShardMap(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Shard from its "index/count" form, e.g. 0/2 for the first of two
+     */
+    public static ShardMap parse(String shard) {
+        int slash = shard.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Invalid shard " + shard + ", expected index/count");
+        }
+        return new ShardMap(Integer.parseInt(shard.substring(0, slash).trim()),
+                            Integer.parseInt(shard.substring(slash + 1).trim()));
+    }
+
+    /**
+     * Shard of a station among count shards
+     */
+    public static int shardOf(String stationId, int count) {
+        return Math.floorMod(stationId.hashCode(), count);
+    }
+
+    public int index() {
+        return index;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean owns(String stationId) {
+        return shardOf(stationId, count) == index;
+    }
+
+    /**
+     * Whether the block goes to this shard: observations and station resources (name,
+     * coordinates) of its stations, and anything else, which every shard keeps
+     */
+    public boolean owns(ObservationGrouper.Block block) {
+        if (block.station() != null) {
+            return owns(block.station());
+        }
+        if (block.subject().isURI() && block.subject().getURI().startsWith(StationIndex.STATION_BASE)) {
+            return owns(StationIndex.stationId(block.subject()));
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
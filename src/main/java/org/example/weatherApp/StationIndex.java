@@ -0,0 +1,309 @@
+package org.example.weatherApp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * One resource per station in the default graph, ex:station/{id}, carrying its name
+ * and a summary of its observations (first and last date, count). The loader keeps
+ * the summary up to date batch by batch, so listing the stations reads ~62
+ * resources instead of scanning every observation.
+ * Names come from the station list bundled in stations.csv (Météo-France postesSynop),
+ * or from the file given by -Dweather.stations. When the list has the Latitude, Longitude
+ * and Altitude columns of postesSynop.csv, the station resources also get WGS84
+ * coordinates (geo:lat, geo:long, geo:alt), which {@link GeoIndex} reads.
+ */
+public class StationIndex implements IngestListener {
+    public static final String STATION_BASE = WeatherVocabulary.NS + "station/";
+    private static final String UNKNOWN_STATION = "Unknown Station";
+
+    private static final Node STATION_NAME = NodeFactory.createURI(WeatherVocabulary.NS + "stationName");
+    private static final Node FIRST_OBSERVATION = NodeFactory.createURI(WeatherVocabulary.NS + "firstObservation");
+    private static final Node LAST_OBSERVATION = NodeFactory.createURI(WeatherVocabulary.NS + "lastObservation");
+    private static final Node OBSERVATION_COUNT = NodeFactory.createURI(WeatherVocabulary.NS + "observationCount");
+
+    private static final Map<String, Registered> REGISTRY = loadRegistry(System.getProperty("weather.stations"));
+
+    private static final PreparedQuery SUMMARY_QUERY = new PreparedQuery("""
+            PREFIX ex: <http://example.org/weather#>
+
+            SELECT ?station (MIN(?date) AS ?first) (MAX(?date) AS ?last) (COUNT(?observation) AS ?count)
+            WHERE {
+                ?observation ex:station ?station ;
+                             ex:date ?date .
+            }
+            GROUP BY ?station
+            """);
+
+    /**
+     * Dates are in the compact yyyyMMddHHmmss form.
+     */
+    public record Station(String id, String name, String firstObservation, String lastObservation, long observationCount) {
+    }
+
+    /**
+     * A line of the station list, coordinates null when the list has none
+     */
+    public record Registered(String name, Double latitude, Double longitude, Double altitude) {
+    }
+
+    public static Node stationNode(String stationId) {
+        return NodeFactory.createURI(STATION_BASE + stationId);
+    }
+
+    public static String stationId(Node station) {
+        if (station.isLiteral()) {
+            return station.getLiteralLexicalForm();
+        }
+        String uri = station.getURI();
+        return uri.substring(uri.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * All stations, ordered by id. Must be called inside a READ transaction.
+     */
+    public List<Station> list(DatasetGraph dsg) {
+        Graph graph = dsg.getDefaultGraph();
+        TreeSet<String> ids = new TreeSet<>();
+        collectStations(graph, STATION_NAME, ids);
+        collectStations(graph, OBSERVATION_COUNT, ids);
+
+        List<Station> stations = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            stations.add(read(graph, id));
+        }
+        return stations;
+    }
+
+    /**
+     * Summary of one station, null when it has no observation. Must be called inside a READ transaction.
+     */
+    public Station station(DatasetGraph dsg, String stationId) {
+        Station station = read(dsg.getDefaultGraph(), stationId);
+        return station.observationCount() > 0 ? station : null;
+    }
+
+    /**
+     * Must be called inside a READ transaction.
+     */
+    public String name(DatasetGraph dsg, String stationId) {
+        Node name = value(dsg.getDefaultGraph(), stationNode(stationId), STATION_NAME);
+        return name != null ? name.getLiteralLexicalForm() : registeredName(stationId);
+    }
+
+    /**
+     * Whether the station list gives coordinates, see {@link GeoIndex}
+     */
+    public static boolean hasRegisteredCoordinates() {
+        return REGISTRY.values().stream().anyMatch(registered -> registered.latitude() != null);
+    }
+
+    /**
+     * Add the coordinates of the station list to the stations of the store that have none,
+     * for stores loaded before the list had coordinates. Must be called inside a WRITE transaction.
+     * @return the number of stations given coordinates
+     */
+    public int writeCoordinates(DatasetGraph dsg) {
+        Graph graph = dsg.getDefaultGraph();
+        TreeSet<String> ids = new TreeSet<>();
+        collectStations(graph, OBSERVATION_COUNT, ids);
+        int written = 0;
+        for (String id : ids) {
+            if (writeCoordinates(graph, id)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void beforeCommit(DatasetGraph dsg, List<ObservationGrouper.Block> batch) {
+        Map<String, Station> summaries = new HashMap<>();
+        for (ObservationGrouper.Block block : batch) {
+            summaries.merge(block.station(), new Station(block.station(), null, block.date(), block.date(), 1), StationIndex::merge);
+        }
+        Graph graph = dsg.getDefaultGraph();
+        for (Station summary : summaries.values()) {
+            Station current = read(graph, summary.id());
+            write(graph, current.observationCount() == 0 ? summary : merge(current, summary));
+        }
+    }
+
+    @Override
+    public void rebuild(DatasetGraph dsg) {
+        Graph graph = dsg.getDefaultGraph();
+        List<Station> summaries = new ArrayList<>();
+        QueryIterator results = SUMMARY_QUERY.execute(dsg, Map.of());
+        try {
+            while (results.hasNext()) {
+                Binding row = results.nextBinding();
+                summaries.add(new Station(stationId(row.get("station")), null,
+                                          ObservationNormalizer.compactDate(row.get("first")),
+                                          ObservationNormalizer.compactDate(row.get("last")),
+                                          Long.parseLong(row.get("count").getLiteralLexicalForm())));
+            }
+        } finally {
+            results.close();
+        }
+        summaries.forEach(summary -> write(graph, summary));
+    }
+
+    private static Station merge(Station a, Station b) {
+        return new Station(a.id(), a.name(),
+                           a.firstObservation().compareTo(b.firstObservation()) <= 0 ? a.firstObservation() : b.firstObservation(),
+                           a.lastObservation().compareTo(b.lastObservation()) >= 0 ? a.lastObservation() : b.lastObservation(),
+                           a.observationCount() + b.observationCount());
+    }
+
+    private Station read(Graph graph, String stationId) {
+        Node station = stationNode(stationId);
+        Node name = value(graph, station, STATION_NAME);
+        Node first = value(graph, station, FIRST_OBSERVATION);
+        Node last = value(graph, station, LAST_OBSERVATION);
+        Node count = value(graph, station, OBSERVATION_COUNT);
+        return new Station(stationId,
+                           name != null ? name.getLiteralLexicalForm() : registeredName(stationId),
+                           first != null ? ObservationNormalizer.compactDate(first) : null,
+                           last != null ? ObservationNormalizer.compactDate(last) : null,
+                           count != null ? Long.parseLong(count.getLiteralLexicalForm()) : 0);
+    }
+
+    private void write(Graph graph, Station summary) {
+        Node station = stationNode(summary.id());
+        if (value(graph, station, STATION_NAME) == null) {
+            graph.add(station, STATION_NAME, NodeFactory.createLiteralString(registeredName(summary.id())));
+        }
+        writeCoordinates(graph, summary.id());
+        replace(graph, station, FIRST_OBSERVATION, ObservationNormalizer.dateTime(summary.firstObservation()));
+        replace(graph, station, LAST_OBSERVATION, ObservationNormalizer.dateTime(summary.lastObservation()));
+        replace(graph, station, OBSERVATION_COUNT,
+                NodeFactory.createLiteralDT(Long.toString(summary.observationCount()), XSDDatatype.XSDlong));
+    }
+
+    private static boolean writeCoordinates(Graph graph, String stationId) {
+        Registered registered = REGISTRY.get(stationId);
+        Node station = stationNode(stationId);
+        if (registered == null || registered.latitude() == null || registered.longitude() == null
+            || value(graph, station, WeatherVocabulary.GEO_LAT) != null) {
+            return false;
+        }
+        graph.add(station, WeatherVocabulary.GEO_LAT, coordinate(registered.latitude()));
+        graph.add(station, WeatherVocabulary.GEO_LONG, coordinate(registered.longitude()));
+        if (registered.altitude() != null) {
+            graph.add(station, WeatherVocabulary.GEO_ALT, coordinate(registered.altitude()));
+        }
+        return true;
+    }
+
+    private static Node coordinate(double value) {
+        return NodeFactory.createLiteralDT(Double.toString(value), XSDDatatype.XSDdouble);
+    }
+
+    private static String registeredName(String stationId) {
+        Registered registered = REGISTRY.get(stationId);
+        return registered != null ? registered.name() : UNKNOWN_STATION;
+    }
+
+    private static void collectStations(Graph graph, Node predicate, TreeSet<String> ids) {
+        Iterator<Triple> iter = graph.find(Node.ANY, predicate, Node.ANY);
+        while (iter.hasNext()) {
+            Node subject = iter.next().getSubject();
+            if (subject.isURI() && subject.getURI().startsWith(STATION_BASE)) {
+                ids.add(stationId(subject));
+            }
+        }
+    }
+
+    private static Node value(Graph graph, Node subject, Node predicate) {
+        Iterator<Triple> iter = graph.find(subject, predicate, Node.ANY);
+        return iter.hasNext() ? iter.next().getObject() : null;
+    }
+
+    private static void replace(Graph graph, Node subject, Node predicate, Node object) {
+        graph.remove(subject, predicate, Node.ANY);
+        graph.add(subject, predicate, object);
+    }
+
+    /**
+     * Read the station list: the file if one is given, else the bundled stations.csv.
+     * Columns are found by their header (ID, Nom, Latitude, Longitude, Altitude, in any
+     * order and case), the coordinates being optional; decimal commas are accepted.
+     * @throws IllegalArgumentException when the header has no ID or no Nom column
+     */
+    private static Map<String, Registered> loadRegistry(String file) {
+        Map<String, Registered> stations = new HashMap<>();
+        InputStream in;
+        try {
+            in = file != null ? Files.newInputStream(Path.of(file)) : StationIndex.class.getResourceAsStream("/stations.csv");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + file, e);
+        }
+        if (in == null) {
+            return stations;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null) {
+                return stations;
+            }
+            List<String> columns = new ArrayList<>();
+            // a file saved from a spreadsheet may start with a byte order mark
+            for (String column : header.replace("\uFEFF", "").split(";")) {
+                columns.add(column.trim().toLowerCase(Locale.ROOT));
+            }
+            int id = columns.indexOf("id");
+            int name = columns.indexOf("nom");
+            if (id < 0 || name < 0) {
+                throw new IllegalArgumentException("The station list " + (file != null ? file : "stations.csv")
+                                                   + " needs ID and Nom columns, its header is: " + header);
+            }
+            int latitude = columns.indexOf("latitude");
+            int longitude = columns.indexOf("longitude");
+            int altitude = columns.indexOf("altitude");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cells = line.split(";");
+                if (cells.length > Math.max(id, name)) {
+                    stations.put(cells[id].trim(), new Registered(cells[name].trim(), number(cells, latitude),
+                                                                  number(cells, longitude), number(cells, altitude)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + (file != null ? file : "stations.csv"), e);
+        }
+        return stations;
+    }
+
+    private static Double number(String[] cells, int column) {
+        if (column < 0 || column >= cells.length || cells[column].isBlank()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(cells[column].trim().replace(',', '.'));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.weatherApp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+/**
+ * Météo-France SYNOP dump (synop.YYYYMM.csv): one observation per line, ';' separated,
+ * with a header row. Produces the same triples as the Turtle export, "mq" included.
+ */
+public class SynopCsvSource implements ObservationSource<String> {
+
+    /**
+     * CSV column of each property
+     */
+    private static final Map<String, String> COLUMNS = new HashMap<>();
+    static {
+        COLUMNS.put("temperature", "t");
+        COLUMNS.put("pression_ocean", "pmer");
+        COLUMNS.put("wind_direction", "dd");
+        COLUMNS.put("wind_speed", "ff");
+        COLUMNS.put("dew_point", "td");
+        COLUMNS.put("humidity", "u");
+        COLUMNS.put("horizontal_visibility", "vv");
+        COLUMNS.put("couldiness", "n");
+        COLUMNS.put("min_temperature", "tn12");
+        COLUMNS.put("max_temperature", "tx12");
+    }
+    private static final List<Node> PROPERTIES = new ArrayList<>();
+    static {
+        for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+            PROPERTIES.add(NodeFactory.createURI(WeatherVocabulary.NS + measurement));
+        }
+    }
+    private static final Node STATION = NodeFactory.createURI(WeatherVocabulary.NS + "station");
+    private static final Node DATE = NodeFactory.createURI(WeatherVocabulary.NS + "date");
+
+    private final Path path;
+    // column index per MEASUREMENTS entry, then station and date; set once the header is read
+    private volatile int[] columnIndexes;
+
+    public SynopCsvSource(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public Path path() {
+        return path;
+    }
+
+    @Override
+    public void read(Consumer<String> sink) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return;
+            }
+            columnIndexes = indexColumns(header.split(";", -1));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    sink.accept(line);
+                }
+            }
+        }
+    }
+
+    private static int[] indexColumns(String[] header) {
+        List<String> names = new ArrayList<>();
+        for (String column : header) {
+            names.add(column.trim());
+        }
+        List<String> wanted = new ArrayList<>();
+        for (String measurement : WeatherVocabulary.MEASUREMENTS) {
+            wanted.add(COLUMNS.get(measurement));
+        }
+        wanted.add("numer_sta");
+        wanted.add("date");
+
+        int[] indexes = new int[wanted.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = names.indexOf(wanted.get(i));
+            if (indexes[i] < 0) {
+                throw new IllegalArgumentException("Missing column '" + wanted.get(i) + "' in SYNOP file header");
+            }
+        }
+        return indexes;
+    }
+
+    @Override
+    public ObservationGrouper.Block build(String line) {
+        String[] cells = line.split(";", -1);
+        int[] indexes = columnIndexes;
+        int measurements = PROPERTIES.size();
+        String station = cells[indexes[measurements]].trim();
+        String date = cells[indexes[measurements + 1]].trim();
+
+        Node subject = NodeFactory.createURI(WeatherVocabulary.OBSERVATION_BASE + station + "/" + date);
+        List<Triple> triples = new ArrayList<>(measurements + 2);
+        for (int i = 0; i < measurements; i++) {
+            String value = indexes[i] < cells.length ? cells[indexes[i]].trim() : "";
+            triples.add(Triple.create(subject, PROPERTIES.get(i), NodeFactory.createLiteralString(value.isEmpty() ? "mq" : value)));
+        }
+        triples.add(Triple.create(subject, STATION, NodeFactory.createLiteralString(station)));
+        triples.add(Triple.create(subject, DATE, NodeFactory.createLiteralString(date)));
+        return new ObservationGrouper.Block(subject, triples, station, date);
+    }
+}
@@ -1,58 +1,488 @@
 package org.example.weatherApp;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonObject;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.UriInfo;
+import jakarta.ws.rs.core.Variant;
 
 @Path("/api/weather")
 public class WeatherAPI {
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final Duration DEFAULT_CACHE_TTL = Duration.ofHours(1);
+
+    /**
+     * Responses change only when new observations are loaded: clients keep them but
+     * revalidate with the ETag, which costs a 304 and no body while nothing changed
+     */
+    private static final CacheControl CACHE_CONTROL = new CacheControl();
+    static {
+        CACHE_CONTROL.setNoCache(true);
+        CACHE_CONTROL.setNoTransform(false);
+    }
+
+    private static final List<Variant> VARIANTS = Variant.mediaTypes(
+            MediaType.APPLICATION_JSON_TYPE, new MediaType("application", "x-ndjson"), new MediaType("application", "cbor")).build();
+
+    /** Largest observation upload accepted */
+    static final long MAX_UPLOAD_BYTES = 64L * 1024 * 1024;
+    /** How long an upload waits for its load before being answered 202 */
+    private static final Duration INGEST_WAIT = Duration.ofSeconds(60);
+    static final String TURTLE = "text/turtle";
+    static final String N_TRIPLES = "application/n-triples";
+    static final String CSV = "text/csv";
+
     private final SPARQLService sparqlService;
+    private final ResponseCache cache;
+    private final LiveIngest ingest;
 
     public WeatherAPI(SPARQLService sparqlService) {
+        this(sparqlService, new ResponseCache(DEFAULT_CACHE_BYTES, DEFAULT_CACHE_TTL));
+    }
+
+    /**
+     * @param cache register it with the loader so that new observations invalidate it
+     */
+    public WeatherAPI(SPARQLService sparqlService, ResponseCache cache) {
+        this(sparqlService, cache, null);
+    }
+
+    /**
+     * @param ingest loads the observations posted to /observations, null to refuse them
+     */
+    public WeatherAPI(SPARQLService sparqlService, ResponseCache cache, LiveIngest ingest) {
         this.sparqlService = sparqlService;
+        this.cache = cache;
+        this.ingest = ingest;
     }
 
+    /**
+     * JSON array or CBOR (cached, the list is small), or NDJSON streamed from the station index
+     */
     @GET
     @Path("/stations")
+    @Produces({MediaType.APPLICATION_JSON, JsonRowWriter.NDJSON, CompactCbor.CBOR})
+    public Response getStation(@Context Request request) {
+        if (!isNdjson(request)) {
+            return cached(request, "stations", null, sparqlService::queryStation);
+        }
+        try {
+            sparqlService.checkStations();
+        } catch (QueryException e) {
+            return failure(e);
+        }
+        return streamed(out -> sparqlService.writeStations(out, true), JsonRowWriter.NDJSON).build();
+    }
+
+    /**
+     * The k stations closest to the point, with their distance and latest observation.
+     * Not cached: any point can be asked, and the geo index answers without a scan.
+     */
+    @GET
+    @Path("/stations/nearest")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getNearestStations(@QueryParam("lat") Double latitude,
+                                       @QueryParam("lon") Double longitude,
+                                       @QueryParam("k") @DefaultValue("5") int k,
+                                       @Context Request request) {
+        if (latitude == null || longitude == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(error("lat and lon are required"))
+                           .type(MediaType.APPLICATION_JSON_TYPE).build();
+        }
+        try {
+            return negotiated(request, sparqlService.queryNearestStations(latitude, longitude, k)).build();
+        } catch (QueryException e) {
+            return failure(e);
+        }
+    }
+
+    /**
+     * Stations inside the box, with their latest observation
+     */
+    @GET
+    @Path("/stations/bbox")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationsInBox(@QueryParam("minLat") Double minLatitude,
+                                     @QueryParam("minLon") Double minLongitude,
+                                     @QueryParam("maxLat") Double maxLatitude,
+                                     @QueryParam("maxLon") Double maxLongitude,
+                                     @Context Request request) {
+        if (minLatitude == null || minLongitude == null || maxLatitude == null || maxLongitude == null) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(error("minLat, minLon, maxLat and maxLon are required"))
+                           .type(MediaType.APPLICATION_JSON_TYPE).build();
+        }
+        try {
+            return negotiated(request, sparqlService.queryStationsInBox(minLatitude, minLongitude, maxLatitude, maxLongitude)).build();
+        } catch (QueryException e) {
+            return failure(e);
+        }
+    }
+
+    /**
+     * Observations of many (station, date range) pairs in one round trip, see
+     * {@link SPARQLService#writeObservationBatch}. As CBOR the answer is written whole
+     * before it is transcoded, as JSON it is streamed.
+     */
+    @POST
+    @Path("/observations:batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getObservationBatch(String body, @Context Request request) {
+        // parsed ahead: an invalid batch is a 400, not an error in the middle of a 200 stream
+        List<SPARQLService.Range> ranges;
+        try {
+            ranges = SPARQLService.parseBatch(body);
+        } catch (QueryException e) {
+            return failure(e);
+        }
+        if (isCbor(request)) {
+            StringWriter out = new StringWriter();
+            sparqlService.writeObservationBatch(ranges, out);
+            return negotiated(request, out.toString()).build();
+        }
+        return streamed(out -> sparqlService.writeObservationBatch(ranges, out), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * New observations as Turtle, N-Triples or a SYNOP CSV dump, loaded by {@link LiveIngest}.
+     * Answers the load report once they are committed, 202 if that takes too long, and
+     * 503 with a Retry-After when the ingest queue is full.
+     */
+    @POST
+    @Path("/observations")
+    @Consumes({TURTLE, N_TRIPLES, CSV})
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getStation() {
+    public Response postObservations(InputStream body, @HeaderParam(HttpHeaders.CONTENT_TYPE) MediaType contentType) {
+        if (ingest == null) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                           .entity(error("Live ingestion is disabled")).build();
+        }
+        String extension = contentType.isCompatible(MediaType.valueOf(TURTLE)) ? "ttl"
+                           : contentType.isCompatible(MediaType.valueOf(N_TRIPLES)) ? "nt" : "csv";
+        CompletableFuture<IngestPipeline.Report> result;
         try {
-            String result = sparqlService.queryStation();
-            return Response.ok(result).build();
-        } catch (Exception e) {
+            result = ingest.upload(body, extension, MAX_UPLOAD_BYTES);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).entity(error(e.getMessage())).build();
+        } catch (IOException e) {
             e.printStackTrace();
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                           .entity("{\"error\": \"" + e.getMessage() + "\"}").build();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(error("Cannot store the upload")).build();
+        }
+        if (result == null) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                           .header("Retry-After", 5)
+                           .entity(error("Too many uploads waiting to be loaded, retry later")).build();
+        }
+
+        try {
+            IngestPipeline.Report report = result.get(INGEST_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+            JsonObject json = new JsonObject();
+            json.addProperty("observations", report.observations());
+            json.addProperty("skipped", report.skipped());
+            json.addProperty("late", report.late());
+            json.addProperty("invalid", report.invalid());
+            json.addProperty("triples", report.triples());
+            json.addProperty("batches", report.batches());
+            json.addProperty("millis", report.millis());
+            json.addProperty("maxCommitMillis", report.maxCommitMillis());
+            return Response.ok(json.toString()).build();
+        } catch (TimeoutException e) {
+            JsonObject json = new JsonObject();
+            json.addProperty("status", "queued");
+            return Response.accepted(json.toString()).build();
+        } catch (ExecutionException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(error("Cannot load the observations: " + e.getCause().getMessage())).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(error("Interrupted")).build();
         }
     }
 
+    /**
+     * Latest observation of every station, e.g. for a map.
+     * derived: comma separated derived values to add (temperature_celsius, wind_chill...), or all
+     */
+    @GET
+    @Path("/observations/latest")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getLatestObservations(@QueryParam("derived") String derived, @Context Request request) {
+        return cached(request, derived == null ? "latest" : "latest|" + derived, null,
+                      () -> sparqlService.queryLatestObservations(derived));
+    }
+
+    /**
+     * Date list of a station, oldest first, streamed from the query results as a JSON array or NDJSON.
+     * from and to (yyyyMMddHHmmss, both included) narrow it down. With limit it comes in pages:
+     * the response links the next one (Link: <...?after=...>; rel="next"), whose after is the
+     * last date of this page, and there is no next link on the last page.
+     * It is not kept in the response cache: the ETag comes from the station index summary
+     * (count and last observation), which changes exactly when the list does.
+     */
     @GET
     @Path("/{stationId}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getWeather(@PathParam("stationId") String stationId) {
+    @Produces({MediaType.APPLICATION_JSON, JsonRowWriter.NDJSON})
+    public Response getWeather(@PathParam("stationId") String stationId,
+                               @QueryParam("from") String from,
+                               @QueryParam("to") String to,
+                               @QueryParam("after") String after,
+                               @QueryParam("limit") Integer limit,
+                               @Context Request request,
+                               @Context UriInfo uriInfo) {
+        if (limit != null && (limit < 1 || limit > SPARQLService.MAX_PAGE_SIZE)) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(error("limit must be between 1 and " + SPARQLService.MAX_PAGE_SIZE)).build();
+        }
         try {
-            String result = sparqlService.queryDateOfStation(stationId);
-            return Response.ok(result).build();
+            // checked ahead: a bad parameter or an unknown station is a 400 or 404, not an error in a 200 stream
+            sparqlService.checkDates(stationId, from, to, after, limit == null ? 0 : limit);
+            boolean ndjson = isNdjson(request);
+            String type = ndjson ? JsonRowWriter.NDJSON : MediaType.APPLICATION_JSON;
+            EntityTag etag = new EntityTag((ndjson ? "ndjson-" : "json-") + sparqlService.datesVersion(stationId), true);
+            Response.ResponseBuilder notModified = request == null ? null : request.evaluatePreconditions(etag);
+            if (notModified != null) {
+                return notModified.cacheControl(CACHE_CONTROL).build();
+            }
+            if (limit == null) {
+                return streamed(out -> sparqlService.writeDatesOfStation(stationId, from, to, after, 0, out, ndjson), type)
+                        .tag(etag).cacheControl(CACHE_CONTROL).build();
+            }
+            // a page is at most MAX_PAGE_SIZE dates: written ahead, so the next link can go in the headers
+            StringWriter page = new StringWriter();
+            String next = sparqlService.writeDatesOfStation(stationId, from, to, after, limit, page, ndjson);
+            Response.ResponseBuilder response = Response.ok(page.toString(), type).tag(etag).cacheControl(CACHE_CONTROL);
+            if (next != null && uriInfo != null) {
+                response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", next).build(), "next");
+            }
+            return response.build();
+        } catch (QueryException e) {
+            return failure(e);
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                           .entity("{\"error\": \"" + e.getMessage() + "\"}").build();
+                           .entity(error(e.getMessage())).type(MediaType.APPLICATION_JSON_TYPE).build();
         }
     }
 
+    /**
+     * derived: comma separated derived values to add (temperature_celsius, wind_chill...), or all
+     */
     @GET
     @Path("/{stationId}/{date}")
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
     public Response getWeatherByStationAndDate(@PathParam("stationId") String stationId,
-                                               @PathParam("date") String date) {
+                                               @PathParam("date") String date,
+                                               @QueryParam("derived") String derived,
+                                               @Context Request request) {
+        return cached(request, String.join("|", "observation", stationId, date, derived), stationId,
+                      () -> sparqlService.queryWeatherDataByStationAndDate(stationId, date, derived));
+    }
+
+    @GET
+    @Path("/{stationId}/series")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getSeries(@PathParam("stationId") String stationId,
+                              @QueryParam("from") String from,
+                              @QueryParam("to") String to,
+                              @QueryParam("fields") String fields,
+                              @QueryParam("granularity") @DefaultValue("hour") String granularity,
+                              @Context Request request) {
+        return cached(request, String.join("|", "series", stationId, from, to, fields, granularity), stationId,
+                      () -> sparqlService.querySeries(stationId, from, to, fields, granularity));
+    }
+
+    @GET
+    @Path("/{stationId}/aggregate")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getAggregate(@PathParam("stationId") String stationId,
+                                 @QueryParam("from") String from,
+                                 @QueryParam("to") String to,
+                                 @QueryParam("fields") String fields,
+                                 @QueryParam("granularity") @DefaultValue("day") String granularity,
+                                 @Context Request request) {
+        return cached(request, String.join("|", "aggregate", stationId, from, to, fields, granularity), stationId,
+                      () -> sparqlService.queryAggregate(stationId, from, to, fields, granularity));
+    }
+
+    /**
+     * The k highest (order=highest) or lowest readings of a field over every station,
+     * see {@link SPARQLService#queryExtremes}. from and to are months (yyyyMM), both included.
+     */
+    @GET
+    @Path("/extremes")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getExtremes(@QueryParam("field") String field,
+                                @QueryParam("order") @DefaultValue("highest") String order,
+                                @QueryParam("from") String from,
+                                @QueryParam("to") String to,
+                                @QueryParam("k") @DefaultValue("10") int k,
+                                @Context Request request) {
+        return cached(request, String.join("|", "extremes", field, order, from, to, Integer.toString(k)), null,
+                      () -> sparqlService.queryExtremes(null, field, order, from, to, k));
+    }
+
+    @GET
+    @Path("/{stationId}/extremes")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationExtremes(@PathParam("stationId") String stationId,
+                                       @QueryParam("field") String field,
+                                       @QueryParam("order") @DefaultValue("highest") String order,
+                                       @QueryParam("from") String from,
+                                       @QueryParam("to") String to,
+                                       @QueryParam("k") @DefaultValue("10") int k,
+                                       @Context Request request) {
+        return cached(request, String.join("|", "extremes", stationId, field, order, from, to, Integer.toString(k)), stationId,
+                      () -> sparqlService.queryExtremes(stationId, field, order, from, to, k));
+    }
+
+    /**
+     * The k longest runs of observations missing a measurement (field, all of them when
+     * absent) over every station, see {@link SPARQLService#queryGaps}
+     */
+    @GET
+    @Path("/gaps")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getGaps(@QueryParam("field") String field,
+                            @QueryParam("k") @DefaultValue("10") int k,
+                            @Context Request request) {
+        return cached(request, String.join("|", "gaps", field, Integer.toString(k)), null,
+                      () -> sparqlService.queryGaps(null, field, k));
+    }
+
+    @GET
+    @Path("/{stationId}/gaps")
+    @Produces({MediaType.APPLICATION_JSON, CompactCbor.CBOR})
+    public Response getStationGaps(@PathParam("stationId") String stationId,
+                                   @QueryParam("field") String field,
+                                   @QueryParam("k") @DefaultValue("10") int k,
+                                   @Context Request request) {
+        return cached(request, String.join("|", "gaps", stationId, field, Integer.toString(k)), stationId,
+                      () -> sparqlService.queryGaps(stationId, field, k));
+    }
+
+    /**
+     * Hit, miss and eviction counters, to size the response cache
+     */
+    @GET
+    @Path("/cache/stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getCacheStats() {
+        ResponseCache.Stats stats = cache.stats();
+        JsonObject json = new JsonObject();
+        json.addProperty("hits", stats.hits());
+        json.addProperty("misses", stats.misses());
+        json.addProperty("evictions", stats.evictions());
+        json.addProperty("invalidations", stats.invalidations());
+        json.addProperty("entries", stats.entries());
+        json.addProperty("bytes", stats.bytes());
+        json.addProperty("maxBytes", stats.maxBytes());
+        return Response.ok(json.toString()).build();
+    }
+
+    /**
+     * Error body, built with Gson so the message is escaped
+     */
+    static String error(String message) {
+        JsonObject json = new JsonObject();
+        json.addProperty("error", message);
+        return json.toString();
+    }
+
+    /**
+     * NDJSON when the client prefers it to JSON (and CBOR) in its Accept header
+     */
+    static boolean isNdjson(Request request) {
+        return JsonRowWriter.NDJSON.equals(preferredType(request));
+    }
+
+    /**
+     * CBOR ({@link CompactCbor}) when the client prefers it to JSON in its Accept header
+     */
+    static boolean isCbor(Request request) {
+        return CompactCbor.CBOR.equals(preferredType(request));
+    }
+
+    private static String preferredType(Request request) {
+        if (request == null) {
+            return MediaType.APPLICATION_JSON;
+        }
+        Variant variant = request.selectVariant(VARIANTS);
+        return variant == null ? MediaType.APPLICATION_JSON : variant.getMediaType().toString();
+    }
+
+    /**
+     * The JSON body, or its CBOR form when the client prefers it
+     */
+    static Response.ResponseBuilder negotiated(Request request, String json) {
+        Response.ResponseBuilder response = isCbor(request) ? Response.ok(CompactCbor.fromJson(json), CompactCbor.CBOR)
+                                                            : Response.ok(json, MediaType.APPLICATION_JSON_TYPE);
+        return response.header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+
+    /**
+     * Body written by the writer while the response goes out, rows are never collected in memory
+     */
+    private static Response.ResponseBuilder streamed(Consumer<Writer> writer, String mediaType) {
+        StreamingOutput body = output -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            writer.accept(out);
+            out.flush();
+        };
+        return Response.ok(body, mediaType).header(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+
+    /**
+     * Serve from the response cache, answering 304 when the client already holds the current version.
+     * The cache holds the JSON: the CBOR form is transcoded from it for each response, and
+     * has its own ETag.
+     */
+    private Response cached(Request request, String key, String stationId, Supplier<String> query) {
         try {
-            String result = sparqlService.queryWeatherDataByStationAndDate(stationId, date);
-            return Response.ok(result).build();
+            ResponseCache.Entry entry = cache.get(key, stationId, query);
+            EntityTag etag = new EntityTag(isCbor(request) ? entry.etag() + "-cbor" : entry.etag());
+            Response.ResponseBuilder notModified = request == null ? null : request.evaluatePreconditions(etag);
+            if (notModified != null) {
+                return notModified.cacheControl(CACHE_CONTROL).build();
+            }
+            return negotiated(request, entry.body()).tag(etag).cacheControl(CACHE_CONTROL).build();
+        } catch (QueryException e) {
+            return failure(e);
         } catch (Exception e) {
             e.printStackTrace();
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                           .entity("{\"error\": \"" + e.getMessage() + "\"}").build();
+                           .entity(error(e.getMessage())).type(MediaType.APPLICATION_JSON_TYPE).build();
         }
     }
 
+    /**
+     * Error body with the status the query failed with (400, 404 or 503)
+     */
+    static Response failure(QueryException e) {
+        return Response.status(e.status()).entity(error(e.getMessage())).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
 }
 
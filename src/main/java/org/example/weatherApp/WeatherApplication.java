@@ -3,24 +3,198 @@ package org.example.weatherApp;
 import org.example.weatherApp.SPARQLService;
 import org.example.weatherApp.WeatherAPI;
 import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.filter.EncodingFilter;
 
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class WeatherApplication {
     public static void main(String[] args) {
-        RDFDataLoader loader = new RDFDataLoader();
-        loader.loadData("D:\\imt-a\\TAF IHM\\WSWD\\Weather\\result-triples-new.ttl"); //your .ttl file address
+        // TDB2 store, -Dweather.tdb to run more than one process (WeatherCluster)
+        String tdb = System.getProperty("weather.tdb");
+        RDFDataLoader loader = tdb == null ? new RDFDataLoader() : new RDFDataLoader(tdb);
+        // shard process of a cluster: only the stations of -Dweather.shard=index/count are kept
+        String shard = System.getProperty("weather.shard");
+        if (shard != null) {
+            loader.setShard(ShardMap.parse(shard));
+        }
+        // a replica takes no upload, it loads the batches its primary ships (-Dweather.replicas on the primary)
+        boolean replica = Boolean.getBoolean("weather.replica");
+        BatchShipper shipper = null;
+        String replicas = System.getProperty("weather.replicas", "");
+        if (!replicas.isEmpty()) {
+            List<URI> uris = new ArrayList<>();
+            for (String replicaUri : replicas.split(",")) {
+                uris.add(URI.create(replicaUri.trim()));
+            }
+            shipper = new BatchShipper(loader.getDataset(), uris,
+                                       Duration.ofSeconds(Long.getLong("weather.replication.timeoutSeconds", 60)),
+                                       System.getProperty("weather.replication.token"));
+            shipper.start();
+            loader.addListener(shipper);
+            // the bulk loader writes no batches, the replicas would miss everything it loads
+            loader.setBulkLoaderEnabled(false);
+        }
+        ResponseCache cache = new ResponseCache(Long.getLong("weather.cache.maxBytes", 64L * 1024 * 1024),
+                                                Duration.ofSeconds(Long.getLong("weather.cache.ttlSeconds", 3600)));
+        // file to load at startup: first argument, or -Dweather.data
+        Path data = Path.of(args.length > 0 ? args[0] : System.getProperty("weather.data", "result-triples-new.ttl"));
+        if (replica) {
+            System.out.println("Replica, the observations come from the primary");
+        } else if (Files.exists(data)) {
+            loader.loadData(data.toString());
+        } else {
+            System.out.println(data.toAbsolutePath() + " not found, starting with the observations already in the store");
+        }
+
+        // observation lookups from primitive columns, -Dweather.columnar=false to query TDB2 only
+        ColumnarStore columnar = null;
+        if (Boolean.parseBoolean(System.getProperty("weather.columnar", "true"))) {
+            columnar = new ColumnarStore();
+            // mapped from the snapshot of the last run when it is still up to date, -Dweather.snapshot
+            Path snapshot = Path.of(System.getProperty("weather.snapshot", "columns.snapshot"));
+            if (!columnar.loadSnapshot(snapshot, loader.getDataset())) {
+                columnar.load(loader.getDataset());
+                writeSnapshot(columnar, snapshot);
+            }
+            loader.addListener(columnar);
+            // observations ingested while running are in the next snapshot
+            ColumnarStore store = columnar;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> writeSnapshot(store, snapshot)));
+        }
+        // station coordinates for the spatial queries, from the station list (-Dweather.stations=postesSynop.csv)
+        int located = loader.writeStationCoordinates();
+        if (located > 0) {
+            System.out.println("Coordinates added to " + located + " stations");
+        }
+        // the bundled list has no coordinates: without them /stations/nearest and /stations/bbox answer 503,
+        // -Dweather.geo=true refuses to start without them, -Dweather.geo=false turns the spatial queries off
+        String geoMode = System.getProperty("weather.geo", "");
+        boolean coordinates = StationIndex.hasRegisteredCoordinates() || GeoIndex.hasCoordinates(loader.getDataset());
+        if (!coordinates && geoMode.equals("true")) {
+            throw new IllegalStateException("No station coordinates for the spatial queries: give a station list with the "
+                                            + "Latitude, Longitude and Altitude columns, -Dweather.stations=postesSynop.csv");
+        }
+        GeoIndex geo = coordinates && !geoMode.equals("false") ? new GeoIndex() : null;
+        if (geo != null) {
+            loader.addListener(geo);
+        } else {
+            System.out.println("No station coordinates, the spatial queries answer 503 (-Dweather.stations=postesSynop.csv)");
+        }
+        // top-K readings and missing-data streaks per station, -Dweather.extremes.k readings kept per field and month
+        ExtremesIndex extremes = new ExtremesIndex(Integer.getInteger("weather.extremes.k", ExtremesIndex.DEFAULT_CAPACITY));
+        loader.addListener(extremes);
+        // after the columnar store, so the cache is dropped once the columns are up to date
+        loader.addListener(cache);
+        // both read the whole store: built in the background, between two loads so no batch is missed,
+        // GET /ready answers not ready until they are
+        Thread indexing = new Thread(() -> loader.runBetweenLoads(() -> {
+            if (geo != null) {
+                geo.load(loader.getDataset());
+            }
+            extremes.load(loader.getDataset());
+        }), "index-build");
+        indexing.setDaemon(true);
+        indexing.start();
+
+        // live ingestion, with the server running: no bulk loader, short write transactions
+        loader.setBulkLoaderEnabled(false);
+        loader.setBatchSize(Integer.getInteger("weather.ingest.batchSize", 500));
+        LiveIngest ingest = null;
+        if (!replica) {
+            ingest = new LiveIngest(loader, Integer.getInteger("weather.ingest.queueSize", 16),
+                                    Path.of(System.getProperty("java.io.tmpdir"), "weather-uploads"));
+            ingest.start();
+            // -Dweather.ingest.dropDir= (empty) to only take uploads
+            String dropDirectory = System.getProperty("weather.ingest.dropDir", "drop");
+            if (!dropDirectory.isEmpty()) {
+                new DropDirectoryWatcher(Path.of(dropDirectory), ingest).start();
+            }
+        }
+
+        SPARQLService sparqlService = new SPARQLService(loader.getDataset(), columnar, geo, extremes);
 
-        SPARQLService sparqlService = new SPARQLService(loader.getDataset());
+        InFlightLimitFilter inFlightLimit = new InFlightLimitFilter(Integer.getInteger("weather.server.maxInFlight", 64),
+                                                                    Integer.getInteger("weather.server.retryAfterSeconds", 1));
+        // GET /metrics; SPARQLService calls slower than -Dweather.metrics.slowQueryMillis are logged
+        Metrics metrics = Metrics.DEFAULT;
+        metrics.setSlowQueryMillis(Long.getLong("weather.metrics.slowQueryMillis", 1000));
+        metrics.gauge("weather_http_requests_in_flight", "Requests being served", inFlightLimit::inFlight);
+        metrics.counter("weather_cache_hits_total", "Responses served from the cache", () -> cache.stats().hits());
+        metrics.counter("weather_cache_misses_total", "Responses computed for the cache", () -> cache.stats().misses());
+        metrics.counter("weather_cache_evictions_total", "Cache entries dropped for size or age", () -> cache.stats().evictions());
+        metrics.counter("weather_cache_invalidations_total", "Cache entries dropped by an ingest", () -> cache.stats().invalidations());
+        metrics.gauge("weather_cache_entries", "Responses in the cache", () -> cache.stats().entries());
+        metrics.gauge("weather_cache_bytes", "Estimated size of the cached responses", () -> cache.stats().bytes());
+        if (ingest != null) {
+            metrics.gauge("weather_ingest_queue_length", "Files waiting to be loaded", ingest::queued);
+        }
+        if (shipper != null) {
+            metrics.gauge("weather_replication_queued_batches", "Committed batches not yet loaded by the replicas", shipper::queued);
+        }
+
+        WeatherAPI api = new WeatherAPI(sparqlService, cache, ingest);
+        // common queries run in the background from now, then every -Dweather.warmup.intervalSeconds (0: once);
+        // -Dweather.warmup=false to skip them, GET /ready is then ready at once
+        CacheWarmer warmer = null;
+        if (Boolean.parseBoolean(System.getProperty("weather.warmup", "true"))) {
+            warmer = new CacheWarmer(api, sparqlService);
+            warmer.start(Duration.ofSeconds(Long.getLong("weather.warmup.intervalSeconds", 300)));
+            CacheWarmer warming = warmer;
+            metrics.gauge("weather_warmup_ready", "1 once the first warm-up is over", () -> warming.isReady() ? 1 : 0);
+            metrics.gauge("weather_warmup_last_seconds", "Duration of the last warm-up", () -> warming.lastRunMillis() / 1000.0);
+            // -Dweather.warmup.waitSeconds to open the port only once warm (or after that long)
+            long wait = Long.getLong("weather.warmup.waitSeconds", 0);
+            try {
+                if (wait > 0 && !warmer.awaitReady(Duration.ofSeconds(wait))) {
+                    System.out.println("Warm-up not over after " + wait + " s, opening the port");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         ResourceConfig config = new ResourceConfig();
-        config.register(new WeatherAPI(sparqlService));
+        config.register(api);
+        config.register(new ReadinessResource(warmer, () -> (geo == null || geo.isLoaded()) && extremes.isLoaded()));
+        config.register(new MetricsResource(metrics));
+        config.register(new RequestMetrics(metrics));
+        config.register(inFlightLimit);
+        // gzip or deflate when the client accepts it (Accept-Encoding)
+        EncodingFilter.enableFor(config, GZipEncoder.class, DeflateEncoder.class);
+        if (replica) {
+            config.register(new ReplicationResource(loader, Path.of(System.getProperty("java.io.tmpdir"), "weather-replication"),
+                                                    System.getProperty("weather.replication.token")));
+        }
 
-        URI uri = URI.create("http://localhost:8080/");
-        JdkHttpServerFactory.createHttpServer(uri, config);
+        // virtual threads by default, -Dweather.server.executor=pool for a bounded pool of platform threads
+        ExecutorService executor = RequestExecutors.create(System.getProperty("weather.server.executor", RequestExecutors.VIRTUAL),
+                                                           Integer.getInteger("weather.server.threads", 32));
+        URI uri = URI.create("http://localhost:" + Integer.getInteger("weather.port", 8080) + "/");
+        HttpServer server = JdkHttpServerFactory.createHttpServer(uri, config, false);
+        server.setExecutor(executor);
+        server.start();
 
         System.out.println("Server started at " + uri);
     }
+
+    private static void writeSnapshot(ColumnarStore columnar, Path snapshot) {
+        try {
+            columnar.writeSnapshot(snapshot);
+        } catch (IOException e) {
+            System.out.println("Cannot write the columnar snapshot " + snapshot + ": " + e.getMessage());
+        }
+    }
 }
 
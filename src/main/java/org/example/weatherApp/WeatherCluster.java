@@ -0,0 +1,176 @@
+package org.example.weatherApp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.filter.EncodingFilter;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sharded deployment on one machine: the observations are partitioned by station over
+ * -Dweather.cluster.shards {@link WeatherApplication} processes, each with its own TDB2
+ * store, and each shard has -Dweather.cluster.replicas replica processes fed by its primary.
+ * This process starts them (logs and stores under -Dweather.cluster.dir) and serves the
+ * API on -Dweather.cluster.port through a {@link ClusterRouter}; the shard processes
+ * listen on the ports after it. The file to load is the first argument, as for
+ * WeatherApplication, and every other -Dweather.* option is passed on to the shards.
+ * With -Dweather.cluster.nodes=primary|replica,primary... it only routes, to processes
+ * started some other way.
+ */
+public class WeatherCluster {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = Integer.getInteger("weather.cluster.port", 8080);
+        String nodes = System.getProperty("weather.cluster.nodes");
+        List<ClusterRouter.Shard> shards;
+        if (nodes != null) {
+            shards = ClusterRouter.parseShards(nodes);
+        } else {
+            Path data = Path.of(args.length > 0 ? args[0] : System.getProperty("weather.data", "result-triples-new.ttl"));
+            shards = start(data, Integer.getInteger("weather.cluster.shards", 2), Integer.getInteger("weather.cluster.replicas", 1),
+                           port + 1, Path.of(System.getProperty("weather.cluster.dir", "cluster")),
+                           Duration.ofSeconds(Long.getLong("weather.cluster.startSeconds", 600)));
+        }
+
+        Metrics metrics = Metrics.DEFAULT;
+        ResourceConfig config = new ResourceConfig();
+        config.register(new ClusterRouter(shards, Duration.ofSeconds(Long.getLong("weather.cluster.timeoutSeconds", 30))));
+        // started once every shard is ready
+        config.register(new ReadinessResource(null));
+        config.register(new MetricsResource(metrics));
+        config.register(new RequestMetrics(metrics));
+        EncodingFilter.enableFor(config, GZipEncoder.class, DeflateEncoder.class);
+        ExecutorService executor = RequestExecutors.create(System.getProperty("weather.server.executor", RequestExecutors.VIRTUAL),
+                                                           Integer.getInteger("weather.server.threads", 32));
+        URI uri = URI.create("http://localhost:" + port + "/");
+        HttpServer server = JdkHttpServerFactory.createHttpServer(uri, config, false);
+        server.setExecutor(executor);
+        server.start();
+
+        System.out.println("Router started at " + uri + " for " + shards.size() + " shards");
+    }
+
+    /**
+     * Start the processes of every shard and wait until they serve: the replicas first, so
+     * they receive every batch the primaries load at startup
+     */
+    private static List<ClusterRouter.Shard> start(Path data, int shardCount, int replicaCount, int firstPort,
+                                                   Path directory, Duration startTimeout) throws IOException, InterruptedException {
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+
+        List<ClusterRouter.Shard> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            int primaryPort = firstPort + shard * (replicaCount + 1);
+            List<URI> replicas = new ArrayList<>();
+            for (int replica = 1; replica <= replicaCount; replica++) {
+                replicas.add(URI.create("http://localhost:" + (primaryPort + replica)));
+            }
+            shards.add(new ClusterRouter.Shard(URI.create("http://localhost:" + primaryPort), replicas));
+        }
+
+        String shardCountText = Integer.toString(shardCount);
+        // shared by the primaries and their replicas, a fresh one per cluster unless given
+        String token = System.getProperty("weather.replication.token");
+        if (token == null) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            token = HexFormat.of().formatHex(secret);
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<URI> replicas = shards.get(shard).replicas();
+            for (int replica = 0; replica < replicas.size(); replica++) {
+                processes.add(launch(directory.resolve("shard-" + shard + "-replica-" + (replica + 1)), replicas.get(replica),
+                                     Map.of("weather.shard", shard + "/" + shardCountText, "weather.replica", "true",
+                                            "weather.replication.token", token), null));
+            }
+        }
+        for (ClusterRouter.Shard shard : shards) {
+            for (URI replica : shard.replicas()) {
+                awaitServing(replica, processes, startTimeout);
+            }
+        }
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<String> replicas = shards.get(shard).replicas().stream().map(URI::toString).toList();
+            processes.add(launch(directory.resolve("shard-" + shard), shards.get(shard).primary(),
+                                 Map.of("weather.shard", shard + "/" + shardCountText, "weather.replicas", String.join(",", replicas),
+                                        "weather.replication.token", token),
+                                 data));
+        }
+        for (ClusterRouter.Shard shard : shards) {
+            awaitServing(shard.primary(), processes, startTimeout);
+        }
+        return shards;
+    }
+
+    /**
+     * A WeatherApplication process with its store, snapshot and log in its own directory
+     */
+    private static Process launch(Path directory, URI uri, Map<String, String> options, Path data) throws IOException {
+        Files.createDirectories(directory);
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("weather.") && !name.startsWith("weather.cluster.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dweather.port=" + uri.getPort());
+        command.add("-Dweather.tdb=" + directory.resolve("tdb"));
+        command.add("-Dweather.snapshot=" + directory.resolve("columns.snapshot"));
+        // uploads come through the router, a shared drop directory would be loaded by every process
+        command.add("-Dweather.ingest.dropDir=");
+        options.forEach((name, value) -> command.add("-D" + name + "=" + value));
+        command.add(WeatherApplication.class.getName());
+        if (data != null) {
+            command.add(data.toAbsolutePath().toString());
+        }
+        File log = directory.resolve("weather.log").toFile();
+        System.out.println("Starting " + uri + " in " + directory + ", log in " + log);
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+    }
+
+    /**
+     * Wait for the process to be ready (/ready): it only listens once its startup load is
+     * done, and is ready once its warm-up is
+     */
+    private static void awaitServing(URI uri, List<Process> processes, Duration timeout) throws InterruptedException {
+        HttpClient client = HttpClient.newHttpClient();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri.resolve("/ready")).build(),
+                                                          HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            if (processes.stream().anyMatch(process -> !process.isAlive())) {
+                throw new IllegalStateException("A shard process stopped while starting, see its weather.log");
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException(uri + " did not start in " + timeout);
+    }
+}
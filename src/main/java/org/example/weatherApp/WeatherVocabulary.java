@@ -0,0 +1,57 @@
+package org.example.weatherApp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+/**
+ * IRIs shared by the loader and the query side.
+ */
+public final class WeatherVocabulary {
+    /** Namespace of the "ex:" prefix used in result-triples-new.ttl */
+    public static final String NS = "http://example.org/weather#";
+
+    /** W3C WGS84 vocabulary of the station coordinates */
+    public static final String GEO_NS = "http://www.w3.org/2003/01/geo/wgs84_pos#";
+
+    public static final Node GEO_LAT = NodeFactory.createURI(GEO_NS + "lat");
+    public static final Node GEO_LONG = NodeFactory.createURI(GEO_NS + "long");
+    public static final Node GEO_ALT = NodeFactory.createURI(GEO_NS + "alt");
+
+    /** Observations are named observation/{station}/{date} against this base */
+    public static final String OBSERVATION_BASE = "http://example.org/weather/observation/";
+
+    /** Named graph holding the loader bookkeeping, kept out of the default graph the API queries */
+    public static final String LOADER_GRAPH = "http://example.org/weather/loader";
+
+    /** Named graph holding the per station hour/day/month summaries of {@link RollupStore} */
+    public static final String ROLLUP_GRAPH = "http://example.org/weather/rollups";
+
+    /** Measurement properties of an observation, in the order the API returns them */
+    public static final List<String> MEASUREMENTS = List.of(
+            "temperature", "pression_ocean", "wind_direction", "wind_speed", "dew_point",
+            "humidity", "horizontal_visibility", "couldiness", "min_temperature", "max_temperature");
+
+    /** Values computed from the measurements at ingest by {@link DerivedMetrics}, stored next to them */
+    public static final List<String> DERIVED = List.of(
+            "temperature_celsius", "dew_point_depression", "wind_chill", "heat_index", "beaufort", "wind_sector");
+
+    /** Measurements then derived values: every numeric property of an observation */
+    public static final List<String> FIELDS = concat(MEASUREMENTS, DERIVED);
+
+    /** Measurements and derived values stored as xsd:int, the others are xsd:double */
+    public static final Set<String> INTEGER_MEASUREMENTS = Set.of(
+            "pression_ocean", "wind_direction", "humidity", "horizontal_visibility", "couldiness", "beaufort", "wind_sector");
+
+    private WeatherVocabulary() {
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        return List.copyOf(all);
+    }
+}
@@ -0,0 +1,46 @@
+import com.google.gson.JsonParser;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.CacheWarmer;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.ReadinessResource;
+import org.example.weatherApp.ResponseCache;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheWarmerTest {
+    @Test
+    public void testWarmUpFillsTheCacheThenReportsReady() throws Exception {
+        RDFDataLoader loader = new RDFDataLoader(DatasetFactory.createTxnMem());
+        loader.loadData("result-triples-new.ttl");
+        SPARQLService sparqlService = new SPARQLService(loader.getDataset());
+        ResponseCache cache = new ResponseCache(64L * 1024 * 1024, Duration.ofHours(1));
+        WeatherAPI api = new WeatherAPI(sparqlService, cache);
+        CacheWarmer warmer = new CacheWarmer(api, sparqlService);
+        ReadinessResource readiness = new ReadinessResource(warmer);
+        assertEquals(503, readiness.getReadiness().getStatus());
+
+        warmer.start(Duration.ZERO);
+        try {
+            assertTrue(warmer.awaitReady(Duration.ofSeconds(60)));
+            assertEquals(200, readiness.getReadiness().getStatus());
+            int stations = JsonParser.parseString(sparqlService.queryStation()).getAsJsonArray().size();
+            assertEquals(stations, warmer.stations());
+            // station list, latest observations and the latest observation of each station
+            assertEquals(2 + stations, cache.stats().entries());
+
+            long hits = cache.stats().hits();
+            api.getStation(null);
+            assertEquals(hits + 1, cache.stats().hits());
+        } finally {
+            warmer.stop();
+        }
+        assertEquals(200, new ReadinessResource(null).getReadiness().getStatus());
+        // indexes still being built at startup
+        assertEquals(503, new ReadinessResource(null, () -> false).getReadiness().getStatus());
+    }
+}
@@ -0,0 +1,263 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.BatchShipper;
+import org.example.weatherApp.ClusterRouter;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.ReplicationResource;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.ShardMap;
+import org.example.weatherApp.WeatherAPI;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two shards, the first with a replica, behind a router: the router must answer what a
+ * single process holding every station answers.
+ */
+public class ClusterTest {
+    @TempDir
+    Path tempDir;
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @AfterEach
+    public void stop() {
+        servers.forEach(server -> server.stop(0));
+    }
+
+    @Test
+    public void testRouterAnswersAsOneProcess() throws Exception {
+        RDFDataLoader single = new RDFDataLoader(DatasetFactory.createTxnMem());
+        single.loadData("result-triples-new.ttl");
+        SPARQLService expected = new SPARQLService(single.getDataset());
+
+        RDFDataLoader replica = shard(0);
+        URI replicaUri = serve(new WeatherAPI(new SPARQLService(replica.getDataset())),
+                               new ReplicationResource(replica, tempDir, "secret"));
+        RDFDataLoader primary0 = shard(0);
+        primary0.loadData("result-triples-new.ttl");
+        // started after the load: the replica catches up from the store, then follows the batches
+        BatchShipper shipper = new BatchShipper(primary0.getDataset(), List.of(replicaUri), Duration.ofSeconds(30), "secret");
+        primary0.addListener(shipper);
+        shipper.start();
+        HttpServer primaryServer = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"),
+                new ResourceConfig().register(new WeatherAPI(new SPARQLService(primary0.getDataset()))), true);
+        servers.add(primaryServer);
+        URI primary0Uri = URI.create("http://localhost:" + primaryServer.getAddress().getPort());
+        RDFDataLoader primary1 = shard(1);
+        primary1.loadData("result-triples-new.ttl");
+        URI primary1Uri = serve(new WeatherAPI(new SPARQLService(primary1.getDataset())));
+        URI router = serve(new ClusterRouter(List.of(new ClusterRouter.Shard(primary0Uri, List.of(replicaUri)),
+                                                     new ClusterRouter.Shard(primary1Uri, List.of())),
+                                             Duration.ofSeconds(30)));
+
+        // every shard has some of the stations, and the router all of them in order
+        assertTrue(ids(get(primary0Uri, "/api/weather/stations").body(), "station").size() > 0);
+        assertTrue(ids(get(primary1Uri, "/api/weather/stations").body(), "station").size() > 0);
+        assertEquals(JsonParser.parseString(expected.queryStation()), json(get(router, "/api/weather/stations")));
+        assertEquals(JsonParser.parseString(expected.queryLatestObservations()), json(get(router, "/api/weather/observations/latest")));
+        // merged by the router, then in the media type the client asked for
+        HttpResponse<byte[]> cbor = client.send(HttpRequest.newBuilder(router.resolve("/api/weather/observations/latest"))
+                                                           .header("Accept", "application/cbor").build(),
+                                                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("application/cbor", cbor.headers().firstValue("Content-Type").orElse(""));
+        JsonNode columns = new ObjectMapper(new CBORFactory()).readTree(cbor.body());
+        List<String> latestIds = new ArrayList<>();
+        columns.get("stationId").forEach(id -> latestIds.add(id.asText()));
+        assertEquals(ids(expected.queryLatestObservations(), "stationId"), latestIds);
+
+        JsonArray stations = JsonParser.parseString(expected.queryStation()).getAsJsonArray();
+        StringBuilder batch = new StringBuilder("[");
+        for (JsonElement station : stations) {
+            batch.append(batch.length() > 1 ? "," : "").append("{\"stationId\":\"")
+                 .append(station.getAsJsonObject().get("station").getAsString()).append("\"}");
+        }
+        batch.append(",{\"stationId\":\"99999\"}]");
+        HttpResponse<String> batchResponse = client.send(
+                HttpRequest.newBuilder(router.resolve("/api/weather/observations:batch"))
+                           .header("Content-Type", "application/json")
+                           .POST(HttpRequest.BodyPublishers.ofString(batch.toString())).build(),
+                HttpResponse.BodyHandlers.ofString());
+        StringWriter out = new StringWriter();
+        expected.writeObservationBatch(batch.toString(), out);
+        assertEquals(JsonParser.parseString(out.toString()), JsonParser.parseString(batchResponse.body()));
+
+        // one station: forwarded, the next page is asked to the router
+        String stationId = stations.get(0).getAsJsonObject().get("station").getAsString();
+        HttpResponse<String> page = get(router, "/api/weather/" + stationId + "?limit=2");
+        assertEquals(200, page.statusCode());
+        assertEquals(2, JsonParser.parseString(page.body()).getAsJsonArray().size());
+        String next = page.headers().firstValue("Link").orElseThrow();
+        assertTrue(next.startsWith("<" + router.toString().replaceAll("/$", "") + "/api/weather/" + stationId), next);
+        String date = JsonParser.parseString(page.body()).getAsJsonArray().get(0).getAsJsonObject().get("date").getAsString();
+        assertEquals(JsonParser.parseString(expected.queryWeatherDataByStationAndDate(stationId, date)),
+                     json(get(router, "/api/weather/" + stationId + "/" + date)));
+
+        // the replica follows the primary, and serves the reads of its shard once the primary is gone
+        awaitReplica(primary0Uri, replicaUri);
+        assertEquals(403, get(replicaUri, "/replication/stations").statusCode(), "Only the primary may read the replica's state");
+        String shard0Station = ids(get(primary0Uri, "/api/weather/stations").body(), "station").get(0);
+        Path ttl = tempDir.resolve("new.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/%1$s/20250101000000> ex:temperature "275.150000"; ex:station "%1$s"; ex:date "20250101000000" .
+                """.formatted(shard0Station));
+        primary0.loadData(ttl.toString());
+        awaitReplica(primary0Uri, replicaUri);
+        assertTrue(get(replicaUri, "/api/weather/" + shard0Station + "/20250101000000").body().contains("275.15"));
+        servers.remove(primaryServer);
+        primaryServer.stop(0);
+        assertEquals(JsonParser.parseString(expected.queryStation()), json(get(router, "/api/weather/stations")));
+    }
+
+    @Test
+    public void testCatchUpSendsTheLateObservationsOfADroppedBatch() throws Exception {
+        RDFDataLoader replica = new RDFDataLoader(DatasetFactory.createTxnMem());
+        URI replicaUri = serve(new WeatherAPI(new SPARQLService(replica.getDataset())),
+                               new ReplicationResource(replica, tempDir, "secret"));
+        // in front of the replica, refuses the first batch holding the late observation
+        AtomicBoolean refused = new AtomicBoolean();
+        HttpServer proxy = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        servers.add(proxy);
+        proxy.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (new String(body, StandardCharsets.UTF_8).contains("20250102000000") && refused.compareAndSet(false, true)) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            HttpRequest.Builder forwarded = HttpRequest.newBuilder(replicaUri.resolve(exchange.getRequestURI()))
+                    .header(BatchShipper.TOKEN_HEADER, exchange.getRequestHeaders().getFirst(BatchShipper.TOKEN_HEADER));
+            if (exchange.getRequestMethod().equals("POST")) {
+                forwarded.header("Content-Type", BatchShipper.N_TRIPLES).POST(HttpRequest.BodyPublishers.ofByteArray(body));
+            }
+            try {
+                HttpResponse<byte[]> response = client.send(forwarded.build(), HttpResponse.BodyHandlers.ofByteArray());
+                exchange.sendResponseHeaders(response.statusCode(), response.body().length);
+                exchange.getResponseBody().write(response.body());
+            } catch (InterruptedException e) {
+                exchange.sendResponseHeaders(503, -1);
+            }
+            exchange.close();
+        });
+        proxy.start();
+        URI proxyUri = URI.create("http://localhost:" + proxy.getAddress().getPort());
+
+        RDFDataLoader primary = new RDFDataLoader(DatasetFactory.createTxnMem());
+        primary.loadData(observations("first.ttl", "20250101000000", "20250103000000").toString());
+        // a batch is dropped at its first failure
+        BatchShipper shipper = new BatchShipper(primary.getDataset(), List.of(proxyUri), Duration.ofSeconds(30), "secret", 1);
+        primary.addListener(shipper);
+        shipper.start();
+        SPARQLService replicated = new SPARQLService(replica.getDataset());
+        await(() -> found(replicated, "07005", "20250103000000"));
+
+        // older than the latest observation of the replica: only the counts tell it is missing there
+        primary.loadData(observations("late.ttl", "20250102000000").toString());
+        await(() -> found(replicated, "07005", "20250102000000"));
+        assertTrue(refused.get());
+        assertEquals(new SPARQLService(primary.getDataset()).queryStation(), replicated.queryStation());
+    }
+
+    private Path observations(String name, String... dates) throws IOException {
+        StringBuilder ttl = new StringBuilder("""
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                """);
+        for (String date : dates) {
+            ttl.append("<observation/07005/%1$s> ex:temperature \"275.150000\"; ex:station \"07005\"; ex:date \"%1$s\" .\n"
+                               .formatted(date));
+        }
+        return Files.writeString(tempDir.resolve(name), ttl);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static boolean found(SPARQLService service, String stationId, String date) {
+        try {
+            service.queryWeatherDataByStationAndDate(stationId, date);
+            return true;
+        } catch (QueryException e) {
+            return false;
+        }
+    }
+
+
+    private void awaitReplica(URI primary, URI replica) throws Exception {
+        String stations = get(primary, "/api/weather/stations").body();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!stations.equals(get(replica, "/api/weather/stations").body()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(stations, get(replica, "/api/weather/stations").body());
+    }
+
+    private static RDFDataLoader shard(int index) {
+        RDFDataLoader loader = new RDFDataLoader(DatasetFactory.createTxnMem());
+        loader.setShard(new ShardMap(index, 2));
+        return loader;
+    }
+
+    private URI serve(Object... resources) {
+        ResourceConfig config = new ResourceConfig();
+        for (Object resource : resources) {
+            config.register(resource);
+        }
+        HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, true);
+        servers.add(server);
+        return URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    private HttpResponse<String> get(URI base, String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(base.resolve(path)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static JsonElement json(HttpResponse<String> response) {
+        assertEquals(200, response.statusCode(), response.body());
+        return JsonParser.parseString(response.body());
+    }
+
+    private static List<String> ids(String json, String key) {
+        List<String> ids = new ArrayList<>();
+        for (JsonElement station : JsonParser.parseString(json).getAsJsonArray()) {
+            ids.add(station.getAsJsonObject().get(key).getAsString());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,308 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.ColumnarStore;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.example.weatherApp.WeatherVocabulary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The columnar fast path must answer exactly like the SPARQL queries over TDB2.
+ */
+public class ColumnarStoreTest {
+    @TempDir
+    Path tempDir;
+
+    private Dataset dataset;
+    private RDFDataLoader loader;
+    private ColumnarStore columnar;
+    private SPARQLService sparql;
+    private SPARQLService columns;
+
+    @BeforeEach
+    public void setUp() {
+        dataset = DatasetFactory.createTxnMem();
+        loader = new RDFDataLoader(dataset);
+        loader.loadData("result-triples-new.ttl");
+        columnar = new ColumnarStore();
+        columnar.load(dataset);
+        loader.addListener(columnar);
+        sparql = new SPARQLService(dataset);
+        columns = new SPARQLService(dataset, columnar);
+    }
+
+    @Test
+    public void testSameAnswersAsSparql() {
+        List<String> stations = columnar.stationIds();
+        assertEquals(JsonParser.parseString(sparql.queryStation()).getAsJsonArray().size(), stations.size());
+        for (String station : stations) {
+            List<String> dates = dates(sparql.queryDateOfStation(station));
+            List<String> sorted = new ArrayList<>(dates);
+            sorted.sort(null);
+            assertEquals(sorted, dates(columns.queryDateOfStation(station)), "Dates of " + station + ", oldest first");
+            for (String date : List.of(sorted.get(0), sorted.get(sorted.size() / 2), sorted.get(sorted.size() - 1))) {
+                assertEquals(sparql.queryWeatherDataByStationAndDate(station, date),
+                             columns.queryWeatherDataByStationAndDate(station, date), station + " at " + date);
+            }
+        }
+        assertEquals(sparql.queryLatestObservations(), columns.queryLatestObservations());
+        assertEquals(assertThrows(QueryException.class, () -> sparql.queryWeatherDataByStationAndDate("07005", "20000101")).getMessage(),
+                     assertThrows(QueryException.class, () -> columns.queryWeatherDataByStationAndDate("07005", "20000101")).getMessage());
+
+        String batch = """
+                [{"stationId": "07005", "from": "20241105", "to": "20241106120000"},
+                 {"stationId": "61980", "from": "20241120"},
+                 {"stationId": "99999"}]
+                """;
+        StringWriter expected = new StringWriter();
+        sparql.writeObservationBatch(batch, expected);
+        StringWriter actual = new StringWriter();
+        columns.writeObservationBatch(batch, actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testIngestUpdatesColumns() throws IOException {
+        Path ttl = tempDir.resolve("late.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/07005/20250101000000> ex:temperature "275.150000"; ex:humidity "mq";
+                  ex:wind_direction "90"; ex:station "07005"; ex:date "20250101000000" .
+                """);
+        int before = columnar.station("07005").size();
+        loader.loadData(ttl.toString());
+
+        assertEquals(before + 1, columnar.station("07005").size());
+        String observation = columns.queryWeatherDataByStationAndDate("07005", "20250101000000");
+        assertEquals(sparql.queryWeatherDataByStationAndDate("07005", "20250101000000"), observation);
+        assertTrue(observation.contains("\"temperature\":\"275.150000\",\"pression_ocean\":\"N/A\",\"wind_direction\":\"Vent d'Est (E)\""),
+                   observation);
+    }
+
+    @Test
+    public void testAppendsAndLateObservations() throws IOException {
+        Path ttl = tempDir.resolve("appends.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/07005/20250101000000> ex:temperature "275.150000"; ex:humidity "80"; ex:station "07005"; ex:date "20250101000000" .
+                <observation/07005/20250101030000> ex:temperature "274.150000"; ex:humidity "mq"; ex:station "07005"; ex:date "20250101030000" .
+                <observation/07005/20250101060000> ex:temperature "mq"; ex:humidity "85"; ex:station "07005"; ex:date "20250101060000" .
+                <observation/07005/20241101010000> ex:temperature "281.150000"; ex:station "07005"; ex:date "20241101010000" .
+                <observation/07005/20250101090000> ex:temperature "273.150000"; ex:station "07005"; ex:date "20250101090000" .
+                """);
+        // one commit each: appended in place, then merged for the late one, then appended again
+        loader.setBatchSize(1);
+        loader.loadData(ttl.toString());
+
+        ColumnarStore built = new ColumnarStore();
+        built.load(dataset);
+        SPARQLService fromBuilt = new SPARQLService(dataset, built);
+        assertEquals(built.station("07005").size(), columnar.station("07005").size());
+        for (String date : List.of("20241101010000", "20250101000000", "20250101030000", "20250101060000", "20250101090000")) {
+            assertEquals(sparql.queryWeatherDataByStationAndDate("07005", date),
+                         columns.queryWeatherDataByStationAndDate("07005", date), date);
+            assertEquals(fromBuilt.queryWeatherDataByStationAndDate("07005", date),
+                         columns.queryWeatherDataByStationAndDate("07005", date), date);
+        }
+        assertEquals(fromBuilt.queryDateOfStation("07005"), columns.queryDateOfStation("07005"));
+    }
+
+    @Test
+    public void testReadsDuringAppends() throws Exception {
+        int temperature = WeatherVocabulary.FIELDS.indexOf("temperature");
+        ColumnarStore.Columns before = columnar.station("07005");
+        int rows = before.size();
+        long[] dates = new long[rows];
+        boolean[] missing = new boolean[rows];
+        double[] values = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            dates[i] = before.date(i);
+            missing[i] = before.isMissing(temperature, i);
+            values[i] = missing[i] ? 0 : before.doubleValue(temperature, i);
+        }
+
+        // appended one commit at a time, every third temperature missing, so rows share bitmap words with older ones
+        int appended = 300;
+        Map<Long, Integer> index = new HashMap<>();
+        StringBuilder ttl = new StringBuilder("@base <http://example.org/weather/> .\n@prefix ex: <http://example.org/weather#> .\n");
+        LocalDateTime start = LocalDateTime.of(2026, 1, 1, 0, 0);
+        for (int k = 0; k < appended; k++) {
+            String date = start.plusHours(k).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+            index.put(Long.parseLong(date), k);
+            ttl.append("<observation/07005/").append(date).append("> ex:temperature \"")
+               .append(k % 3 == 0 ? "mq" : (270 + k % 50) + ".000000")
+               .append("\"; ex:station \"07005\"; ex:date \"").append(date).append("\" .\n");
+        }
+        Path file = tempDir.resolve("appended.ttl");
+        Files.writeString(file, ttl);
+        loader.setBatchSize(1);
+
+        AtomicBoolean loading = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    do {
+                        ColumnarStore.Columns current = columnar.station("07005");
+                        int size = current.size();
+                        for (int i = 1; i < size; i++) {
+                            assertTrue(current.date(i) > current.date(i - 1), "Dates sorted up to the size");
+                        }
+                        for (int i = rows; i < size; i++) {
+                            int k = index.get(current.date(i));
+                            assertEquals(k % 3 == 0, current.isMissing(temperature, i), "Missing bit of row " + i);
+                            if (k % 3 != 0) {
+                                assertEquals(270 + k % 50, current.doubleValue(temperature, i));
+                            }
+                        }
+                        // the rows of the columns taken before the appends did not move
+                        for (int i = 0; i < rows; i++) {
+                            assertEquals(dates[i], before.date(i));
+                            assertEquals(missing[i], before.isMissing(temperature, i));
+                            if (!missing[i]) {
+                                assertEquals(values[i], before.doubleValue(temperature, i));
+                            }
+                        }
+                    } while (loading.get());
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            loader.loadData(file.toString());
+        } finally {
+            loading.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("A reader saw a partial append", failure.get());
+        }
+        assertEquals(rows, before.size());
+        assertEquals(rows + appended, columnar.station("07005").size());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        Path snapshot = tempDir.resolve("columns.snapshot");
+        columnar.writeSnapshot(snapshot);
+        ColumnarStore mapped = new ColumnarStore();
+        assertTrue(mapped.loadSnapshot(snapshot, dataset));
+        assertEquals(columnar.stationIds(), mapped.stationIds());
+
+        SPARQLService fromSnapshot = new SPARQLService(dataset, mapped);
+        for (String station : columnar.stationIds()) {
+            assertEquals(columns.queryDateOfStation(station), fromSnapshot.queryDateOfStation(station));
+            ColumnarStore.Columns expected = columnar.station(station);
+            for (int row = 0; row < expected.size(); row += 7) {
+                String date = Long.toString(expected.date(row));
+                assertEquals(columns.queryWeatherDataByStationAndDate(station, date),
+                             fromSnapshot.queryWeatherDataByStationAndDate(station, date));
+            }
+        }
+        assertEquals(columns.queryLatestObservations(), fromSnapshot.queryLatestObservations());
+
+        // mapped columns take new observations like built ones, and the file is then out of date
+        loader.addListener(mapped);
+        Path ttl = tempDir.resolve("late.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/07005/20250101000000> ex:temperature "275.150000"; ex:station "07005"; ex:date "20250101000000" .
+                """);
+        loader.loadData(ttl.toString());
+        assertEquals(columnar.station("07005").size(), mapped.station("07005").size());
+        assertEquals(columns.queryWeatherDataByStationAndDate("07005", "20250101000000"),
+                     fromSnapshot.queryWeatherDataByStationAndDate("07005", "20250101000000"));
+        assertFalse(new ColumnarStore().loadSnapshot(snapshot, dataset), "The snapshot misses the new observation");
+        assertFalse(new ColumnarStore().loadSnapshot(tempDir.resolve("missing.snapshot"), dataset));
+    }
+
+    @Test
+    public void testDatePages() {
+        for (SPARQLService service : List.of(sparql, columns)) {
+            List<String> all = dates(service.queryDateOfStation("07005"));
+            List<String> paged = new ArrayList<>();
+            String after = null;
+            int pages = 0;
+            do {
+                StringWriter page = new StringWriter();
+                after = service.writeDatesOfStation("07005", null, null, after, 50, page, false);
+                List<String> dates = dates(page.toString());
+                assertTrue(dates.size() <= 50);
+                paged.addAll(dates);
+                pages++;
+            } while (after != null);
+            assertEquals(all, paged, "Pages follow each other without gap or overlap");
+            assertEquals((all.size() + 49) / 50, pages);
+
+            StringWriter range = new StringWriter();
+            String next = service.writeDatesOfStation("07005", "20241105", "20241106", null, 0, range, false);
+            assertNull(next);
+            assertEquals(all.stream().filter(d -> d.compareTo("20241105000000") >= 0 && d.compareTo("20241106000000") <= 0).toList(),
+                         dates(range.toString()));
+
+            StringWriter empty = new StringWriter();
+            assertNull(service.writeDatesOfStation("07005", "20300101", null, null, 10, empty, false));
+            assertEquals("[]", empty.toString());
+            StringWriter invalid = new StringWriter();
+            assertEquals(Response.Status.BAD_REQUEST, assertThrows(QueryException.class,
+                    () -> service.writeDatesOfStation("07005", null, null, "2024-11-05", 10, invalid, false)).status());
+            assertEquals(Response.Status.BAD_REQUEST, assertThrows(QueryException.class,
+                    () -> service.checkDates("07005", null, null, null, SPARQLService.MAX_PAGE_SIZE + 1)).status());
+            StringWriter unknown = new StringWriter();
+            assertEquals(Response.Status.NOT_FOUND, assertThrows(QueryException.class,
+                    () -> service.writeDatesOfStation("99999", null, null, null, 10, unknown, false)).status());
+            assertEquals(Response.Status.NOT_FOUND, assertThrows(QueryException.class,
+                    () -> service.checkDates("99999", null, null, null, 0)).status());
+            assertEquals("", invalid.toString() + unknown.toString(), "Nothing is written before the error");
+            service.checkDates("07005", "20300101", null, null, 10);
+
+            // checked before the list is streamed
+            WeatherAPI api = new WeatherAPI(service);
+            assertEquals(404, api.getWeather("99999", null, null, null, null, null, null).getStatus());
+            assertEquals(400, api.getWeather("07005", "yesterday", null, null, null, null, null).getStatus());
+            assertEquals(400, api.getWeather("07005", null, null, null, 0, null, null).getStatus());
+            assertEquals(200, api.getWeather("07005", null, null, null, null, null, null).getStatus());
+        }
+    }
+
+    private static List<String> dates(String json) {
+        List<String> dates = new ArrayList<>();
+        JsonArray array = JsonParser.parseString(json).getAsJsonArray();
+        for (JsonElement element : array) {
+            dates.add(element.getAsJsonObject().get("date").getAsString());
+        }
+        return dates;
+    }
+}
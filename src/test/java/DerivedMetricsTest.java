@@ -0,0 +1,92 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.ColumnarStore;
+import org.example.weatherApp.DerivedMetrics;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Derived values are computed at ingest and returned the same from TDB2 and from the columns.
+ */
+public class DerivedMetricsTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testDerivedValues() throws IOException {
+        Path ttl = tempDir.resolve("derived.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+
+                <observation/07005/20250110060000> ex:temperature "268.150000";
+                  ex:dew_point "265.150000";
+                  ex:wind_speed "5.000000";
+                  ex:wind_direction "12";
+                  ex:humidity "80";
+                  ex:wind_chill "99";
+                  ex:station "07005";
+                  ex:date "20250110060000" .
+
+                <observation/07005/20250710150000> ex:temperature "305.150000";
+                  ex:wind_speed "0.300000";
+                  ex:wind_direction "mq";
+                  ex:humidity "70";
+                  ex:station "07005";
+                  ex:date "20250710150000" .
+                """);
+        Dataset dataset = DatasetFactory.createTxnMem();
+        new RDFDataLoader(dataset).loadData(ttl.toString());
+        ColumnarStore columnar = new ColumnarStore();
+        columnar.load(dataset);
+        SPARQLService sparql = new SPARQLService(dataset);
+        SPARQLService columns = new SPARQLService(dataset, columnar);
+
+        String winter = sparql.queryWeatherDataByStationAndDate("07005", "20250110060000", "all");
+        assertEquals(winter, columns.queryWeatherDataByStationAndDate("07005", "20250110060000", "all"));
+        JsonObject json = JsonParser.parseString(winter).getAsJsonObject();
+        assertEquals("-5.000000", json.get("temperature_celsius").getAsString());
+        assertEquals("3.000000", json.get("dew_point_depression").getAsString());
+        assertEquals("-11.200000", json.get("wind_chill").getAsString(), "computed, not the value of the file");
+        assertEquals("N/A", json.get("heat_index").getAsString());
+        assertEquals("3", json.get("beaufort").getAsString());
+        assertEquals("NNE", json.get("wind_sector").getAsString());
+
+        String summer = sparql.queryWeatherDataByStationAndDate("07005", "20250710150000", "heat_index,beaufort,wind_sector");
+        assertEquals(summer, columns.queryWeatherDataByStationAndDate("07005", "20250710150000", "heat_index,beaufort,wind_sector"));
+        json = JsonParser.parseString(summer).getAsJsonObject();
+        assertEquals("40.400000", json.get("heat_index").getAsString());
+        assertEquals("0", json.get("beaufort").getAsString());
+        assertEquals("N/A", json.get("wind_sector").getAsString());
+        assertFalse(json.has("temperature_celsius"), "Only the derived values asked for");
+
+        assertFalse(JsonParser.parseString(sparql.queryWeatherDataByStationAndDate("07005", "20250710150000"))
+                              .getAsJsonObject().has("heat_index"), "No derived value unless asked for");
+        assertEquals(sparql.queryLatestObservations("temperature_celsius"), columns.queryLatestObservations("temperature_celsius"));
+        assertEquals(Response.Status.BAD_REQUEST,
+                     assertThrows(QueryException.class, () -> sparql.queryWeatherDataByStationAndDate("07005", "20250710150000", "humidex")).status());
+    }
+
+    @Test
+    public void testCompassSectors() {
+        assertEquals(0, DerivedMetrics.compassSector(0));
+        assertEquals(0, DerivedMetrics.compassSector(11));
+        assertEquals(1, DerivedMetrics.compassSector(12));
+        assertEquals(4, DerivedMetrics.compassSector(90));
+        assertEquals(15, DerivedMetrics.compassSector(348));
+        assertEquals(0, DerivedMetrics.compassSector(349));
+        assertEquals(0, DerivedMetrics.compassSector(360));
+    }
+}
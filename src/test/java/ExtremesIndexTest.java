@@ -0,0 +1,95 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.example.weatherApp.ExtremesIndex;
+import org.example.weatherApp.ObservationGrouper;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherVocabulary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExtremesIndexTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testIncrementalIndexMatchesAScan() throws Exception {
+        RDFDataLoader loader = new RDFDataLoader(DatasetFactory.createTxnMem());
+        ExtremesIndex incremental = new ExtremesIndex(5);
+        loader.addListener(incremental);
+        loader.loadData("result-triples-new.ttl");
+
+        // the hottest readings, by brute force over the store
+        int temperature = WeatherVocabulary.FIELDS.indexOf("temperature");
+        List<ExtremesIndex.Reading> scanned = new ArrayList<>();
+        loader.getDataset().begin(ReadWrite.READ);
+        try {
+            ObservationGrouper.scan(loader.getDataset().asDatasetGraph().getDefaultGraph(), block -> {
+                double value = block.values()[temperature];
+                if (!Double.isNaN(value)) {
+                    scanned.add(new ExtremesIndex.Reading(block.station(), "temperature", block.date(), value));
+                }
+            });
+        } finally {
+            loader.getDataset().end();
+        }
+        scanned.sort(Comparator.comparingDouble(ExtremesIndex.Reading::value).reversed()
+                               .thenComparing(ExtremesIndex.Reading::date).thenComparing(ExtremesIndex.Reading::station));
+        assertEquals(scanned.subList(0, 5), incremental.extremes("temperature", null, null, null, 5, false));
+
+        // an observation older than the last one of its station, in a later batch: the station is recomputed
+        String stationId = scanned.get(0).station();
+        Path ttl = tempDir.resolve("unordered.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/%1$s/20250102000000> ex:temperature "275.150000"; ex:station "%1$s"; ex:date "20250102000000" .
+                <observation/%1$s/20250101000000> ex:temperature "330.150000"; ex:station "%1$s"; ex:date "20250101000000" .
+                """.formatted(stationId));
+        loader.setBatchSize(1);
+        loader.loadData(ttl.toString());
+        ExtremesIndex.Reading hottest = incremental.extremes("temperature", stationId, null, null, 1, false).get(0);
+        assertEquals(new ExtremesIndex.Reading(stationId, "temperature", "20250101000000", 330.15), hottest);
+        assertTrue(incremental.extremes("temperature", stationId, 202411, 202412, 5, false).stream()
+                              .allMatch(reading -> reading.date().startsWith("202411")));
+
+        // what was kept up to date is what a build from the store gives
+        ExtremesIndex built = new ExtremesIndex(5);
+        built.load(loader.getDataset());
+        for (String field : List.of("temperature", "wind_speed", "humidity")) {
+            assertEquals(built.extremes(field, null, null, null, 5, false), incremental.extremes(field, null, null, null, 5, false));
+            assertEquals(built.extremes(field, null, null, null, 5, true), incremental.extremes(field, null, null, null, 5, true));
+        }
+        assertEquals(built.gaps(null, null, 5), incremental.gaps(null, null, 5));
+        assertEquals(built.gaps("temperature", stationId, 5), incremental.gaps("temperature", stationId, 5));
+        List<ExtremesIndex.Gap> gaps = incremental.gaps(null, null, 5);
+        for (int i = 1; i < gaps.size(); i++) {
+            assertTrue(gaps.get(i - 1).observations() >= gaps.get(i).observations());
+        }
+
+        SPARQLService service = new SPARQLService(loader.getDataset(), null, null, incremental);
+        JsonArray rows = JsonParser.parseString(service.queryExtremes(null, "temperature", "highest", null, null, 3)).getAsJsonArray();
+        JsonObject first = rows.get(0).getAsJsonObject();
+        assertEquals(stationId, first.get("stationId").getAsString());
+        assertEquals("330.150000", first.get("temperature").getAsString());
+        assertEquals(3, rows.size());
+        assertEquals(Response.Status.BAD_REQUEST,
+                     assertThrows(QueryException.class, () -> service.queryExtremes(null, "rain", "highest", null, null, 3)).status());
+        assertEquals(Response.Status.BAD_REQUEST, assertThrows(QueryException.class, () -> service.queryGaps(null, null, 6)).status());
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE,
+                     assertThrows(QueryException.class, () -> new SPARQLService(loader.getDataset()).queryGaps(null, null, 3)).status());
+    }
+}
@@ -0,0 +1,190 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.example.weatherApp.ColumnarStore;
+import org.example.weatherApp.GeoIndex;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.StationIndex;
+import org.example.weatherApp.WeatherAPI;
+import org.example.weatherApp.WeatherVocabulary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The k-d trees must find what a scan of every station finds, and the spatial queries
+ * must answer the same from TDB2 and from the columns.
+ */
+public class GeoIndexTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSameAsScan() {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        Random random = new Random(42);
+        List<GeoIndex.Located> stations = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            // a third of them around the antimeridian, the rest anywhere
+            double longitude = i % 3 == 0 ? 170 + random.nextDouble() * 20 : random.nextDouble() * 360;
+            stations.add(new GeoIndex.Located(String.format("P%03d", i), random.nextDouble() * 180 - 90,
+                                              longitude > 180 ? longitude - 360 : longitude, null));
+        }
+        locate(dataset, stations);
+        GeoIndex geo = new GeoIndex();
+        geo.load(dataset);
+        assertEquals(stations.size(), geo.size());
+
+        for (double[] point : new double[][] {{48.85, 2.35}, {-21.1, 55.5}, {-14.3, 179.9}, {-14.3, -179.9}, {89.9, 0}, {-90, 10}}) {
+            List<String> expected = stations.stream()
+                                            .sorted(Comparator.comparingDouble(s -> GeoIndex.distanceKm(point[0], point[1], s.latitude(), s.longitude())))
+                                            .limit(7).map(GeoIndex.Located::id).toList();
+            List<GeoIndex.Neighbour> nearest = geo.nearest(point[0], point[1], 7);
+            assertEquals(expected, nearest.stream().map(n -> n.station().id()).toList(), "Nearest of " + point[0] + "," + point[1]);
+            for (int i = 1; i < nearest.size(); i++) {
+                assertTrue(nearest.get(i - 1).distanceKm() <= nearest.get(i).distanceKm());
+            }
+        }
+
+        for (double[] box : new double[][] {{40, -5, 52, 10}, {-30, 175, 10, -170}, {-90, -180, 90, 180}, {10, 10, 10.5, 10.5}}) {
+            List<String> expected = stations.stream()
+                                            .filter(s -> s.latitude() >= box[0] && s.latitude() <= box[2]
+                                                         && (box[1] <= box[3] ? s.longitude() >= box[1] && s.longitude() <= box[3]
+                                                                              : s.longitude() >= box[1] || s.longitude() <= box[3]))
+                                            .map(GeoIndex.Located::id).sorted().toList();
+            assertEquals(expected, geo.within(box[0], box[1], box[2], box[3]).stream().map(GeoIndex.Located::id).toList());
+        }
+        assertTrue(new GeoIndex().nearest(0, 0, 3).isEmpty());
+    }
+
+    @Test
+    public void testNearestWithLatestObservation() {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RDFDataLoader loader = new RDFDataLoader(dataset);
+        loader.loadData("result-triples-new.ttl");
+        locate(dataset, List.of(new GeoIndex.Located("07005", 50.136, 1.834, 69.0),
+                                new GeoIndex.Located("07015", 50.57, 3.0975, 47.0),
+                                new GeoIndex.Located("07020", 49.725167, -1.939833, 6.0)));
+        GeoIndex geo = new GeoIndex();
+        geo.load(dataset);
+        ColumnarStore columnar = new ColumnarStore();
+        columnar.load(dataset);
+        SPARQLService sparql = new SPARQLService(dataset, null, geo);
+        SPARQLService columns = new SPARQLService(dataset, columnar, geo);
+
+        String nearest = sparql.queryNearestStations(50.0, 2.0, 2);
+        assertEquals(nearest, columns.queryNearestStations(50.0, 2.0, 2));
+        JsonArray stations = JsonParser.parseString(nearest).getAsJsonArray();
+        assertEquals(2, stations.size());
+        JsonObject abbeville = stations.get(0).getAsJsonObject();
+        assertEquals("07005", abbeville.get("stationId").getAsString());
+        assertEquals("07015", stations.get(1).getAsJsonObject().get("stationId").getAsString());
+        assertEquals(69.0, abbeville.get("altitude").getAsDouble());
+        assertTrue(abbeville.get("distanceKm").getAsDouble() < 20);
+        assertEquals(latestDate(sparql, "07005"), abbeville.getAsJsonObject("latest").get("date").getAsString());
+
+        String box = sparql.queryStationsInBox(49, -3, 51, 2);
+        assertEquals(box, columns.queryStationsInBox(49, -3, 51, 2));
+        assertEquals(List.of("07005", "07020"), ids(box));
+
+        assertTrue(GeoIndex.hasCoordinates(dataset));
+        assertFalse(GeoIndex.hasCoordinates(DatasetFactory.createTxnMem()));
+        assertEquals(Response.Status.BAD_REQUEST, assertThrows(QueryException.class, () -> sparql.queryNearestStations(95, 0, 2)).status());
+        assertEquals(Response.Status.BAD_REQUEST, assertThrows(QueryException.class, () -> sparql.queryNearestStations(50, 2, 0)).status());
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE,
+                     assertThrows(QueryException.class, () -> new SPARQLService(dataset).queryNearestStations(50, 2, 2)).status());
+        // still being built in the background
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE,
+                     assertThrows(QueryException.class, () -> new SPARQLService(dataset, null, new GeoIndex()).queryStationsInBox(49, -3, 51, 2)).status());
+
+        WeatherAPI api = new WeatherAPI(sparql);
+        assertEquals(200, api.getNearestStations(50.0, 2.0, 2, null).getStatus());
+        assertEquals(400, api.getNearestStations(95.0, 0.0, 2, null).getStatus());
+        assertEquals(400, api.getStationsInBox(51.0, -3.0, 49.0, 2.0, null).getStatus());
+        assertEquals(503, new WeatherAPI(new SPARQLService(dataset)).getStationsInBox(49.0, -3.0, 51.0, 2.0, null).getStatus());
+    }
+
+    @Test
+    public void testCoordinatesOfNewStations() throws IOException {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RDFDataLoader loader = new RDFDataLoader(dataset);
+        loader.loadData("result-triples-new.ttl");
+        GeoIndex geo = new GeoIndex();
+        geo.load(dataset);
+        loader.addListener(geo);
+        assertEquals(0, geo.size());
+
+        // a commit bringing a station not in the index yet rebuilds it
+        Path ttl = tempDir.resolve("new-station.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                @prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .
+
+                <http://example.org/weather#station/99001> geo:lat "50.5" ; geo:long "1.5" .
+
+                <observation/99001/20241201000000> ex:temperature "280.0";
+                  ex:station "99001";
+                  ex:date "20241201000000" .
+                """);
+        loader.loadData(ttl.toString());
+        assertEquals(List.of("99001"), geo.within(50, 1, 51, 2).stream().map(GeoIndex.Located::id).toList());
+    }
+
+    private static void locate(Dataset dataset, List<GeoIndex.Located> stations) {
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            Graph graph = dataset.asDatasetGraph().getDefaultGraph();
+            for (GeoIndex.Located station : stations) {
+                graph.add(StationIndex.stationNode(station.id()), WeatherVocabulary.GEO_LAT, number(station.latitude()));
+                graph.add(StationIndex.stationNode(station.id()), WeatherVocabulary.GEO_LONG, number(station.longitude()));
+                if (station.altitude() != null) {
+                    graph.add(StationIndex.stationNode(station.id()), WeatherVocabulary.GEO_ALT, number(station.altitude()));
+                }
+            }
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    private static org.apache.jena.graph.Node number(double value) {
+        return NodeFactory.createLiteralDT(Double.toString(value), XSDDatatype.XSDdouble);
+    }
+
+    private static String latestDate(SPARQLService sparql, String stationId) {
+        for (JsonElement station : JsonParser.parseString(sparql.queryLatestObservations()).getAsJsonArray()) {
+            if (station.getAsJsonObject().get("stationId").getAsString().equals(stationId)) {
+                return station.getAsJsonObject().get("date").getAsString();
+            }
+        }
+        return null;
+    }
+
+    private static List<String> ids(String json) {
+        List<String> ids = new ArrayList<>();
+        for (JsonElement station : JsonParser.parseString(json).getAsJsonArray()) {
+            ids.add(station.getAsJsonObject().get("stationId").getAsString());
+        }
+        return ids;
+    }
+}
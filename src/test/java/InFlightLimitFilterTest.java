@@ -0,0 +1,137 @@
+import com.sun.net.httpserver.HttpServer;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import org.example.weatherApp.InFlightLimitFilter;
+import org.example.weatherApp.Metrics;
+import org.example.weatherApp.MetricsResource;
+import org.example.weatherApp.ReadinessResource;
+import org.example.weatherApp.RequestExecutors;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InFlightLimitFilterTest {
+    private static final CountDownLatch started = new CountDownLatch(2);
+    private static final CountDownLatch release = new CountDownLatch(1);
+
+    @Path("/slow")
+    public static class SlowResource {
+        @GET
+        public String get() throws InterruptedException {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return "done";
+        }
+    }
+
+    @Test
+    public void testRequestsOverTheCapAreRejected() throws Exception {
+        InFlightLimitFilter limit = new InFlightLimitFilter(2, 3);
+        ResourceConfig config = new ResourceConfig(SlowResource.class);
+        config.register(limit);
+        config.register(new ReadinessResource(null));
+        config.register(new MetricsResource(Metrics.DEFAULT));
+        ExecutorService executor = RequestExecutors.create(RequestExecutors.VIRTUAL, 0);
+        HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, false);
+        server.setExecutor(executor);
+        server.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + server.getAddress().getPort() + "/slow")).build();
+
+            // two slow requests run side by side on the executor and use up the cap
+            CompletableFuture<HttpResponse<String>> first = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            CompletableFuture<HttpResponse<String>> second = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            assertTrue(started.await(10, TimeUnit.SECONDS), "Both requests should be served concurrently");
+
+            HttpResponse<String> rejected = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(503, rejected.statusCode());
+            assertEquals("3", rejected.headers().firstValue("Retry-After").orElse(null));
+            // the probes get through a saturated server
+            URI base = URI.create("http://localhost:" + server.getAddress().getPort());
+            assertEquals(200, client.send(HttpRequest.newBuilder(base.resolve("/ready")).build(),
+                                          HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(200, client.send(HttpRequest.newBuilder(base.resolve("/metrics")).build(),
+                                          HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(2, limit.inFlight());
+
+            release.countDown();
+            assertEquals(200, first.get(10, TimeUnit.SECONDS).statusCode());
+            assertEquals(200, second.get(10, TimeUnit.SECONDS).statusCode());
+            // the permit is released on the FINISHED event, just after the response went out
+            for (int i = 0; i < 100 && limit.inFlight() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, limit.inFlight(), "Finished requests should give their permit back");
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private static final CountDownLatch queuedStarted = new CountDownLatch(1);
+    private static final CountDownLatch queuedRelease = new CountDownLatch(1);
+
+    @Path("/queued")
+    public static class QueuedResource {
+        @GET
+        public String get() throws InterruptedException {
+            queuedStarted.countDown();
+            queuedRelease.await(10, TimeUnit.SECONDS);
+            return "done";
+        }
+    }
+
+    @Test
+    public void testExchangesAFullPoolRejectsAreAnswered503() throws Exception {
+        ResourceConfig config = new ResourceConfig(QueuedResource.class);
+        config.register(new InFlightLimitFilter(100, 2));
+        // one thread and a queue of 16
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) RequestExecutors.create(RequestExecutors.POOL, 1);
+        HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, false);
+        server.setExecutor(executor);
+        server.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + server.getAddress().getPort() + "/queued")).build();
+            List<CompletableFuture<HttpResponse<String>>> accepted = new ArrayList<>();
+            accepted.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+            assertTrue(queuedStarted.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 16; i++) {
+                accepted.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+            }
+            for (int i = 0; i < 500 && executor.getQueue().remainingCapacity() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, executor.getQueue().remainingCapacity(), "The queue should be full");
+
+            HttpResponse<String> rejected = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(503, rejected.statusCode(), "Not a closed connection");
+            assertEquals("2", rejected.headers().firstValue("Retry-After").orElse(null));
+
+            queuedRelease.countDown();
+            for (CompletableFuture<HttpResponse<String>> response : accepted) {
+                assertEquals(200, response.get(10, TimeUnit.SECONDS).statusCode());
+            }
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.DropDirectoryWatcher;
+import org.example.weatherApp.LiveIngest;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.ResponseCache;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LiveIngestTest {
+    private static final String OBSERVATION = """
+            @base <http://example.org/weather/> .
+            @prefix ex: <http://example.org/weather#> .
+            <observation/07005/%1$s> ex:temperature "275.150000"; ex:humidity "80";
+              ex:station "07005"; ex:date "%1$s" .
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private RDFDataLoader loader;
+    private SPARQLService sparql;
+    private LiveIngest ingest;
+
+    @BeforeEach
+    public void setUp() {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        loader = new RDFDataLoader(dataset);
+        loader.setBatchSize(1);
+        sparql = new SPARQLService(dataset);
+        ingest = new LiveIngest(loader, 4, tempDir.resolve("spool"));
+        ingest.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        ingest.close();
+    }
+
+    @Test
+    public void testPostedObservationsAreLoaded() throws Exception {
+        ResourceConfig config = new ResourceConfig();
+        config.register(new WeatherAPI(sparql, new ResponseCache(1 << 20, Duration.ofHours(1)), ingest));
+        HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, true);
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/api/weather/observations");
+            HttpResponse<String> response = client.send(
+                    HttpRequest.newBuilder(uri).header("Content-Type", "text/turtle")
+                               .POST(HttpRequest.BodyPublishers.ofString(OBSERVATION.formatted("20250101000000"))).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode(), response.body());
+            assertTrue(response.body().startsWith("{\"observations\":1,\"skipped\":0,"), response.body());
+            assertTrue(sparql.queryWeatherDataByStationAndDate("07005", "20250101000000").contains("275.15"));
+            try (var spooled = Files.list(tempDir.resolve("spool"))) {
+                assertEquals(0, spooled.count(), "Uploads are deleted once loaded");
+            }
+
+            HttpResponse<String> invalid = client.send(
+                    HttpRequest.newBuilder(uri).header("Content-Type", "application/n-triples")
+                               .POST(HttpRequest.BodyPublishers.ofString("not n-triples")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, invalid.statusCode());
+            assertTrue(invalid.body().contains("error"), invalid.body());
+            // the parse error, not the transaction left open by it
+            assertFalse(invalid.body().contains("transaction"), invalid.body());
+            assertTrue(sparql.queryWeatherDataByStationAndDate("07005", "20250101000000").contains("275.15"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDroppedFilesAreLoaded() throws Exception {
+        Path drop = tempDir.resolve("drop");
+        Files.createDirectories(drop);
+        Files.writeString(drop.resolve("before.ttl"), OBSERVATION.formatted("20250101000000"));
+        try (DropDirectoryWatcher watcher = new DropDirectoryWatcher(drop, ingest)) {
+            watcher.start();
+            Path partial = drop.resolve("after.ttl.part");
+            Files.writeString(partial, OBSERVATION.formatted("20250101030000"));
+            Files.move(partial, drop.resolve("after.ttl"));
+
+            // the startup scan may see after.ttl too, and takes it first (name order)
+            for (int i = 0; i < 500 && !(Files.exists(drop.resolve("done/before.ttl")) && Files.exists(drop.resolve("done/after.ttl"))); i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(Files.exists(drop.resolve("done/before.ttl")), "Files already there are loaded at start");
+            assertTrue(Files.exists(drop.resolve("done/after.ttl")), "New files are loaded and moved to done/");
+            assertTrue(sparql.queryWeatherDataByStationAndDate("07005", "20250101030000").contains("275.15"));
+        }
+    }
+
+    @Test
+    public void testFullQueueRefusesFiles() throws Exception {
+        LiveIngest stopped = new LiveIngest(loader, 1, tempDir.resolve("spool"));
+        Path file = tempDir.resolve("a.ttl");
+        Files.writeString(file, OBSERVATION.formatted("20250101000000"));
+        assertNotNull(stopped.offer(file, false));
+        assertNull(stopped.offer(file, false), "The queue holds one file");
+        assertEquals(1, stopped.queued());
+    }
+}
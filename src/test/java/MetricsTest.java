@@ -0,0 +1,94 @@
+import com.sun.net.httpserver.HttpServer;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.Metrics;
+import org.example.weatherApp.MetricsResource;
+import org.example.weatherApp.RequestMetrics;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+    @Test
+    public void testPrometheusFormat() throws IOException {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram latency = metrics.histogram("test_seconds", "Test latency", new double[] {0.1, 1}, "path", "/a");
+        latency.observe(0.05);
+        latency.observe(0.5);
+        latency.observe(3);
+        metrics.counter("test_total", "Test counter", "path", "/a\"b").add(2);
+        metrics.gauge("test_gauge", "Test gauge", () -> 1.5);
+
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        // followed by the TDB2 transaction waits every registry records
+        String expected = """
+                # HELP test_gauge Test gauge
+                # TYPE test_gauge gauge
+                test_gauge 1.5
+                # HELP test_seconds Test latency
+                # TYPE test_seconds histogram
+                test_seconds_bucket{path="/a",le="0.1"} 1
+                test_seconds_bucket{path="/a",le="1"} 2
+                test_seconds_bucket{path="/a",le="+Inf"} 3
+                test_seconds_sum{path="/a"} 3.55
+                test_seconds_count{path="/a"} 3
+                # HELP test_total Test counter
+                # TYPE test_total counter
+                test_total{path="/a\\"b"} 2
+                """;
+        assertEquals(expected, out.toString().substring(0, Math.min(expected.length(), out.toString().length())));
+        assertSame(latency, metrics.histogram("test_seconds", "Test latency", new double[] {0.1, 1}, "path", "/a"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("test_seconds", "Not a counter"));
+    }
+
+    @Test
+    public void testRequestsAndQueriesAreRecorded() throws Exception {
+        Metrics.DEFAULT.setSlowQueryMillis(0);
+        ResourceConfig config = new ResourceConfig();
+        config.register(new WeatherAPI(new SPARQLService(DatasetFactory.createTxnMem())));
+        config.register(new MetricsResource(Metrics.DEFAULT));
+        config.register(new RequestMetrics(Metrics.DEFAULT));
+        HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, true);
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.getAddress().getPort();
+            client.send(HttpRequest.newBuilder(URI.create(base + "/api/weather/07005/20241113")).build(),
+                        HttpResponse.BodyHandlers.ofString());
+
+            // the request is recorded once its response is written, which can be after the client got it;
+            // the store is empty, so it is a 404
+            String requests = "weather_http_requests_total{method=\"GET\",path=\"/api/weather/{stationId}/{date}\",status=\"404\"} ";
+            HttpResponse<String> response;
+            long deadline = System.currentTimeMillis() + 5000;
+            do {
+                response = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).build(),
+                                       HttpResponse.BodyHandlers.ofString());
+            } while (!response.body().contains(requests) && System.currentTimeMillis() < deadline);
+            assertEquals(200, response.statusCode());
+            assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+            String body = response.body();
+            assertTrue(body.contains("weather_http_request_duration_seconds_count{method=\"GET\",path=\"/api/weather/{stationId}/{date}\"} "),
+                       body);
+            assertTrue(body.contains(requests), body);
+            assertTrue(body.contains("weather_sparql_query_seconds_count{method=\"queryWeatherDataByStationAndDate\",store=\"tdb2\"} "),
+                       body);
+            assertTrue(body.contains("weather_sparql_slow_queries_total{method=\"queryWeatherDataByStationAndDate\",store=\"tdb2\"} "),
+                       body);
+            assertTrue(body.contains("weather_tdb_transaction_wait_seconds_count{mode=\"read\"} "), body);
+        } finally {
+            Metrics.DEFAULT.setSlowQueryMillis(1000);
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.example.weatherApp.IngestPipeline;
+import org.example.weatherApp.LoaderState;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherVocabulary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RDFDataLoaderTest {
+    private static final String HEADER = """
+            @base <http://example.org/weather/> .
+            @prefix ex: <http://example.org/weather#> .
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private Dataset dataset;
+    private RDFDataLoader loader;
+    private Path ttl;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dataset = DatasetFactory.createTxnMem();
+        loader = new RDFDataLoader(dataset);
+        ttl = tempDir.resolve("observations.ttl");
+        Files.writeString(ttl, HEADER + observation("07005", "20241101000000", "282.650000")
+                                      + observation("07015", "20241101000000", "283.150000"));
+    }
+
+    private static String observation(String station, String date, String temperature) {
+        return String.format("""
+                <observation/%1$s/%2$s> ex:temperature "%3$s";
+                  ex:station "%1$s";
+                  ex:date "%2$s" .
+                """, station, date, temperature);
+    }
+
+    /**
+     * Number of observation triples, leaving out the station index and the derived values
+     */
+    private long size() {
+        dataset.begin(ReadWrite.READ);
+        try {
+            return dataset.getDefaultModel().listStatements().filterKeep(
+                    stmt -> stmt.getSubject().getURI().startsWith("http://example.org/weather/observation/")
+                            && !WeatherVocabulary.DERIVED.contains(stmt.getPredicate().getLocalName())).toList().size();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    @Test
+    public void testUnchangedFileIsSkipped() throws IOException {
+        loader.loadData(ttl.toString());
+        assertEquals(6, size(), "Both observations should be loaded");
+
+        // Clear the data behind the loader's back: a skipped file must not be parsed again
+        dataset.begin(ReadWrite.WRITE);
+        try {
+            dataset.getDefaultModel().removeAll();
+            dataset.commit();
+        } finally {
+            dataset.end();
+        }
+        loader.loadData(ttl.toString());
+        assertEquals(0, size(), "An up-to-date file should not be reloaded");
+
+        // Same content with a new modification time is recognised by its checksum
+        Files.setLastModifiedTime(ttl, FileTime.fromMillis(Files.getLastModifiedTime(ttl).toMillis() + 60_000));
+        loader.loadData(ttl.toString());
+        assertEquals(0, size(), "A touched but unchanged file should not be reloaded");
+    }
+
+    @Test
+    public void testGrownFileLoadsOnlyNewObservations() throws IOException {
+        loader.loadData(ttl.toString());
+        Files.writeString(ttl, observation("07005", "20241101030000", "281.950000")
+                               + observation("07015", "20241031210000", "280.000000"),
+                          StandardOpenOption.APPEND);
+        IngestPipeline.Report report = loader.loadData(ttl.toString());
+
+        assertEquals(12, size(), "Both appended observations should be added, the late one too");
+        assertEquals(2, report.observations());
+        assertEquals(1, report.late());
+        assertEquals(2, report.skipped());
+        dataset.begin(ReadWrite.READ);
+        try {
+            Map<String, String> watermarks = new LoaderState(dataset.asDatasetGraph()).readWatermarks();
+            assertEquals("20241101030000", watermarks.get("07005"));
+            assertEquals("20241101000000", watermarks.get("07015"));
+        } finally {
+            dataset.end();
+        }
+        assertTrue(new SPARQLService(dataset).queryStation().contains(
+                           "{\"station\":\"07005\",\"stationName\":\"ABBEVILLE\",\"firstObservation\":\"20241101000000\","
+                           + "\"lastObservation\":\"20241101030000\",\"observationCount\":2}"),
+                   "The station index should follow the loaded observations");
+        String latest = new SPARQLService(dataset).queryLatestObservations();
+        assertTrue(latest.contains("{\"stationId\":\"07005\",\"stationName\":\"ABBEVILLE\",\"date\":\"20241101030000\",\"temperature\":\"281.950000\""),
+                   "The latest observation of each station should come from its index summary: " + latest);
+        assertTrue(latest.contains("{\"stationId\":\"07015\",\"stationName\":\"LILLE-LESQUIN\",\"date\":\"20241101000000\""), latest);
+    }
+
+    @Test
+    public void testObservationWithAnInvalidDateIsLeftOut() throws IOException {
+        Files.writeString(ttl, observation("07015", "20241301000000", "280.000000"), StandardOpenOption.APPEND);
+        IngestPipeline.Report report = loader.loadData(ttl.toString());
+
+        assertEquals(2, report.observations());
+        assertEquals(1, report.invalid());
+        assertEquals(6, size(), "The valid observations of the file should be loaded");
+    }
+
+    @Test
+    public void testRollupsFollowIncrementalLoads() throws IOException {
+        loader.loadData(ttl.toString());
+        Files.writeString(ttl, observation("07005", "20241101030000", "281.950000")
+                               + observation("07005", "20241102000000", "279.150000"),
+                          StandardOpenOption.APPEND);
+        loader.loadData(ttl.toString());
+
+        SPARQLService service = new SPARQLService(dataset);
+        String days = service.queryAggregate("07005", null, null, "temperature", "day");
+        assertTrue(days.contains("{\"date\":\"20241101000000\",\"temperature\":"
+                                 + "{\"count\":2,\"min\":281.950000,\"max\":282.650000,\"mean\":282.300000}"),
+                   "The day rollup should merge both loads: " + days);
+        assertTrue(days.contains("{\"date\":\"20241102000000\",\"temperature\":{\"count\":1"), days);
+
+        String hours = service.querySeries("07005", "20241101000000", "20241101235959", "temperature", "hour");
+        assertTrue(hours.contains("\"series\":[{\"date\":\"20241101000000\",\"temperature\":282.650000},"
+                                  + "{\"date\":\"20241101030000\",\"temperature\":281.950000}]"),
+                   "The series should only hold the hours with observations in range: " + hours);
+
+        assertEquals(Response.Status.BAD_REQUEST,
+                     assertThrows(QueryException.class, () -> service.queryAggregate("07005", null, null, "rain", "day")).status());
+        assertEquals(Response.Status.BAD_REQUEST,
+                     assertThrows(QueryException.class, () -> service.queryAggregate("07005", null, null, null, "week")).status());
+        assertEquals(Response.Status.NOT_FOUND,
+                     assertThrows(QueryException.class, () -> service.queryAggregate("99999", null, null, null, "day")).status());
+    }
+
+    @Test
+    public void testInterruptedLoadResumesAfterLastBatch() throws IOException {
+        loader.setBatchSize(1);
+        String valid = HEADER + observation("07005", "20241101000000", "282.650000")
+                       + observation("07015", "20241101000000", "283.150000")
+                       + observation("07020", "20241101000000", "284.750000");
+        Files.writeString(ttl, valid + "<observation/broken ex:temperature .\n");
+
+        assertThrows(RuntimeException.class, () -> loader.loadData(ttl.toString()));
+        assertEquals(9, size(), "The observations parsed before the error should stay committed");
+        dataset.begin(ReadWrite.READ);
+        try {
+            LoaderState state = new LoaderState(dataset.asDatasetGraph());
+            assertEquals(3, state.readProgress("observations.ttl").position(), "Progress should point after the last batch");
+            assertNull(state.readSource("observations.ttl"), "An interrupted load must not be recorded as complete");
+        } finally {
+            dataset.end();
+        }
+
+        Files.writeString(ttl, valid + observation("07005", "20241101030000", "281.950000"));
+        loader.loadData(ttl.toString());
+        assertEquals(12, size(), "The reload should only add what the interrupted load missed");
+        dataset.begin(ReadWrite.READ);
+        try {
+            LoaderState state = new LoaderState(dataset.asDatasetGraph());
+            assertNull(state.readProgress("observations.ttl"), "A completed load should clear its progress");
+            assertNotNull(state.readSource("observations.ttl"), "A completed load should be recorded");
+        } finally {
+            dataset.end();
+        }
+    }
+
+    @Test
+    public void testSynopCsv() throws IOException {
+        Path csv = tempDir.resolve("synop.202411.csv");
+        Files.writeString(csv, """
+                numer_sta;date;pmer;tend;cod_tend;dd;ff;t;td;u;vv;ww;w1;w2;n;nbas;hbas;cl;cm;ch;pres;tn12;tx12;
+                07005;20241101000000;102570;mq;mq;160;1.000000;282.650000;282.550000;99;490;mq;mq;mq;mq;mq;mq;mq;mq;mq;101620;mq;mq;
+                07015;20241101000000;102590;mq;mq;170;3.200000;283.150000;282.650000;97;4330;mq;mq;mq;100;mq;mq;mq;mq;mq;101930;mq;mq;
+                """);
+        loader.loadData(csv.toString());
+
+        assertEquals(19, size(), "Each CSV line should give station, date and the measurements that are not \"mq\"");
+        dataset.begin(ReadWrite.READ);
+        try {
+            double temperature = dataset.getDefaultModel()
+                    .getResource("http://example.org/weather/observation/07015/20241101000000")
+                    .getProperty(dataset.getDefaultModel().createProperty("http://example.org/weather#temperature"))
+                    .getDouble();
+            assertEquals(283.15, temperature, 1e-9);
+            String dewPoint = dataset.getDefaultModel()
+                    .getResource("http://example.org/weather/observation/07015/20241101000000")
+                    .getProperty(dataset.getDefaultModel().createProperty("http://example.org/weather#dew_point"))
+                    .getLiteral().getLexicalForm();
+            assertEquals("282.650000", dewPoint, "The lexical form of the source should be kept");
+        } finally {
+            dataset.end();
+        }
+    }
+
+    @Test
+    public void testBulkLoadIntoEmptyTDB2() {
+        dataset = TDB2Factory.connectDataset(tempDir.resolve("tdb").toString());
+        loader = new RDFDataLoader(dataset);
+        loader.loadData(ttl.toString());
+        assertEquals(6, size(), "Both observations should be bulk loaded");
+
+        dataset.begin(ReadWrite.READ);
+        try {
+            LoaderState state = new LoaderState(dataset.asDatasetGraph());
+            assertNotNull(state.readSource("observations.ttl"), "The bulk load should be recorded");
+            assertEquals("20241101000000", state.readWatermarks().get("07015"));
+        } finally {
+            dataset.end();
+        }
+        assertTrue(new SPARQLService(dataset).queryStation().contains("\"observationCount\":1"),
+                   "The station index should be rebuilt after a bulk load");
+        assertTrue(new SPARQLService(dataset).queryAggregate("07015", null, null, "temperature", "month").contains(
+                           "{\"date\":\"20241101000000\",\"temperature\":{\"count\":1,\"min\":283.15"),
+                   "The rollups should be rebuilt after a bulk load");
+    }
+}
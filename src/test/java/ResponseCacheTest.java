@@ -0,0 +1,106 @@
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.example.weatherApp.QueryException;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.ResponseCache;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        // room for two entries of this size, not three
+        ResponseCache cache = new ResponseCache(2 * (2 * 100 + 256) + 10, Duration.ofHours(1));
+        String body = "x".repeat(100);
+        cache.get("a", "07005", () -> body);
+        cache.get("b", "07005", () -> body);
+        cache.get("a", "07005", () -> fail("a should be cached"));
+        cache.get("c", "07005", () -> body);
+
+        ResponseCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(3, stats.misses());
+        assertEquals(1, stats.evictions());
+        cache.get("a", "07005", () -> fail("a was used last and should have stayed"));
+        assertEquals("y", cache.get("b", "07005", () -> "y").body(), "b was the least recently used");
+    }
+
+    @Test
+    public void testCommitInvalidatesOnlyItsStations() {
+        ResponseCache cache = new ResponseCache(1 << 20, Duration.ofHours(1));
+        cache.get("stations", null, () -> "all");
+        cache.get("dates|07005", "07005", () -> "07005");
+        cache.get("dates|07015", "07015", () -> "07015");
+
+        cache.afterCommit(Set.of("07005"));
+        assertEquals(2, cache.stats().invalidations(), "07005 and the all-station entry should be dropped");
+        assertEquals("07015", cache.get("dates|07015", "07015", () -> fail("07015 is unaffected")).body());
+
+        // a response computed while a commit lands may be stale and must not be kept
+        cache.get("dates|07005", "07005", () -> {
+            cache.afterCommit(Set.of("07005"));
+            return "stale";
+        });
+        assertEquals("fresh", cache.get("dates|07005", "07005", () -> "fresh").body());
+    }
+
+    @Test
+    public void testErrorsAreNotCached() {
+        ResponseCache cache = new ResponseCache(1 << 20, Duration.ofHours(1));
+        assertThrows(QueryException.class, () -> cache.get("observation|07005|2024", "07005", () -> {
+            throw new QueryException(Response.Status.NOT_FOUND, "No data found for stationId: 07005");
+        }));
+        assertEquals(0, cache.stats().entries());
+        assertEquals("{}", cache.get("observation|07005|2024", "07005", () -> "{}").body());
+
+        WeatherAPI api = new WeatherAPI(new SPARQLService(DatasetFactory.createTxnMem()), cache);
+        Response missing = api.getWeatherByStationAndDate("\"07005", "20241101000000", null, null);
+        assertEquals(404, missing.getStatus());
+        assertEquals("No data found for stationId: \"07005 and date: 20241101000000",
+                     JsonParser.parseString((String) missing.getEntity()).getAsJsonObject().get("error").getAsString());
+        assertEquals(1, cache.stats().entries());
+    }
+
+    @Test
+    public void testLoaderInvalidatesCachedResponses() throws IOException {
+        Dataset dataset = DatasetFactory.createTxnMem();
+        RDFDataLoader loader = new RDFDataLoader(dataset);
+        ResponseCache cache = new ResponseCache(1 << 20, Duration.ofHours(1));
+        loader.addListener(cache);
+        SPARQLService service = new SPARQLService(dataset);
+
+        Path ttl = tempDir.resolve("observations.ttl");
+        Files.writeString(ttl, """
+                @base <http://example.org/weather/> .
+                @prefix ex: <http://example.org/weather#> .
+                <observation/07005/20241101000000> ex:temperature "282.650000"; ex:station "07005"; ex:date "20241101000000" .
+                """);
+        loader.loadData(ttl.toString());
+        ResponseCache.Entry before = cache.get("dates|07005", "07005", () -> service.queryDateOfStation("07005"));
+
+        Files.writeString(ttl, """
+                <observation/07005/20241101030000> ex:temperature "281.950000"; ex:station "07005"; ex:date "20241101030000" .
+                """, StandardOpenOption.APPEND);
+        loader.loadData(ttl.toString());
+        ResponseCache.Entry after = cache.get("dates|07005", "07005", () -> service.queryDateOfStation("07005"));
+
+        assertTrue(after.body().contains("20241101030000"), "The new observation should be visible: " + after.body());
+        assertNotEquals(before.etag(), after.etag(), "A changed response should get a new ETag");
+    }
+}
@@ -1,3 +1,7 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import jakarta.ws.rs.core.Response;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.ReadWrite;
@@ -5,10 +9,15 @@ import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.vocabulary.RDF;
+import org.example.weatherApp.QueryException;
 import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringWriter;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class SPARQLServiceTest {
@@ -32,15 +41,15 @@ public class SPARQLServiceTest {
             station1.addProperty(ResourceFactory.createProperty(namespace, "stationName"), "ABBEVILLE");
             Resource observation1 = model.createResource(namespace + "observation/obs1");
             observation1.addProperty(ResourceFactory.createProperty(namespace, "station"), station1)
-                        .addProperty(ResourceFactory.createProperty(namespace, "date"), "20241113")
-                        .addProperty(ResourceFactory.createProperty(namespace, "temperature"), "278.35");
+                        .addProperty(ResourceFactory.createProperty(namespace, "date"), "2024-11-13T00:00:00Z", XSDDatatype.XSDdateTime)
+                        .addProperty(ResourceFactory.createProperty(namespace, "temperature"), "278.35", XSDDatatype.XSDdouble);
 
             Resource station2 = model.createResource(namespace + "station/07015");
             station2.addProperty(ResourceFactory.createProperty(namespace, "stationName"), "LILLE-LESQUIN");
             Resource observation2 = model.createResource(namespace + "observation/obs2");
             observation2.addProperty(ResourceFactory.createProperty(namespace, "station"), station2)
-                        .addProperty(ResourceFactory.createProperty(namespace, "date"), "20241114")
-                        .addProperty(ResourceFactory.createProperty(namespace, "temperature"), "mq");
+                        .addProperty(ResourceFactory.createProperty(namespace, "date"), "2024-11-14T00:00:00Z", XSDDatatype.XSDdateTime);
+            // temperature "mq" is not stored
 
             dataset.commit(); // Commit the transaction
         } finally {
@@ -65,8 +74,9 @@ public class SPARQLServiceTest {
         assertNotNull(result, "Result should not be null");
         assertTrue(result.contains("20241113"), "Result should contain date 20241113");
 
-        String noDataResult = sparqlService.queryDateOfStation("99999");
-        assertTrue(noDataResult.contains("error"), "Result should indicate an error for non-existent station");
+        QueryException noData = assertThrows(QueryException.class, () -> sparqlService.queryDateOfStation("99999"),
+                                             "A station without observations should be an error");
+        assertEquals(Response.Status.NOT_FOUND, noData.status());
     }
 
     @Test
@@ -78,4 +88,60 @@ public class SPARQLServiceTest {
         String missingDataResult = sparqlService.queryWeatherDataByStationAndDate("07015", "20241114");
         assertTrue(missingDataResult.contains("N/A"), "Result should contain 'N/A' for missing data");
     }
+
+    @Test
+    public void testStreamedNdjson() {
+        StringWriter stations = new StringWriter();
+        sparqlService.writeStations(stations, true);
+        String[] lines = stations.toString().split("\n");
+        assertEquals(2, lines.length, "One line per station");
+        assertTrue(lines[0].startsWith("{\"station\":\"07005\",\"stationName\":\"ABBEVILLE\""), lines[0]);
+
+        StringWriter dates = new StringWriter();
+        sparqlService.writeDatesOfStation("07005", dates, true);
+        assertEquals("{\"date\":\"20241113000000\"}\n", dates.toString());
+        assertEquals("[{\"date\":\"20241113000000\"}]", sparqlService.queryDateOfStation("07005"));
+    }
+
+    @Test
+    public void testObservationBatch() {
+        StringWriter out = new StringWriter();
+        sparqlService.writeObservationBatch("""
+                [{"stationId": "07015", "from": "20241101", "to": "20241130"},
+                 {"stationId": "07005", "from": "20241114"},
+                 {"stationId": "07005", "from": "20241101", "to": "20241113"},
+                 {"stationId": "99999"}]
+                """, out);
+        String result = out.toString();
+        assertTrue(result.startsWith("[{\"stationId\":\"07015\",\"stationName\":\"LILLE-LESQUIN\""), result);
+        assertTrue(result.contains("\"from\":\"20241114\",\"to\":null,\"observations\":[]"),
+                   "A range without observations should give an empty group: " + result);
+        assertTrue(result.contains("\"to\":\"20241113\",\"observations\":[{\"date\":\"20241113000000\",\"temperature\":\"278.350000\""),
+                   result);
+        assertTrue(result.endsWith("{\"stationId\":\"99999\",\"stationName\":\"Unknown Station\",\"from\":null,\"to\":null,\"observations\":[]}]"),
+                   result);
+
+        // each group holds its own pair's rows, whatever order the engine gives them in
+        List<String> pairs = List.of("{\"stationId\": \"07005\", \"from\": \"20241114\"}", "{\"stationId\": \"07015\"}",
+                                     "{\"stationId\": \"07005\", \"to\": \"20241113\"}", "{\"stationId\": \"07005\"}");
+        StringWriter all = new StringWriter();
+        sparqlService.writeObservationBatch("[" + String.join(",", pairs) + "]", all);
+        JsonArray groups = JsonParser.parseString(all.toString()).getAsJsonArray();
+        assertEquals(pairs.size(), groups.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            StringWriter one = new StringWriter();
+            sparqlService.writeObservationBatch("[" + pairs.get(i) + "]", one);
+            assertEquals(JsonParser.parseString(one.toString()).getAsJsonArray().get(0), groups.get(i), pairs.get(i));
+        }
+
+        StringWriter invalid = new StringWriter();
+        QueryException error = assertThrows(QueryException.class,
+                () -> sparqlService.writeObservationBatch("[{\"stationId\": \"07005\", \"from\": \"yesterday\"}]", invalid));
+        assertEquals(Response.Status.BAD_REQUEST, error.status());
+        assertEquals("", invalid.toString(), "Nothing is written for an invalid batch");
+
+        WeatherAPI api = new WeatherAPI(sparqlService);
+        assertEquals(400, api.getObservationBatch("{\"stationId\": \"07005\"}", null).getStatus());
+        assertEquals(200, api.getObservationBatch("[{\"stationId\": \"07005\"}]", null).getStatus());
+    }
 }
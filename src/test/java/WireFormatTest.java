@@ -0,0 +1,130 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.example.weatherApp.RDFDataLoader;
+import org.example.weatherApp.SPARQLService;
+import org.example.weatherApp.WeatherAPI;
+import org.apache.jena.query.DatasetFactory;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.filter.EncodingFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The JSON contract is unchanged, gzip and CBOR are given only to the clients that ask for them.
+ */
+public class WireFormatTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private SPARQLService expected;
+    private HttpServer server;
+    private String base;
+    private String stationId;
+
+    @BeforeEach
+    public void start() {
+        RDFDataLoader loader = new RDFDataLoader(DatasetFactory.createTxnMem());
+        loader.loadData("result-triples-new.ttl");
+        expected = new SPARQLService(loader.getDataset());
+        ResourceConfig config = new ResourceConfig();
+        config.register(new WeatherAPI(expected));
+        EncodingFilter.enableFor(config, GZipEncoder.class, DeflateEncoder.class);
+        server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), config, true);
+        base = "http://localhost:" + server.getAddress().getPort();
+        stationId = JsonParser.parseString(expected.queryStation()).getAsJsonArray().get(0).getAsJsonObject().get("station").getAsString();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testGzipWhenAccepted() throws Exception {
+        String path = "/api/weather/" + stationId + "/series";
+        HttpResponse<byte[]> plain = get(path, null, null);
+        assertEquals(200, plain.statusCode());
+        assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty());
+        assertEquals(JsonParser.parseString(expected.querySeries(stationId, null, null, null, "hour")),
+                     JsonParser.parseString(new String(plain.body(), StandardCharsets.UTF_8)));
+
+        HttpResponse<byte[]> gzipped = get(path, null, "gzip");
+        assertEquals("gzip", gzipped.headers().firstValue("Content-Encoding").orElse(""));
+        byte[] body;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))) {
+            body = in.readAllBytes();
+        }
+        assertArrayEquals(plain.body(), body);
+        assertTrue(gzipped.body().length < plain.body().length);
+    }
+
+    @Test
+    public void testCborWhenPreferred() throws Exception {
+        String path = "/api/weather/" + stationId + "/series";
+        JsonObject json = JsonParser.parseString(expected.querySeries(stationId, null, null, null, "hour")).getAsJsonObject();
+        HttpResponse<byte[]> response = get(path, "application/cbor", null);
+        assertEquals(200, response.statusCode());
+        assertEquals("application/cbor", response.headers().firstValue("Content-Type").orElse(""));
+        assertTrue(response.body().length < json.toString().length() / 2);
+
+        // columns of numbers, N/A as null
+        JsonNode cbor = new ObjectMapper(new CBORFactory()).readTree(response.body());
+        assertEquals(stationId, cbor.get("stationId").asText());
+        JsonArray series = json.getAsJsonArray("series");
+        JsonNode columns = cbor.get("series");
+        assertEquals(series.size(), columns.get("date").size());
+        for (int i = 0; i < series.size(); i++) {
+            JsonObject row = series.get(i).getAsJsonObject();
+            assertEquals(row.get("date").getAsString(), columns.get("date").get(i).asText());
+            JsonElement temperature = row.get("temperature");
+            if (temperature.getAsString().equals("N/A")) {
+                assertTrue(columns.get("temperature").get(i).isNull());
+            } else {
+                assertEquals(temperature.getAsDouble(), columns.get("temperature").get(i).asDouble(), 1e-9);
+            }
+        }
+
+        // its own ETag, revalidated as the JSON one
+        String etag = response.headers().firstValue("ETag").orElseThrow();
+        assertNotEquals(get(path, null, null).headers().firstValue("ETag").orElseThrow(), etag);
+        HttpResponse<byte[]> notModified = client.send(HttpRequest.newBuilder(URI.create(base + path))
+                                                                  .header("Accept", "application/cbor")
+                                                                  .header("If-None-Match", etag).build(),
+                                                       HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(304, notModified.statusCode());
+
+        // JSON stays the default, and is chosen over CBOR when preferred
+        HttpResponse<byte[]> preferred = get(path, "application/json, application/cbor;q=0.5", null);
+        assertEquals(json, JsonParser.parseString(new String(preferred.body(), StandardCharsets.UTF_8)));
+    }
+
+    private HttpResponse<byte[]> get(String path, String accept, String encoding) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path));
+        if (accept != null) {
+            request.header("Accept", accept);
+        }
+        if (encoding != null) {
+            request.header("Accept-Encoding", encoding);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+}